@@ -0,0 +1,186 @@
+package daomephsta.unpick.benchmarks;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.tree.ClassNode;
+import org.openjdk.jmh.annotations.*;
+
+import daomephsta.unpick.api.AnalysisMode;
+import daomephsta.unpick.api.ConstantUninliner;
+import daomephsta.unpick.api.IClassResolver;
+import daomephsta.unpick.api.constantmappers.ConstantMappers;
+import daomephsta.unpick.api.constantmappers.IConstantMapper;
+import daomephsta.unpick.api.constantresolvers.ConstantResolvers;
+import daomephsta.unpick.api.constantresolvers.IConstantResolver;
+
+/**
+ * Compares the tree based analysis tiers with the streaming peephole tier, on a generated
+ * class where every literal is passed directly to a targeted method
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalysisTierBenchmark
+{
+	private static final String CONSTANTS = "benchmark/Constants",
+								TARGET = "benchmark/Target",
+								CALLER = "benchmark/Caller";
+
+	@Param({"16", "256"})
+	public int callsPerMethod;
+
+	private final Map<String, byte[]> classes = new HashMap<>();
+	private byte[] definitions;
+
+	@Setup
+	public void setup()
+	{
+		classes.put(CONSTANTS, generateConstants());
+		classes.put(TARGET, generateTarget());
+		classes.put(CALLER, generateCaller(64, callsPerMethod));
+		StringBuilder definitions = new StringBuilder("v2\n\n");
+		for (int i = 0; i < 8; i++)
+			definitions.append("constant benchmark ").append(CONSTANTS).append(" C").append(i).append('\n');
+		definitions.append("\ntarget_method ").append(TARGET).append(" consume (I)V\n\tparam 0 benchmark\n");
+		this.definitions = definitions.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public byte[] full()
+	{
+		return transformTree(AnalysisMode.FULL);
+	}
+
+	@Benchmark
+	public byte[] backwardSlice()
+	{
+		return transformTree(AnalysisMode.BACKWARD_SLICE);
+	}
+
+	@Benchmark
+	public byte[] peephole()
+	{
+		IClassResolver classResolver = new BenchmarkClassResolver();
+		ConstantUninliner uninliner = createUninliner(classResolver, AnalysisMode.FULL);
+		ClassWriter writer = new ClassWriter(0);
+		new ClassReader(classes.get(CALLER)).accept(new ClassVisitor(ASM9, writer)
+		{
+			private String owner;
+
+			@Override
+			public void visit(int version, int access, String name, String signature, String superName, String[] interfaces)
+			{
+				super.visit(version, access, name, signature, superName, interfaces);
+				this.owner = name;
+			}
+
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions)
+			{
+				MethodVisitor delegate = super.visitMethod(access, name, descriptor, signature, exceptions);
+				return uninliner.methodVisitor(owner, access, name, descriptor, signature, exceptions, delegate);
+			}
+		}, 0);
+		return writer.toByteArray();
+	}
+
+	private byte[] transformTree(AnalysisMode analysisMode)
+	{
+		IClassResolver classResolver = new BenchmarkClassResolver();
+		ClassNode transformed = createUninliner(classResolver, analysisMode).transform(CALLER);
+		ClassWriter writer = new ClassWriter(0);
+		transformed.accept(writer);
+		return writer.toByteArray();
+	}
+
+	private ConstantUninliner createUninliner(IClassResolver classResolver, AnalysisMode analysisMode)
+	{
+		IConstantResolver constantResolver = ConstantResolvers.bytecodeAnalysis(classResolver);
+		IConstantMapper mapper = ConstantMappers.dataDriven(classResolver, constantResolver, new ByteArrayInputStream(definitions));
+		return ConstantUninliner.builder(classResolver, mapper, constantResolver)
+			.analysisMode(analysisMode)
+			.build();
+	}
+
+	private static byte[] generateConstants()
+	{
+		ClassWriter writer = new ClassWriter(0);
+		writer.visit(V1_8, ACC_PUBLIC, CONSTANTS, null, "java/lang/Object", null);
+		for (int i = 0; i < 8; i++)
+			writer.visitField(ACC_PUBLIC | ACC_STATIC | ACC_FINAL, "C" + i, "I", null, 1000 + i).visitEnd();
+		writer.visitEnd();
+		return writer.toByteArray();
+	}
+
+	private static byte[] generateTarget()
+	{
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		writer.visit(V1_8, ACC_PUBLIC, TARGET, null, "java/lang/Object", null);
+		MethodVisitor consume = writer.visitMethod(ACC_PUBLIC | ACC_STATIC, "consume", "(I)V", null, null);
+		consume.visitCode();
+		consume.visitInsn(RETURN);
+		consume.visitMaxs(0, 0);
+		consume.visitEnd();
+		writer.visitEnd();
+		return writer.toByteArray();
+	}
+
+	private static byte[] generateCaller(int methods, int callsPerMethod)
+	{
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		writer.visit(V1_8, ACC_PUBLIC, CALLER, null, "java/lang/Object", null);
+		for (int m = 0; m < methods; m++)
+		{
+			MethodVisitor method = writer.visitMethod(ACC_PUBLIC | ACC_STATIC, "method" + m, "()V", null, null);
+			method.visitCode();
+			for (int c = 0; c < callsPerMethod; c++)
+			{
+				method.visitIntInsn(SIPUSH, 1000 + c % 8);
+				method.visitMethodInsn(INVOKESTATIC, TARGET, "consume", "(I)V", false);
+			}
+			method.visitInsn(RETURN);
+			method.visitMaxs(0, 0);
+			method.visitEnd();
+		}
+		writer.visitEnd();
+		return writer.toByteArray();
+	}
+
+	private class BenchmarkClassResolver implements IClassResolver
+	{
+		private final Map<String, ClassNode> nodes = new HashMap<>();
+
+		@Override
+		public ClassReader resolveClassReader(String binaryName) throws ClassResolutionException
+		{
+			byte[] bytes = classes.get(binaryName);
+			if (bytes == null)
+				throw new ClassResolutionException(binaryName);
+			return new ClassReader(bytes);
+		}
+
+		@Override
+		public ClassNode resolveClassNode(String binaryName) throws ClassResolutionException
+		{
+			return nodes.computeIfAbsent(binaryName, name ->
+			{
+				ClassNode node = new ClassNode();
+				resolveClassReader(name).accept(node, 0);
+				return node;
+			});
+		}
+	}
+}
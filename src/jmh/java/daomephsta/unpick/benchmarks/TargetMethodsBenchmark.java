@@ -0,0 +1,90 @@
+package daomephsta.unpick.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+import org.openjdk.jmh.annotations.*;
+
+import daomephsta.unpick.api.IClassResolver;
+import daomephsta.unpick.impl.representations.TargetMethods;
+
+/**
+ * Measures target method lookups, as made several times for each literal usage.
+ * Run with {@code -prof gc}: {@code gc.alloc.rate.norm} should be 0 B/op for every benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TargetMethodsBenchmark
+{
+	private static final String OWNER = "benchmark/Target";
+
+	@Param({"16", "1024"})
+	public int targetMethodCount;
+
+	private TargetMethods targetMethods;
+	private String hitName,
+				   missName;
+	private final String descriptor = "(II)V";
+
+	@Setup
+	public void setup()
+	{
+		TargetMethods.Builder builder = TargetMethods.builder(new UnresolvableClassResolver());
+		for (int i = 0; i < targetMethodCount; i++)
+		{
+			builder.targetMethod(OWNER, "target" + i, Type.getMethodType(descriptor))
+				.parameterGroup(1, "group" + i)
+				.add();
+		}
+		this.targetMethods = builder.build();
+		// Copies, so lookups cannot rely on reference equality with the keys
+		this.hitName = new String("target" + (targetMethodCount / 2));
+		this.missName = new String("untargeted");
+	}
+
+	@Benchmark
+	public boolean targetsHit()
+	{
+		return targetMethods.targets(OWNER, hitName, descriptor);
+	}
+
+	@Benchmark
+	public boolean targetsMiss()
+	{
+		return targetMethods.targets(OWNER, missName, descriptor);
+	}
+
+	@Benchmark
+	public boolean targetsParameter()
+	{
+		return targetMethods.targetsParameter(OWNER, hitName, descriptor, 1);
+	}
+
+	@Benchmark
+	public String getParameterConstantGroup()
+	{
+		return targetMethods.getParameterConstantGroup(OWNER, hitName, descriptor, 1);
+	}
+
+	// Every lookup is by the declaring class, so no classes are resolved
+	private static class UnresolvableClassResolver implements IClassResolver
+	{
+		@Override
+		public ClassReader resolveClassReader(String internalName) throws ClassResolutionException
+		{
+			throw new ClassResolutionException("Failed to find " + internalName);
+		}
+
+		@Override
+		public ClassNode resolveClassNode(String internalName) throws ClassResolutionException
+		{
+			throw new ClassResolutionException("Failed to find " + internalName);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package daomephsta.unpick.benchmarks;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.tree.ClassNode;
+import org.openjdk.jmh.annotations.*;
+
+import daomephsta.unpick.api.ConstantUninliner;
+import daomephsta.unpick.api.IClassResolver;
+import daomephsta.unpick.api.constantmappers.ConstantMappers;
+import daomephsta.unpick.api.constantmappers.IConstantMapper;
+import daomephsta.unpick.api.constantresolvers.ConstantResolvers;
+import daomephsta.unpick.api.constantresolvers.IConstantResolver;
+import daomephsta.unpick.impl.UninliningClassResolver;
+
+/**
+ * Measures the latency of resolving an uninlined class on demand. Sampled, so that
+ * the percentiles of each benchmark are reported.
+ * <ul>
+ * <li>{@code cold}: the first request to a new uninliner, with empty caches</li>
+ * <li>{@code sharedCaches}: the first request for a class, after the uninliner has uninlined another class</li>
+ * <li>{@code warm}: a repeated request, answered from the cache</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UninliningClassResolverBenchmark
+{
+	private static final String CONSTANTS = "benchmark/Constants",
+								TARGET = "benchmark/Target",
+								CALLER = "benchmark/Caller",
+								OTHER_CALLER = "benchmark/OtherCaller";
+
+	private final Map<String, byte[]> classes = new HashMap<>();
+	private byte[] definitions;
+	private UninliningClassResolver uninlined;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		classes.put(CONSTANTS, generateConstants());
+		classes.put(TARGET, generateTarget());
+		classes.put(CALLER, generateCaller(CALLER));
+		classes.put(OTHER_CALLER, generateCaller(OTHER_CALLER));
+		StringBuilder definitions = new StringBuilder("v2\n\n");
+		for (int i = 0; i < 8; i++)
+			definitions.append("constant benchmark ").append(CONSTANTS).append(" C").append(i).append('\n');
+		definitions.append("\ntarget_method ").append(TARGET).append(" consume (I)V\n\tparam 0 benchmark\n");
+		this.definitions = definitions.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@State(Scope.Thread)
+	public static class Cold
+	{
+		UninliningClassResolver uninlined;
+
+		@Setup(Level.Invocation)
+		public void setup(UninliningClassResolverBenchmark benchmark)
+		{
+			uninlined = benchmark.createUninliningClassResolver();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class SharedCaches
+	{
+		UninliningClassResolver uninlined;
+
+		@Setup(Level.Invocation)
+		public void setup(UninliningClassResolverBenchmark benchmark)
+		{
+			uninlined = benchmark.createUninliningClassResolver();
+			uninlined.resolveClassNode(OTHER_CALLER);
+		}
+	}
+
+	@Benchmark
+	public ClassNode cold(Cold state)
+	{
+		return state.uninlined.resolveClassNode(CALLER);
+	}
+
+	@Benchmark
+	public ClassNode sharedCaches(SharedCaches state)
+	{
+		return state.uninlined.resolveClassNode(CALLER);
+	}
+
+	@Benchmark
+	public ClassNode warm()
+	{
+		if (uninlined == null)
+			uninlined = createUninliningClassResolver();
+		return uninlined.resolveClassNode(CALLER);
+	}
+
+	private UninliningClassResolver createUninliningClassResolver()
+	{
+		IClassResolver classResolver = new BenchmarkClassResolver();
+		IConstantResolver constantResolver = ConstantResolvers.bytecodeAnalysis(classResolver);
+		IConstantMapper mapper = ConstantMappers.dataDriven(classResolver, constantResolver, new ByteArrayInputStream(definitions));
+		return ConstantUninliner.builder(classResolver, mapper, constantResolver)
+			.build()
+			.uninliningClassResolver(16);
+	}
+
+	private static byte[] generateConstants()
+	{
+		ClassWriter writer = new ClassWriter(0);
+		writer.visit(V1_8, ACC_PUBLIC, CONSTANTS, null, "java/lang/Object", null);
+		for (int i = 0; i < 8; i++)
+			writer.visitField(ACC_PUBLIC | ACC_STATIC | ACC_FINAL, "C" + i, "I", null, 1000 + i).visitEnd();
+		writer.visitEnd();
+		return writer.toByteArray();
+	}
+
+	private static byte[] generateTarget()
+	{
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		writer.visit(V1_8, ACC_PUBLIC, TARGET, null, "java/lang/Object", null);
+		MethodVisitor consume = writer.visitMethod(ACC_PUBLIC | ACC_STATIC, "consume", "(I)V", null, null);
+		consume.visitCode();
+		consume.visitInsn(RETURN);
+		consume.visitMaxs(0, 0);
+		consume.visitEnd();
+		writer.visitEnd();
+		return writer.toByteArray();
+	}
+
+	private static byte[] generateCaller(String name)
+	{
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		writer.visit(V1_8, ACC_PUBLIC, name, null, "java/lang/Object", null);
+		for (int m = 0; m < 16; m++)
+		{
+			MethodVisitor method = writer.visitMethod(ACC_PUBLIC | ACC_STATIC, "method" + m, "()V", null, null);
+			method.visitCode();
+			for (int c = 0; c < 32; c++)
+			{
+				method.visitIntInsn(SIPUSH, 1000 + c % 8);
+				method.visitMethodInsn(INVOKESTATIC, TARGET, "consume", "(I)V", false);
+			}
+			method.visitInsn(RETURN);
+			method.visitMaxs(0, 0);
+			method.visitEnd();
+		}
+		writer.visitEnd();
+		return writer.toByteArray();
+	}
+
+	private class BenchmarkClassResolver implements IClassResolver
+	{
+		private final Map<String, ClassNode> nodes = new HashMap<>();
+
+		@Override
+		public ClassReader resolveClassReader(String binaryName) throws ClassResolutionException
+		{
+			byte[] bytes = classes.get(binaryName);
+			if (bytes == null)
+				throw new ClassResolutionException(binaryName);
+			return new ClassReader(bytes);
+		}
+
+		@Override
+		public ClassNode resolveClassNode(String binaryName) throws ClassResolutionException
+		{
+			return nodes.computeIfAbsent(binaryName, name ->
+			{
+				ClassNode node = new ClassNode();
+				resolveClassReader(name).accept(node, 0);
+				return node;
+			});
+		}
+	}
+}
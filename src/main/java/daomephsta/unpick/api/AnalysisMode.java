@@ -0,0 +1,32 @@
+package daomephsta.unpick.api;
+
+/**
+ * Controls how {@link ConstantUninliner} analyses the methods it transforms
+ * @author Daomephsta
+ */
+public enum AnalysisMode
+{
+	/**
+	 * Analyses the whole method and keeps the frame of every instruction
+	 * until the method has been transformed.
+	 */
+	FULL,
+	/**
+	 * Analyses the whole method, but only keeps the frames after literals and
+	 * at method invocations and returns. The rest are dropped as soon as analysis
+	 * finishes, which lowers peak memory usage for very large methods.
+	 * {@link daomephsta.unpick.impl.representations.ReplacementInstructionGenerator.Context#getFrameForInstruction(org.objectweb.asm.tree.AbstractInsnNode)
+	 * Context.getFrameForInstruction} returns null for any other instruction.
+	 */
+	SPARSE_FRAMES,
+	/**
+	 * Only analyses the instructions that compute the arguments of targeted method invocations
+	 * and lambda captures, and the return values of targeted methods, by walking backwards from them.
+	 * Methods that contain none of these are skipped without analysis. Methods where one of these values
+	 * passes through a local variable, a stack shuffling instruction, or a control flow merge, or where a
+	 * targeted parameter or return value must be followed forwards, fall back to {@link #SPARSE_FRAMES}.
+	 * {@link daomephsta.unpick.impl.representations.ReplacementInstructionGenerator.Context#getFrameForInstruction(org.objectweb.asm.tree.AbstractInsnNode)
+	 * Context.getFrameForInstruction} returns null for every instruction of methods that did not fall back.
+	 */
+	BACKWARD_SLICE
+}
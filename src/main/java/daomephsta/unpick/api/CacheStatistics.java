@@ -0,0 +1,48 @@
+package daomephsta.unpick.api;
+
+/**
+ * A snapshot of the number of hits and misses of a cache
+ * @author Daomephsta
+ */
+public final class CacheStatistics
+{
+	private final long hits,
+					   misses;
+
+	public CacheStatistics(long hits, long misses)
+	{
+		this.hits = hits;
+		this.misses = misses;
+	}
+
+	/**
+	 * @return the number of lookups answered by the cache
+	 */
+	public long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * @return the number of lookups that had to be computed
+	 */
+	public long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * @return the fraction of lookups answered by the cache, or 0 if there were none
+	 */
+	public double getHitRate()
+	{
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%d hits, %d misses (%.1f%% hit rate)", hits, misses, getHitRate() * 100);
+	}
+}
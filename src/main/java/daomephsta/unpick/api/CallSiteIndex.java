@@ -0,0 +1,726 @@
+package daomephsta.unpick.api;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+
+/**
+ * An index of the methods each class of a jar references and declares, and of its invokedynamic sites,
+ * built by scanning constant pools. The index is stored in a compact binary form that can be written
+ * to a file and memory mapped when it is read back, so opening even a large index is cheap.
+ * @author Daomephsta
+ */
+public final class CallSiteIndex
+{
+	private static final int MAGIC = 0x55504B49, // "UPKI"
+							 VERSION = 2,
+							 HEADER_SIZE = 24,
+							 NONE = -1;
+	private static final int CONSTANT_METHODREF = 10,
+							 CONSTANT_INTERFACE_METHODREF = 11,
+							 CONSTANT_INVOKE_DYNAMIC = 18;
+	private final ByteBuffer buffer;
+	private final int stringCount,
+					  methodCount,
+					  classCount,
+					  source,
+					  methodTable,
+					  classTable;
+	// Built on first use, as most uses of an index never look lambdas up by implementation
+	private volatile Map<String, List<InvokeDynamicSite>> lambdaSites;
+
+	private CallSiteIndex(ByteBuffer buffer) throws IOException
+	{
+		this.buffer = buffer;
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException("Not a call site index");
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException("Unsupported call site index version " + buffer.getInt(4));
+		this.stringCount = buffer.getInt(8);
+		this.methodCount = buffer.getInt(12);
+		this.classCount = buffer.getInt(16);
+		this.source = buffer.getInt(20);
+		this.methodTable = HEADER_SIZE + 4 * stringCount;
+		this.classTable = methodTable + 12 * methodCount;
+	}
+
+	/**
+	 * Builds an index by scanning the constant pools of {@code classFiles} in parallel
+	 * @param classFiles the class files to index. If several have the same name, only the first is indexed.
+	 * @param forkJoinPool the pool to scan class files in
+	 * @return an index of {@code classFiles}
+	 */
+	public static CallSiteIndex build(Collection<byte[]> classFiles, ForkJoinPool forkJoinPool)
+	{
+		return build(classFiles, forkJoinPool, null);
+	}
+
+	/**
+	 * Builds an index by scanning the constant pools of {@code classFiles} in parallel
+	 * @param classFiles the class files to index. If several have the same name, only the first is indexed.
+	 * @param forkJoinPool the pool to scan class files in
+	 * @param source identifies what {@code classFiles} were read from, such as a hash of their jar,
+	 * so that readers of a stored index can tell whether it is stale. May be null.
+	 * @return an index of {@code classFiles}
+	 */
+	public static CallSiteIndex build(Collection<byte[]> classFiles, ForkJoinPool forkJoinPool, String source)
+	{
+		List<ScannedClass> scanned = forkJoinPool.submit(() -> classFiles.parallelStream()
+			.map(CallSiteIndex::scan)
+			.collect(Collectors.toList()))
+			.join();
+		try
+		{
+			return new CallSiteIndex(new Encoder(scanned, source).encode());
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Encoded an invalid index", e);
+		}
+	}
+
+	/**
+	 * Memory maps an index written by {@link #write(Path)}
+	 * @param file the file to read
+	 * @return the index stored in {@code file}
+	 * @throws IOException if {@code file} cannot be read or is not an index
+	 */
+	public static CallSiteIndex read(Path file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			// The mapping stays valid after the channel is closed
+			return new CallSiteIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Writes this index to {@code file}, replacing it if it exists
+	 * @param file the file to write
+	 * @throws IOException if {@code file} cannot be written
+	 */
+	public void write(Path file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			ByteBuffer contents = buffer.duplicate();
+			contents.rewind();
+			while (contents.hasRemaining())
+				channel.write(contents);
+		}
+	}
+
+	/**
+	 * @return the source the index was built from, or null if none was given
+	 * @see #build(Collection, ForkJoinPool, String)
+	 */
+	public String getSource()
+	{
+		return source != NONE ? readString(source) : null;
+	}
+
+	/**
+	 * @return the number of indexed classes
+	 */
+	public int size()
+	{
+		return classCount;
+	}
+
+	/**
+	 * @return the internal names of the indexed classes, in order
+	 */
+	public List<String> getClassNames()
+	{
+		return new AbstractList<String>()
+		{
+			@Override
+			public String get(int index)
+			{
+				return readString(buffer.getInt(classTable + 8 * index));
+			}
+
+			@Override
+			public int size()
+			{
+				return classCount;
+			}
+		};
+	}
+
+	/**
+	 * @return the indexed classes, ordered by name
+	 */
+	public List<IndexedClass> getClasses()
+	{
+		return new AbstractList<IndexedClass>()
+		{
+			@Override
+			public IndexedClass get(int index)
+			{
+				return new IndexedClass(index);
+			}
+
+			@Override
+			public int size()
+			{
+				return classCount;
+			}
+		};
+	}
+
+	/**
+	 * @param internalName the internal name of a class
+	 * @return the indexed class named {@code internalName}, or null if it is not indexed
+	 */
+	public IndexedClass findClass(String internalName)
+	{
+		int low = 0,
+			high = classCount - 1;
+		while (low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			int comparison = readString(buffer.getInt(classTable + 8 * middle)).compareTo(internalName);
+			if (comparison < 0)
+				low = middle + 1;
+			else if (comparison > 0)
+				high = middle - 1;
+			else
+				return new IndexedClass(middle);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the internal names of the classes that reference the method {@code owner.name descriptor}, in order
+	 */
+	public List<String> findReferencingClasses(String owner, String name, String descriptor)
+	{
+		MethodReference method = new MethodReference(owner, name, descriptor);
+		List<String> referencing = new ArrayList<>();
+		for (IndexedClass indexedClass : getClasses())
+		{
+			if (indexedClass.getMethodReferences().contains(method))
+				referencing.add(indexedClass.getName());
+		}
+		return referencing;
+	}
+
+	/**
+	 * @return the sites of every indexed class that create a lambda implemented by a method of {@code implementationOwner},
+	 * in order
+	 */
+	public List<InvokeDynamicSite> findLambdaSites(String implementationOwner)
+	{
+		Map<String, List<InvokeDynamicSite>> lambdaSites = this.lambdaSites;
+		if (lambdaSites == null)
+		{
+			// Threads that race build equal maps, so either may be kept
+			lambdaSites = new HashMap<>();
+			for (IndexedClass indexedClass : getClasses())
+			{
+				for (InvokeDynamicSite site : indexedClass.getInvokeDynamicSites())
+				{
+					if (site.getLambdaMethod() != null)
+						lambdaSites.computeIfAbsent(site.getImplementation().getOwner(), k -> new ArrayList<>()).add(site);
+				}
+			}
+			this.lambdaSites = lambdaSites;
+		}
+		return Collections.unmodifiableList(lambdaSites.getOrDefault(implementationOwner, Collections.emptyList()));
+	}
+
+	private String readString(int id)
+	{
+		int offset = buffer.getInt(HEADER_SIZE + 4 * id);
+		byte[] bytes = new byte[buffer.getInt(offset)];
+		ByteBuffer source = buffer.duplicate();
+		source.position(offset + 4);
+		source.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private MethodReference readMethod(int id)
+	{
+		if (id == NONE)
+			return null;
+		int offset = methodTable + 12 * id;
+		return new MethodReference(readString(buffer.getInt(offset)), readString(buffer.getInt(offset + 4)),
+			readString(buffer.getInt(offset + 8)));
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("CallSiteIndex [%d classes, %d methods]", classCount, methodCount);
+	}
+
+	/**
+	 * The methods a class references and declares, and its invokedynamic sites
+	 */
+	public final class IndexedClass
+	{
+		private final int index;
+
+		private IndexedClass(int index)
+		{
+			this.index = index;
+		}
+
+		/**
+		 * @return the internal name of the class
+		 */
+		public String getName()
+		{
+			return readString(buffer.getInt(classTable + 8 * index));
+		}
+
+		/**
+		 * @return the methods referenced by the constant pool of the class,
+		 * whether they are invoked or only used by method handles
+		 */
+		public List<MethodReference> getMethodReferences()
+		{
+			return readMethods(record());
+		}
+
+		/**
+		 * @return the methods declared by the class
+		 */
+		public List<MethodReference> getDeclaredMethods()
+		{
+			int references = record();
+			return readMethods(references + 4 + 4 * buffer.getInt(references));
+		}
+
+		/**
+		 * @return the invokedynamic sites of the class
+		 */
+		public List<InvokeDynamicSite> getInvokeDynamicSites()
+		{
+			int references = record();
+			int declared = references + 4 + 4 * buffer.getInt(references);
+			int sites = declared + 4 + 4 * buffer.getInt(declared);
+			List<InvokeDynamicSite> invokeDynamicSites = new ArrayList<>(buffer.getInt(sites));
+			for (int i = 0; i < buffer.getInt(sites); i++)
+			{
+				int site = sites + 4 + 20 * i;
+				invokeDynamicSites.add(new InvokeDynamicSite(readString(buffer.getInt(site)), readString(buffer.getInt(site + 4)),
+					readMethod(buffer.getInt(site + 8)), readMethod(buffer.getInt(site + 12)), readMethod(buffer.getInt(site + 16))));
+			}
+			return invokeDynamicSites;
+		}
+
+		private int record()
+		{
+			return buffer.getInt(classTable + 8 * index + 4);
+		}
+
+		private List<MethodReference> readMethods(int offset)
+		{
+			int count = buffer.getInt(offset);
+			List<MethodReference> methods = new ArrayList<>(count);
+			for (int i = 0; i < count; i++)
+				methods.add(readMethod(buffer.getInt(offset + 4 + 4 * i)));
+			return methods;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("IndexedClass [%s]", getName());
+		}
+	}
+
+	/**
+	 * A method, identified by its owner, name and descriptor
+	 */
+	public static final class MethodReference
+	{
+		private final String owner,
+							 name,
+							 descriptor;
+
+		public MethodReference(String owner, String name, String descriptor)
+		{
+			this.owner = owner;
+			this.name = name;
+			this.descriptor = descriptor;
+		}
+
+		/**
+		 * @return the internal name of the class that owns the method
+		 */
+		public String getOwner()
+		{
+			return owner;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public String getDescriptor()
+		{
+			return descriptor;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash(descriptor, name, owner);
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (this == obj) return true;
+			if (!(obj instanceof MethodReference)) return false;
+			MethodReference other = (MethodReference) obj;
+			return Objects.equals(descriptor, other.descriptor) &&
+				   Objects.equals(name, other.name) &&
+				   Objects.equals(owner, other.owner);
+		}
+
+		@Override
+		public String toString()
+		{
+			return owner + '.' + name + descriptor;
+		}
+	}
+
+	/**
+	 * An invokedynamic site, and the lambda it creates if it is a {@code LambdaMetafactory.metafactory} site
+	 */
+	public static final class InvokeDynamicSite
+	{
+		private final String name,
+							 descriptor;
+		private final MethodReference bootstrapMethod,
+									  lambdaMethod,
+									  implementation;
+
+		private InvokeDynamicSite(String name, String descriptor, MethodReference bootstrapMethod,
+			MethodReference lambdaMethod, MethodReference implementation)
+		{
+			this.name = name;
+			this.descriptor = descriptor;
+			this.bootstrapMethod = bootstrapMethod;
+			this.lambdaMethod = lambdaMethod;
+			this.implementation = implementation;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public String getDescriptor()
+		{
+			return descriptor;
+		}
+
+		public MethodReference getBootstrapMethod()
+		{
+			return bootstrapMethod;
+		}
+
+		/**
+		 * @return the functional interface method implemented by the lambda, or null if this site does not create a lambda
+		 */
+		public MethodReference getLambdaMethod()
+		{
+			return lambdaMethod;
+		}
+
+		/**
+		 * @return the method that implements the lambda, or null if this site does not create a lambda
+		 */
+		public MethodReference getImplementation()
+		{
+			return implementation;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("InvokeDynamicSite [%s%s, bootstrap method: %s, implementation: %s]",
+				name, descriptor, bootstrapMethod, implementation);
+		}
+	}
+
+	private static ScannedClass scan(byte[] classFile)
+	{
+		ClassReader classReader = new ClassReader(classFile);
+		char[] charBuffer = new char[classReader.getMaxStringLength()];
+		ScannedClass scanned = new ScannedClass(classReader.getClassName());
+		List<Integer> invokeDynamics = new ArrayList<>();
+		for (int i = 1; i < classReader.getItemCount(); i++)
+		{
+			int offset = classReader.getItem(i);
+			// The second slot of a long or double constant has no offset
+			if (offset == 0)
+				continue;
+			int tag = classReader.readByte(offset - 1);
+			if (tag == CONSTANT_METHODREF || tag == CONSTANT_INTERFACE_METHODREF)
+				scanned.methodReferences.add(readMemberReference(classReader, offset, charBuffer));
+			else if (tag == CONSTANT_INVOKE_DYNAMIC)
+				invokeDynamics.add(offset);
+		}
+
+		int[] bootstrapMethods = scanMembers(classReader, scanned, charBuffer);
+		for (int offset : invokeDynamics)
+		{
+			int nameAndType = classReader.getItem(classReader.readUnsignedShort(offset + 2));
+			String name = classReader.readUTF8(nameAndType, charBuffer);
+			String descriptor = classReader.readUTF8(nameAndType + 2, charBuffer);
+			int bootstrapMethod = bootstrapMethods[classReader.readUnsignedShort(offset)];
+			MethodReference bootstrapHandle = readHandle(classReader, classReader.readUnsignedShort(bootstrapMethod), charBuffer);
+			MethodReference lambdaMethod = null,
+							implementation = null;
+			// Matches the lambdas ConstantUninliner can transform the bodies of
+			if (bootstrapHandle.getOwner().equals("java/lang/invoke/LambdaMetafactory") &&
+				bootstrapHandle.getName().equals("metafactory") && classReader.readUnsignedShort(bootstrapMethod + 2) >= 3)
+			{
+				String samOwner = Type.getMethodType(descriptor).getReturnType().getInternalName();
+				int samType = classReader.getItem(classReader.readUnsignedShort(bootstrapMethod + 4));
+				lambdaMethod = new MethodReference(samOwner, name, classReader.readUTF8(samType, charBuffer));
+				implementation = readHandle(classReader, classReader.readUnsignedShort(bootstrapMethod + 6), charBuffer);
+			}
+			scanned.invokeDynamicSites.add(new InvokeDynamicSite(name, descriptor, bootstrapHandle, lambdaMethod, implementation));
+		}
+		return scanned;
+	}
+
+	/**
+	 * Walks the fields, methods and attributes of the class file, adding each declared method to {@code scanned}
+	 * @return the offset of each entry of the BootstrapMethods attribute
+	 */
+	private static int[] scanMembers(ClassReader classReader, ScannedClass scanned, char[] charBuffer)
+	{
+		int offset = classReader.header + 6;
+		offset += 2 + 2 * classReader.readUnsignedShort(offset);
+		// Fields, then methods
+		for (int kind = 0; kind < 2; kind++)
+		{
+			int count = classReader.readUnsignedShort(offset);
+			offset += 2;
+			for (int i = 0; i < count; i++)
+			{
+				if (kind == 1)
+				{
+					scanned.declaredMethods.add(new MethodReference(scanned.name,
+						classReader.readUTF8(offset + 2, charBuffer), classReader.readUTF8(offset + 4, charBuffer)));
+				}
+				offset = skipAttributes(classReader, offset + 6);
+			}
+		}
+		int attributes = classReader.readUnsignedShort(offset);
+		offset += 2;
+		for (int i = 0; i < attributes; i++)
+		{
+			if (classReader.readUTF8(offset, charBuffer).equals("BootstrapMethods"))
+			{
+				int[] bootstrapMethods = new int[classReader.readUnsignedShort(offset + 6)];
+				int bootstrapMethod = offset + 8;
+				for (int j = 0; j < bootstrapMethods.length; j++)
+				{
+					bootstrapMethods[j] = bootstrapMethod;
+					bootstrapMethod += 4 + 2 * classReader.readUnsignedShort(bootstrapMethod + 2);
+				}
+				return bootstrapMethods;
+			}
+			offset += 6 + classReader.readInt(offset + 2);
+		}
+		return new int[0];
+	}
+
+	/**
+	 * @param offset the offset of the attributes_count of a field or method
+	 * @return the offset after the attributes
+	 */
+	private static int skipAttributes(ClassReader classReader, int offset)
+	{
+		int count = classReader.readUnsignedShort(offset);
+		offset += 2;
+		for (int i = 0; i < count; i++)
+			offset += 6 + classReader.readInt(offset + 2);
+		return offset;
+	}
+
+	private static MethodReference readHandle(ClassReader classReader, int constantIndex, char[] charBuffer)
+	{
+		// Skips the reference kind
+		int reference = classReader.readUnsignedShort(classReader.getItem(constantIndex) + 1);
+		return readMemberReference(classReader, classReader.getItem(reference), charBuffer);
+	}
+
+	private static MethodReference readMemberReference(ClassReader classReader, int offset, char[] charBuffer)
+	{
+		int nameAndType = classReader.getItem(classReader.readUnsignedShort(offset + 2));
+		return new MethodReference(classReader.readClass(offset, charBuffer),
+			classReader.readUTF8(nameAndType, charBuffer), classReader.readUTF8(nameAndType + 2, charBuffer));
+	}
+
+	private static class ScannedClass
+	{
+		final String name;
+		final List<MethodReference> methodReferences = new ArrayList<>(),
+									declaredMethods = new ArrayList<>();
+		final List<InvokeDynamicSite> invokeDynamicSites = new ArrayList<>();
+
+		ScannedClass(String name)
+		{
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Encodes scanned classes as a big endian buffer of
+	 * <ul>
+	 * <li>a header of the magic number, version, string count, method count and class count</li>
+	 * <li>the offset of each string</li>
+	 * <li>the owner, name and descriptor string ids of each method</li>
+	 * <li>the name string id and record offset of each class, ordered by name</li>
+	 * <li>the record of each class, which is its method reference ids, declared method ids and invokedynamic sites,
+	 * each preceded by a count. A site is its name and descriptor string ids, then its bootstrap method, lambda method
+	 * and implementation method ids, with -1 for none.</li>
+	 * <li>each string, as its length and UTF-8 bytes</li>
+	 * </ul>
+	 */
+	private static class Encoder
+	{
+		private final Map<String, ScannedClass> classes = new TreeMap<>();
+		private final Map<String, Integer> stringIds = new HashMap<>();
+		private final List<byte[]> strings = new ArrayList<>();
+		private final Map<MethodReference, Integer> methodIds = new HashMap<>();
+		private final List<MethodReference> methods = new ArrayList<>();
+		private final String source;
+
+		Encoder(List<ScannedClass> scanned, String source)
+		{
+			for (ScannedClass scannedClass : scanned)
+				classes.putIfAbsent(scannedClass.name, scannedClass);
+			this.source = source;
+		}
+
+		ByteBuffer encode()
+		{
+			int sourceId = source != null ? stringId(source) : NONE;
+			List<int[]> records = new ArrayList<>(classes.size());
+			int recordsSize = 0;
+			for (ScannedClass scannedClass : classes.values())
+			{
+				int[] record = encodeRecord(scannedClass);
+				records.add(record);
+				recordsSize += 4 * record.length;
+			}
+			int[] classNames = new int[classes.size()];
+			int i = 0;
+			for (String className : classes.keySet())
+				classNames[i++] = stringId(className);
+
+			int recordTable = HEADER_SIZE + 4 * strings.size() + 12 * methods.size() + 8 * classes.size();
+			int stringData = recordTable + recordsSize;
+			int size = stringData;
+			for (byte[] string : strings)
+				size += 4 + string.length;
+
+			ByteBuffer buffer = ByteBuffer.allocate(size);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(strings.size()).putInt(methods.size()).putInt(classes.size())
+				.putInt(sourceId);
+			int stringOffset = stringData;
+			for (byte[] string : strings)
+			{
+				buffer.putInt(stringOffset);
+				stringOffset += 4 + string.length;
+			}
+			for (MethodReference method : methods)
+			{
+				buffer.putInt(stringIds.get(method.getOwner()))
+					.putInt(stringIds.get(method.getName()))
+					.putInt(stringIds.get(method.getDescriptor()));
+			}
+			int recordOffset = recordTable;
+			for (i = 0; i < classNames.length; i++)
+			{
+				buffer.putInt(classNames[i]).putInt(recordOffset);
+				recordOffset += 4 * records.get(i).length;
+			}
+			for (int[] record : records)
+			{
+				for (int value : record)
+					buffer.putInt(value);
+			}
+			for (byte[] string : strings)
+				buffer.putInt(string.length).put(string);
+			buffer.flip();
+			return buffer;
+		}
+
+		private int[] encodeRecord(ScannedClass scannedClass)
+		{
+			int[] record = new int[3 + scannedClass.methodReferences.size() + scannedClass.declaredMethods.size()
+				+ 5 * scannedClass.invokeDynamicSites.size()];
+			int i = 0;
+			record[i++] = scannedClass.methodReferences.size();
+			for (MethodReference method : scannedClass.methodReferences)
+				record[i++] = methodId(method);
+			record[i++] = scannedClass.declaredMethods.size();
+			for (MethodReference method : scannedClass.declaredMethods)
+				record[i++] = methodId(method);
+			record[i++] = scannedClass.invokeDynamicSites.size();
+			for (InvokeDynamicSite site : scannedClass.invokeDynamicSites)
+			{
+				record[i++] = stringId(site.getName());
+				record[i++] = stringId(site.getDescriptor());
+				record[i++] = methodId(site.getBootstrapMethod());
+				record[i++] = methodId(site.getLambdaMethod());
+				record[i++] = methodId(site.getImplementation());
+			}
+			return record;
+		}
+
+		private int methodId(MethodReference method)
+		{
+			if (method == null)
+				return NONE;
+			return methodIds.computeIfAbsent(method, k ->
+			{
+				stringId(method.getOwner());
+				stringId(method.getName());
+				stringId(method.getDescriptor());
+				methods.add(method);
+				return methods.size() - 1;
+			});
+		}
+
+		private int stringId(String string)
+		{
+			return stringIds.computeIfAbsent(string, k ->
+			{
+				strings.add(string.getBytes(StandardCharsets.UTF_8));
+				return strings.size() - 1;
+			});
+		}
+	}
+}
@@ -1,17 +1,36 @@
 package daomephsta.unpick.api;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.InvokeDynamicInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
@@ -20,9 +39,16 @@ import org.objectweb.asm.tree.analysis.AnalyzerException;
 import org.objectweb.asm.tree.analysis.Frame;
 
 import daomephsta.unpick.api.constantmappers.IConstantMapper;
+import daomephsta.unpick.api.constantmappers.IResolvingConstantMapper;
 import daomephsta.unpick.api.constantresolvers.IConstantResolver;
 import daomephsta.unpick.impl.AbstractInsnNodes;
+import daomephsta.unpick.impl.BatchScheduler;
+import daomephsta.unpick.impl.BackwardSlicer;
+import daomephsta.unpick.impl.MethodFrames;
+import daomephsta.unpick.impl.PeepholeMethodNode;
+import daomephsta.unpick.impl.StackEffects;
 import daomephsta.unpick.impl.UnpickInterpreter;
+import daomephsta.unpick.impl.UninliningClassResolver;
 import daomephsta.unpick.impl.UnpickValue;
 import daomephsta.unpick.impl.representations.ReplacementInstructionGenerator.Context;
 import daomephsta.unpick.impl.representations.ReplacementSet;
@@ -36,11 +62,25 @@ import org.apache.logging.log4j.LogManager;
  */
 public class ConstantUninliner
 {
+	private static final int ESTIMATED_CLASS_SIZE = 16 * 1024;
 	private final Logger logger;
 	private final IClassResolver classResolver;
 	private final IConstantMapper mapper;
 	private final IConstantResolver constantResolver;
-	private final Map<MethodTriple, MethodTriple> lambdaSAMs = new HashMap<>();
+	private final AnalysisMode analysisMode;
+	private final ForkJoinPool forkJoinPool;
+	private final FlagDecomposition flagDecomposition;
+	/* Lambda implementation -> functional interface method, for the classes transformed as ClassNodes and
+	 * through method visitors. Class visitors only use the lambdas of their class and index instead, so
+	 * that their result does not depend on the classes transformed before. Concurrent, as methods may be transformed in parallel. */
+	private final Map<MethodTriple, MethodTriple> lambdaSAMs = new ConcurrentHashMap<>();
+	private final Map<ClassNode, ClassIndex> classIndices = Collections.synchronizedMap(new WeakHashMap<>());
+	private final Set<MethodNode> transformedMethods = Collections.newSetFromMap(Collections.synchronizedMap(new WeakHashMap<>()));
+	/* Mappers for each targeted parameter and return, shared by every class that invokes the same method.
+	 * Keyed by the exact owner of each call, as whether it is targeted depends on the hierarchy of the owner. */
+	private final Map<CallSite, Consumer<Context>> callSiteMappers = new ConcurrentHashMap<>();
+	private final LongAdder callSiteHits = new LongAdder(),
+							callSiteMisses = new LongAdder();
 
 	/**
 	 * Constructs a new instance of ConstantUninliner that maps
@@ -66,10 +106,40 @@ public class ConstantUninliner
 	 */
 	public ConstantUninliner(IClassResolver classResolver, IConstantMapper mapper, IConstantResolver constantResolver, Logger logger)
 	{
-		this.classResolver = classResolver;
-		this.mapper = mapper;
-		this.constantResolver = constantResolver;
-		this.logger = logger;
+		this(builder(classResolver, mapper, constantResolver).logger(logger));
+	}
+
+	private ConstantUninliner(Builder builder)
+	{
+		this.classResolver = builder.classResolver;
+		this.mapper = builder.mapper;
+		this.constantResolver = builder.constantResolver;
+		this.logger = builder.logger;
+		this.analysisMode = builder.analysisMode;
+		this.forkJoinPool = builder.forkJoinPool;
+		this.flagDecomposition = builder.flagDecomposition;
+	}
+
+	/**
+	 * Creates a builder for configuring a ConstantUninliner beyond what its constructors allow.
+	 * @param classResolver used to resolve target classes and the classes necessary to transform them
+	 * @param mapper an instance of IConstantMapper.
+	 * @param constantResolver an instance of IConstantResolver for resolving constant types and
+	 * values.
+	 * @return a new builder
+	 */
+	public static Builder builder(IClassResolver classResolver, IConstantMapper mapper, IConstantResolver constantResolver)
+	{
+		return new Builder(classResolver, mapper, constantResolver);
+	}
+
+	/**
+	 * @return the number of times the decision for a parameter or return of a method was reused
+	 * from another call site, and the number of times it had to be made.
+	 */
+	public CacheStatistics getCallSiteCacheStatistics()
+	{
+		return new CacheStatistics(callSiteHits.sum(), callSiteMisses.sum());
 	}
 
 	/**
@@ -80,13 +150,252 @@ public class ConstantUninliner
 	public ClassNode transform(String className)
 	{
 		ClassNode classNode = classResolver.resolveClassNode(className);
+		List<ScheduledMethod> methods = new ArrayList<>(classNode.methods.size());
 		for (MethodNode method : classNode.methods)
 		{
-			transformMethod(classNode, method);
+			methods.add(new ScheduledMethod(classNode, method));
 		}
+		transformAll(methods);
 		return classNode;
 	}
 
+	/**
+	 * Uninlines all inlined values in a class that the caller has already read. The class is not
+	 * resolved through the class resolver, which is only used for other classes, such as supertypes.
+	 * Neither {@code classBytes} nor the class it contains are retained.<br>
+	 * Methods are transformed as by {@link #classVisitor(ClassVisitor)}, so lambda bodies in other classes are not transformed.
+	 * @param classBytes the class file to transform
+	 * @return the transformed class file, and whether it differs from {@code classBytes}
+	 */
+	public TransformedClass transform(byte[] classBytes)
+	{
+		return transform(new ClassReader(classBytes), classBytes, null);
+	}
+
+	/**
+	 * Uninlines all inlined values in a class that the caller has already read, as by {@link #transform(byte[])}.
+	 * Lambda bodies of the class that are created by other classes of {@code index} are transformed
+	 * with knowledge of their functional interface method too, as by {@link #classVisitor(ClassVisitor, CallSiteIndex)}.
+	 * @param classBytes the class file to transform
+	 * @param index an index of the classes that may create lambdas implemented by the class
+	 * @return the transformed class file, and whether it differs from {@code classBytes}
+	 */
+	public TransformedClass transform(byte[] classBytes, CallSiteIndex index)
+	{
+		return transform(new ClassReader(classBytes), classBytes, index);
+	}
+
+	/**
+	 * Uninlines all inlined values in a class that the caller has already read, as by {@link #transform(byte[])}.
+	 * As the class file is not available, {@link TransformedClass#getBytes()} is always newly written.
+	 * @param classReader a class reader for the class to transform
+	 * @return the transformed class file, and whether it differs from the class read by {@code classReader}
+	 */
+	public TransformedClass transform(ClassReader classReader)
+	{
+		return transform(classReader, null, null);
+	}
+
+	/**
+	 * Creates a class resolver that resolves classes through the class resolver of this uninliner, and uninlines
+	 * them on first request. Uninlined classes are cached, so that classes can be uninlined on demand with low latency.
+	 * @param maximumSize the maximum number of uninlined classes to cache. The least recently used class is evicted
+	 * when the cache is full.
+	 * @return a class resolver for uninlined classes
+	 */
+	public UninliningClassResolver uninliningClassResolver(int maximumSize)
+	{
+		return new UninliningClassResolver(classResolver, this, maximumSize);
+	}
+
+	/**
+	 * @param originalBytes the class file read by {@code classReader}, or null if it is not available
+	 * @param index an index of the classes that may create lambdas implemented by the class, or null
+	 */
+	private TransformedClass transform(ClassReader classReader, byte[] originalBytes, CallSiteIndex index)
+	{
+		ClassWriter classWriter = new ClassWriter(classReader, ClassWriter.COMPUTE_MAXS);
+		UninliningClassVisitor uninliningVisitor = new UninliningClassVisitor(classWriter, index);
+		classReader.accept(uninliningVisitor, 0);
+		// Unchanged classes are returned as is, rather than written again
+		if (!uninliningVisitor.isChanged() && originalBytes != null)
+			return new TransformedClass(classReader.getClassName(), originalBytes, false);
+		return new TransformedClass(classReader.getClassName(), classWriter.toByteArray(), uninliningVisitor.isChanged());
+	}
+
+	/**
+	 * Uninlines all inlined values in a batch of class files, as by {@link #transform(byte[])}.
+	 * Each class is transformed on its own, as the lambda bodies of a class are transformed along with it,
+	 * so classes may be transformed in any order without transforming anything twice.
+	 * @param classFiles the class files to transform. Only iterated by one thread at a time.
+	 * @param executor the executor to transform classes on
+	 * @param maxBytesInFlight the maximum total size of the class files that may be
+	 * transformed or awaiting {@code callback} at once, or {@link Long#MAX_VALUE} for no limit.
+	 * More classes are only taken from {@code classFiles} as earlier ones complete, so this bounds
+	 * the memory used by inputs and results in flight.
+	 * @param callback receives each transformed class on the thread that transformed it
+	 * @return a future that completes when every class has been passed to {@code callback},
+	 * or completes exceptionally when a transformation or {@code callback} first throws
+	 */
+	public CompletableFuture<Void> transformAll(Iterable<byte[]> classFiles, Executor executor, long maxBytesInFlight,
+		Consumer<TransformedClass> callback)
+	{
+		return BatchScheduler.run(classFiles.iterator(), executor, maxBytesInFlight,
+			classBytes -> classBytes.length, this::transform, callback);
+	}
+
+	/**
+	 * Uninlines all inlined values in a batch of classes, read through the class resolver.
+	 * Classes are transformed as by {@link #transformAll(Iterable, Executor, long, Consumer)},
+	 * except that {@link TransformedClass#getBytes()} is always newly written.
+	 * @param classNames the binary names of the classes to transform. Only iterated by one thread at a time.
+	 * @param executor the executor to transform classes on
+	 * @param maxBytesInFlight the maximum total size of the classes that may be transformed or awaiting
+	 * {@code callback} at once, or {@link Long#MAX_VALUE} for no limit. Classes are not read until they are
+	 * transformed, so each is assumed to be 16 KiB.
+	 * @param callback receives each transformed class on the thread that transformed it
+	 * @return a future that completes when every class has been passed to {@code callback},
+	 * or completes exceptionally when a transformation or {@code callback} first throws
+	 */
+	public CompletableFuture<Void> transformAllNamed(Iterable<String> classNames, Executor executor, long maxBytesInFlight,
+		Consumer<TransformedClass> callback)
+	{
+		return BatchScheduler.run(classNames.iterator(), executor, maxBytesInFlight,
+			className -> ESTIMATED_CLASS_SIZE, className -> transform(classResolver.resolveClassReader(className)), callback);
+	}
+
+	/**
+	 * Decides which indexed classes may be changed by this uninliner, without reading them, and the order to transform them in.
+	 * A class may be changed if it references or declares a method that the mapper {@link IConstantMapper#mayTarget(String, String) may target},
+	 * or creates or implements a lambda for such a method. A class that creates lambdas implemented by another class that
+	 * may be changed is transformed before that class, so that lambda bodies transformed by {@link #transform(String)}
+	 * are transformed with knowledge of their functional interface method. {@link #transform(byte[], CallSiteIndex)}
+	 * reads them from the index instead, so it gives the same result in any order. Other classes can be copied as they are.
+	 * @param index an index of the classes to transform
+	 * @return the internal names of the indexed classes that may be changed, in the order to transform them
+	 */
+	public List<String> planTransformation(CallSiteIndex index)
+	{
+		Set<String> mayChange = new HashSet<>();
+		// Lambda implementation owner -> the other classes that create its lambdas
+		Map<String, Set<String>> lambdaCreators = new HashMap<>();
+		for (CallSiteIndex.IndexedClass indexedClass : index.getClasses())
+		{
+			String className = indexedClass.getName();
+			if (mayTargetAny(indexedClass.getMethodReferences()) || mayTargetAny(indexedClass.getDeclaredMethods()))
+				mayChange.add(className);
+			for (CallSiteIndex.InvokeDynamicSite site : indexedClass.getInvokeDynamicSites())
+			{
+				CallSiteIndex.MethodReference lambdaMethod = site.getLambdaMethod();
+				if (lambdaMethod == null)
+					continue;
+				String implementationOwner = site.getImplementation().getOwner();
+				if (mapper.mayTarget(lambdaMethod.getName(), lambdaMethod.getDescriptor()))
+				{
+					mayChange.add(className);
+					mayChange.add(implementationOwner);
+				}
+				if (!implementationOwner.equals(className))
+					lambdaCreators.computeIfAbsent(implementationOwner, k -> new HashSet<>()).add(className);
+			}
+		}
+		// Creating a lambda changes how its body is transformed, so its creators are transformed too
+		for (String className : new ArrayList<>(mayChange))
+			mayChange.addAll(lambdaCreators.getOrDefault(className, Collections.emptySet()));
+
+		List<String> plan = new ArrayList<>();
+		Set<String> scheduled = new HashSet<>();
+		for (String className : index.getClassNames())
+		{
+			if (mayChange.contains(className))
+				schedule(className, lambdaCreators, scheduled, plan);
+		}
+		return plan;
+	}
+
+	/**
+	 * Decides the share of {@link #planTransformation(CallSiteIndex)} that one of several processes should transform.
+	 * Classes connected by lambdas are always in the same shard, as the transformation of a lambda body depends on the
+	 * classes that create the lambda, so each shard transforms its classes exactly as a single process would.
+	 * The shards do not depend on the order of the index.
+	 * @param index an index of the classes to transform
+	 * @param shard the shard to plan, from 0 inclusive to {@code shardCount} exclusive
+	 * @param shardCount the number of shards
+	 * @return the internal names of the indexed classes in {@code shard} that may be changed, in the order to transform them
+	 */
+	public List<String> planTransformation(CallSiteIndex index, int shard, int shardCount)
+	{
+		if (shard < 0 || shard >= shardCount)
+			throw new IllegalArgumentException("Shard " + shard + " is not between 0 and " + shardCount);
+		// Class -> another class it is connected to by lambdas, forming trees rooted at the alphabetically first class
+		Map<String, String> components = new HashMap<>();
+		for (CallSiteIndex.IndexedClass indexedClass : index.getClasses())
+		{
+			for (CallSiteIndex.InvokeDynamicSite site : indexedClass.getInvokeDynamicSites())
+			{
+				// Lambdas implemented by unindexed classes cannot affect the transformation of an indexed class
+				if (site.getLambdaMethod() != null && index.findClass(site.getImplementation().getOwner()) != null)
+					connect(components, indexedClass.getName(), site.getImplementation().getOwner());
+			}
+		}
+
+		List<String> share = new ArrayList<>();
+		for (String className : planTransformation(index))
+		{
+			if (Math.floorMod(findComponent(components, className).hashCode(), shardCount) == shard)
+				share.add(className);
+		}
+		return share;
+	}
+
+	private static void connect(Map<String, String> components, String classA, String classB)
+	{
+		String rootA = findComponent(components, classA),
+			   rootB = findComponent(components, classB);
+		int comparison = rootA.compareTo(rootB);
+		if (comparison < 0)
+			components.put(rootB, rootA);
+		else if (comparison > 0)
+			components.put(rootA, rootB);
+	}
+
+	/**
+	 * @return the alphabetically first class connected to {@code className} by lambdas
+	 */
+	private static String findComponent(Map<String, String> components, String className)
+	{
+		String root = className;
+		for (String parent = components.get(root); parent != null; parent = components.get(root))
+			root = parent;
+		// Points the path directly at the root, so later lookups are shorter
+		for (String member = className; !member.equals(root);)
+			member = components.put(member, root);
+		return root;
+	}
+
+	private boolean mayTargetAny(List<CallSiteIndex.MethodReference> methods)
+	{
+		for (CallSiteIndex.MethodReference method : methods)
+		{
+			if (mapper.mayTarget(method.getName(), method.getDescriptor()))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds {@code className} to {@code plan}, after the classes that create its lambdas
+	 */
+	private static void schedule(String className, Map<String, Set<String>> lambdaCreators, Set<String> scheduled, List<String> plan)
+	{
+		// Also breaks cycles, where two classes create lambdas implemented by each other
+		if (!scheduled.add(className))
+			return;
+		for (String creator : lambdaCreators.getOrDefault(className, Collections.emptySet()))
+			schedule(creator, lambdaCreators, scheduled, plan);
+		plan.add(className);
+	}
+
 	/**
 	 * Uninlines all inlined values in the specified method.
 	 * @param owner the binary name of the class that owns {@code method}
@@ -99,17 +408,236 @@ public class ConstantUninliner
 	public ClassNode transformMethod(String owner, String name, String desc)
 	{
 		ClassNode ownerClass = classResolver.resolveClassNode(owner);
-		transformMethod(ownerClass, findMethod(ownerClass, name, desc));
+		transformAll(Collections.singletonList(new ScheduledMethod(ownerClass, findMethod(ownerClass, name, desc))));
 		return ownerClass;
 	}
 
-	private ClassNode transformMethod(ClassNode methodOwner, MethodNode method)
+	/**
+	 * Transforms {@code methods} and the lambda bodies they create, without transforming any method twice.
+	 * Every lambda body of a class is associated with its functional interface method when the class is indexed,
+	 * so methods can be transformed in any order.
+	 */
+	private void transformAll(List<ScheduledMethod> methods)
+	{
+		for (ScheduledMethod scheduled : methods)
+		{
+			indexClass(scheduled.owner);
+		}
+		if (forkJoinPool != null)
+		{
+			forkJoinPool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(toTasks(methods))));
+			return;
+		}
+
+		Deque<ScheduledMethod> worklist = new ArrayDeque<>(methods);
+		while (!worklist.isEmpty())
+		{
+			ScheduledMethod scheduled = worklist.poll();
+			if (transformedMethods.add(scheduled.method))
+			{
+				transformMethod(scheduled.owner.name, scheduled.method, lambdaSAMs);
+				worklist.addAll(findLambdaBodies(scheduled));
+			}
+		}
+	}
+
+	private List<ForkJoinTask<?>> toTasks(List<ScheduledMethod> methods)
+	{
+		List<ForkJoinTask<?>> tasks = new ArrayList<>(methods.size());
+		for (ScheduledMethod scheduled : methods)
+		{
+			tasks.add(ForkJoinTask.adapt(() ->
+			{
+				if (transformedMethods.add(scheduled.method))
+				{
+					transformMethod(scheduled.owner.name, scheduled.method, lambdaSAMs);
+					ForkJoinTask.invokeAll(toTasks(findLambdaBodies(scheduled)));
+				}
+			}));
+		}
+		return tasks;
+	}
+
+	private List<ScheduledMethod> findLambdaBodies(ScheduledMethod scheduled)
+	{
+		List<Handle> implementations = indexClass(scheduled.owner).getLambdaImplementations(scheduled.method);
+		if (implementations.isEmpty())
+			return Collections.emptyList();
+		List<ScheduledMethod> lambdaBodies = new ArrayList<>(implementations.size());
+		for (Handle implementation : implementations)
+		{
+			ClassNode lambdaOwner = classResolver.resolveClassNode(implementation.getOwner());
+			lambdaBodies.add(new ScheduledMethod(lambdaOwner, findMethod(lambdaOwner, implementation.getName(), implementation.getDesc())));
+		}
+		return lambdaBodies;
+	}
+
+	/**
+	 * Indexes the methods of {@code classNode}, and associates the bodies of the lambdas
+	 * created in {@code classNode} with their functional interface method
+	 */
+	private ClassIndex indexClass(ClassNode classNode)
+	{
+		return classIndices.computeIfAbsent(classNode, key ->
+		{
+			ClassIndex index = new ClassIndex(classNode);
+			for (MethodNode method : classNode.methods)
+			{
+				for (AbstractInsnNode insn : method.instructions)
+				{
+					if (insn.getType() == AbstractInsnNode.INVOKE_DYNAMIC_INSN && registerLambda((InvokeDynamicInsnNode) insn, lambdaSAMs))
+						index.addLambdaImplementation(method, (Handle) ((InvokeDynamicInsnNode) insn).bsmArgs[1]);
+				}
+			}
+			return index;
+		});
+	}
+
+	/**
+	 * Associates the body of the lambda created by {@code invokeDynamic}, if any, with its functional interface method
+	 * @param lambdaSAMs the associations to add to
+	 * @return true if {@code invokeDynamic} creates a lambda whose body can be transformed
+	 */
+	private boolean registerLambda(InvokeDynamicInsnNode invokeDynamic, Map<MethodTriple, MethodTriple> lambdaSAMs)
+	{
+		if (!createsLambda(invokeDynamic))
+			return false;
+		Handle implementation = (Handle) invokeDynamic.bsmArgs[1];
+		if (implementation.isInterface())
+			return false;
+		String samOwner = Type.getMethodType(invokeDynamic.desc).getReturnType().getInternalName();
+		String samName = invokeDynamic.name;
+		String samDesc = ((Type) invokeDynamic.bsmArgs[0]).getDescriptor();
+		lambdaSAMs.putIfAbsent(MethodTriple.fromHandle(implementation), new MethodTriple(samOwner, samName, samDesc));
+		return true;
+	}
+
+	/**
+	 * Creates a method visitor that uninlines all inlined values in the method visited through it, then
+	 * passes the result to {@code delegate} when the method ends. Methods where every literal is passed
+	 * directly to a method invocation or lambda capture, or is returned directly, are uninlined without
+	 * computing frames. Other methods are analysed according to the {@link AnalysisMode}.<br>
+	 * Unlike {@link #transformMethod(String, String, String)}, lambda bodies are not transformed when their
+	 * creation is found, as they are expected to be visited separately. The class is not indexed in advance, so the
+	 * method that creates a lambda must be visited before the lambda body for the return type of its functional
+	 * interface method to be used, which is the order javac emits them in.
+	 * @param owner the internal name of the class that owns the method
+	 * @param access the access flags of the method
+	 * @param name the name of the method
+	 * @param descriptor the descriptor of the method
+	 * @param signature the signature of the method, may be null
+	 * @param exceptions the internal names of the exceptions the method declares, may be null
+	 * @param delegate the method visitor to pass the uninlined method to, may be null
+	 * @return a method visitor for visiting the method with
+	 */
+	public MethodVisitor methodVisitor(String owner, int access, String name, String descriptor,
+		String signature, String[] exceptions, MethodVisitor delegate)
+	{
+		return new PeepholeMethodNode(access, name, descriptor, signature, exceptions)
+		{
+			@Override
+			public void visitEnd()
+			{
+				super.visitEnd();
+				for (InvokeDynamicInsnNode invokeDynamic : getInvokeDynamics())
+				{
+					registerLambda(invokeDynamic, lambdaSAMs);
+				}
+				if (transformPeephole(owner, this, lambdaSAMs))
+					maxStack = Math.max(maxStack, StackEffects.computeMaxStack(owner, this));
+				if (delegate != null)
+					accept(delegate);
+			}
+		};
+	}
+
+	/**
+	 * Creates a class visitor that uninlines all inlined values in the class visited through it, so that
+	 * uninlining can be one stage of an existing visitor chain, then passes the result to {@code delegate}.
+	 * Methods without any literal the mapper may replace are passed to {@code delegate} as soon as they end.
+	 * Other methods are buffered until the class ends, when the lambdas created by every method of the class are known,
+	 * and are then uninlined as by {@link #methodVisitor(String, int, String, String, String, String[], MethodVisitor)}.
+	 * Each buffered method is passed to the method visitor {@code delegate} returned for it when it was visited,
+	 * so {@code delegate} receives methods in their original order.<br>
+	 * Lambda bodies are only transformed with knowledge of their functional interface method if the class itself
+	 * creates the lambda, so the result only depends on the class and the classes it references, not on the classes
+	 * transformed before it.
+	 * @param delegate the class visitor to pass the uninlined class to
+	 * @return a class visitor for visiting the class with
+	 */
+	public ClassVisitor classVisitor(ClassVisitor delegate)
+	{
+		return new UninliningClassVisitor(delegate, null);
+	}
+
+	/**
+	 * Creates a class visitor that uninlines all inlined values in the class visited through it, as by
+	 * {@link #classVisitor(ClassVisitor)}. Lambda bodies of the class that are created by other classes of {@code index}
+	 * are transformed with knowledge of their functional interface method too, so the result also depends on {@code index}.
+	 * @param delegate the class visitor to pass the uninlined class to
+	 * @param index an index of the classes that may create lambdas implemented by the visited class
+	 * @return a class visitor for visiting the class with
+	 */
+	public ClassVisitor classVisitor(ClassVisitor delegate, CallSiteIndex index)
+	{
+		return new UninliningClassVisitor(delegate, index);
+	}
+
+	/**
+	 * @param lambdaSAMs the functional interface method of each known lambda body
+	 * @return true if {@code method} was changed
+	 */
+	private boolean transformPeephole(String methodOwner, PeepholeMethodNode method, Map<MethodTriple, MethodTriple> lambdaSAMs)
+	{
+		if (method.isComplex())
+			return transformMethod(methodOwner, method, lambdaSAMs);
+
+		logger.info(String.format("Processing %s.%s%s", methodOwner, method.name, method.desc));
+		if (method.getSites().isEmpty())
+			return false;
+
+		BackwardSlicer reachability = method.mayContainUnreachableCode() ? new BackwardSlicer(method) : null;
+		ReplacementSet replacementSet = new ReplacementSet(method.instructions);
+		MethodFrames frames = MethodFrames.none(method.instructions.size());
+		Consumer<Context> returnMapper = null;
+		boolean returnMapperFound = false;
+		for (PeepholeMethodNode.Site site : method.getSites())
+		{
+			if (!mapper.mayReplace(site.getLiteral()))
+				continue;
+			if (reachability != null && !reachability.isReachable(site.getLiteral()))
+				continue;
+			Consumer<Context> siteMapper;
+			if (site.getParameterIndex() == PeepholeMethodNode.Site.RETURN)
+			{
+				if (!returnMapperFound)
+				{
+					returnMapper = processUsage(methodOwner, method, site.getConsumer(), lambdaSAMs);
+					returnMapperFound = true;
+				}
+				siteMapper = returnMapper;
+			}
+			else
+				siteMapper = processMethodUsage(new UnpickValue.MethodUsage(site.getConsumer(), site.getParameterIndex()));
+			if (siteMapper != null)
+				siteMapper.accept(new Context(constantResolver, replacementSet, site.getLiteral(), method.instructions, frames, logger, flagDecomposition));
+		}
+		return replacementSet.apply();
+	}
+
+	/**
+	 * @param lambdaSAMs the functional interface method of each known lambda body
+	 * @return true if {@code method} was changed
+	 */
+	private boolean transformMethod(String methodOwner, MethodNode method, Map<MethodTriple, MethodTriple> lambdaSAMs)
 	{
 		logger.info(String.format("Processing %s.%s%s", methodOwner, method.name, method.desc));
+		ReplacementSet replacementSet = new ReplacementSet(method.instructions);
+		if (analysisMode == AnalysisMode.BACKWARD_SLICE && transformSlices(methodOwner, method, replacementSet, lambdaSAMs))
+			return replacementSet.apply();
 		try
 		{
-			ReplacementSet replacementSet = new ReplacementSet(method.instructions);
-			Frame<UnpickValue>[] frames = new Analyzer<>(new UnpickInterpreter(method)).analyze(methodOwner.name, method);
+			MethodFrames frames = analyze(methodOwner, method);
 
 			Map<AbstractInsnNode, Consumer<Context>> mappers = new HashMap<>();
 			Set<AbstractInsnNode> unmapped = new HashSet<>();
@@ -117,16 +645,17 @@ public class ConstantUninliner
 			for (int index = 0; index < method.instructions.size(); index++)
 			{
 				AbstractInsnNode insn = method.instructions.get(index);
-				if (AbstractInsnNodes.hasLiteralValue(insn) && !unmapped.contains(insn) || insn instanceof InvokeDynamicInsnNode)
+				// Literals the mapper can never replace are skipped before their mapper is looked up
+				if (AbstractInsnNodes.hasLiteralValue(insn) && !unmapped.contains(insn) && this.mapper.mayReplace(insn))
 				{
-					Frame<UnpickValue> frame = index + 1 >= frames.length ? null : frames[index + 1];
+					Frame<UnpickValue> frame = frames.get(index + 1);
 					if (frame != null)
 					{
 						UnpickValue unpickValue = frame.getStack(frame.getStackSize() - 1);
 						Consumer<Context> mapper = mappers.get(insn);
 						if (mapper == null)
 						{
-							mapper = findMapper(methodOwner.name, method, unpickValue);
+							mapper = findMapper(methodOwner, method, unpickValue, lambdaSAMs);
 							if (mapper == null)
 								unmapped.addAll(unpickValue.getUsages());
 							else
@@ -140,23 +669,166 @@ public class ConstantUninliner
 
 						if (mapper != null)
 						{
-							Context context = new Context(constantResolver, replacementSet, insn, method.instructions, frames, logger);
+							Context context = new Context(constantResolver, replacementSet, insn, method.instructions, frames, logger, flagDecomposition);
 							mapper.accept(context);
 						}
 					}
 				}
 			}
 
-			replacementSet.apply();
+			return replacementSet.apply();
 		}
 		catch (AnalyzerException e)
 		{
 			logger.error(String.format("Processing %s.%s%s failed", methodOwner, method.name, method.desc), e);
+			return false;
+		}
+	}
+
+	/**
+	 * Finds the replacements for {@code method} by slicing backwards from each call site and return that
+	 * the mapper targets, without analysing the rest of the method.
+	 * @return true if the replacements were added to {@code replacementSet}, false if the method needs full analysis.
+	 * {@code replacementSet} is left untouched in the latter case.
+	 */
+	private boolean transformSlices(String methodOwner, MethodNode method, ReplacementSet replacementSet,
+		Map<MethodTriple, MethodTriple> lambdaSAMs)
+	{
+		// Targeted parameters of the method itself can only be followed forwards
+		if (targetsAnyParameter(methodOwner, method))
+			return false;
+
+		List<Sink> sinks = new ArrayList<>();
+		Consumer<Context> returnMapper = null;
+		boolean returnMapperFound = false;
+		for (AbstractInsnNode insn : method.instructions)
+		{
+			switch (insn.getType())
+			{
+			case AbstractInsnNode.METHOD_INSN:
+			{
+				MethodInsnNode methodInsn = (MethodInsnNode) insn;
+				if (!mapper.targets(methodInsn.owner, methodInsn.name, methodInsn.desc))
+					break;
+				// Targeted return values can only be followed forwards
+				if (mapper.targetsReturn(methodInsn.owner, methodInsn.name, methodInsn.desc))
+					return false;
+				addParameterSinks(sinks, methodInsn, StackEffects.countArguments(methodInsn.desc));
+				break;
+			}
+
+			case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+			{
+				InvokeDynamicInsnNode invokeDynamic = (InvokeDynamicInsnNode) insn;
+				if (createsLambda(invokeDynamic))
+					addParameterSinks(sinks, invokeDynamic, StackEffects.countArguments(invokeDynamic.desc));
+				break;
+			}
+
+			case AbstractInsnNode.JUMP_INSN:
+				if (insn.getOpcode() == Opcodes.JSR)
+					return false;
+				break;
+
+			case AbstractInsnNode.VAR_INSN:
+				if (insn.getOpcode() == Opcodes.RET)
+					return false;
+				break;
+
+			default:
+				if (insn.getOpcode() >= Opcodes.IRETURN && insn.getOpcode() <= Opcodes.ARETURN)
+				{
+					if (!returnMapperFound)
+					{
+						returnMapper = processUsage(methodOwner, method, insn, lambdaSAMs);
+						returnMapperFound = true;
+					}
+					if (returnMapper != null)
+						sinks.add(new Sink(insn, 0, returnMapper));
+				}
+				break;
+			}
+		}
+		if (sinks.isEmpty())
+			return true;
+
+		BackwardSlicer slicer = new BackwardSlicer(method);
+		Map<AbstractInsnNode, Consumer<Context>> mappers = new IdentityHashMap<>();
+		for (Sink sink : sinks)
+		{
+			List<AbstractInsnNode> literals = slicer.findLiteralSources(sink.insn, sink.depth);
+			if (literals == null)
+				return false;
+			for (AbstractInsnNode literal : literals)
+			{
+				if (mapper.mayReplace(literal))
+					mappers.put(literal, sink.mapper);
+			}
+		}
+
+		MethodFrames frames = MethodFrames.none(method.instructions.size());
+		for (Map.Entry<AbstractInsnNode, Consumer<Context>> entry : mappers.entrySet())
+		{
+			entry.getValue().accept(new Context(constantResolver, replacementSet, entry.getKey(), method.instructions, frames, logger, flagDecomposition));
 		}
-		return methodOwner;
+		return true;
 	}
 
-	private Consumer<Context> findMapper(String methodOwner, MethodNode method, UnpickValue unpickValue)
+	private boolean targetsAnyParameter(String methodOwner, MethodNode method)
+	{
+		if (!mapper.targets(methodOwner, method.name, method.desc))
+			return false;
+		int parameterCount = StackEffects.countArguments(method.desc);
+		for (int parameterIndex = 0; parameterIndex <= parameterCount; parameterIndex++)
+		{
+			if (mapper.targetsParameter(methodOwner, method.name, method.desc, parameterIndex))
+				return true;
+		}
+		return false;
+	}
+
+	private void addParameterSinks(List<Sink> sinks, AbstractInsnNode invocation, int parameterCount)
+	{
+		for (int parameterIndex = 0; parameterIndex < parameterCount; parameterIndex++)
+		{
+			Consumer<Context> parameterMapper = processMethodUsage(new UnpickValue.MethodUsage(invocation, parameterIndex));
+			if (parameterMapper != null)
+				sinks.add(new Sink(invocation, parameterCount - 1 - parameterIndex, parameterMapper));
+		}
+	}
+
+	private MethodFrames analyze(String methodOwner, MethodNode method) throws AnalyzerException
+	{
+		Frame<UnpickValue>[] frames = new Analyzer<>(new UnpickInterpreter(method)).analyze(methodOwner, method);
+		switch (analysisMode)
+		{
+		case SPARSE_FRAMES:
+		case BACKWARD_SLICE:
+			return MethodFrames.sparse(frames, index -> isFrameQueried(method.instructions, index));
+
+		case FULL:
+		default:
+			return MethodFrames.of(frames);
+		}
+	}
+
+	/**
+	 * @return true if the frame at {@code index} is read by the transformation loop, or
+	 * is likely to be read by a mapper through {@link Context#getFrameForInstruction(AbstractInsnNode)}
+	 */
+	private static boolean isFrameQueried(InsnList instructions, int index)
+	{
+		// The transformation loop reads the frame after each literal
+		if (index > 0 && AbstractInsnNodes.hasLiteralValue(instructions.get(index - 1)))
+			return true;
+		// Call sites and returns are where mappers look for the values being replaced
+		AbstractInsnNode insn = instructions.get(index);
+		return insn.getType() == AbstractInsnNode.METHOD_INSN || insn.getType() == AbstractInsnNode.INVOKE_DYNAMIC_INSN
+			|| (insn.getOpcode() >= Opcodes.IRETURN && insn.getOpcode() <= Opcodes.RETURN);
+	}
+
+	private Consumer<Context> findMapper(String methodOwner, MethodNode method, UnpickValue unpickValue,
+		Map<MethodTriple, MethodTriple> lambdaSAMs)
 	{
 		for (int parameterSource : unpickValue.getParameterSources())
 		{
@@ -172,7 +844,7 @@ public class ConstantUninliner
 		}
 		for (AbstractInsnNode usage : unpickValue.getUsages())
 		{
-			Consumer<Context> ret = processUsage(methodOwner, method, usage);
+			Consumer<Context> ret = processUsage(methodOwner, method, usage, lambdaSAMs);
 			if (ret != null)
 				return ret;
 		}
@@ -182,12 +854,10 @@ public class ConstantUninliner
 
 	private Consumer<Context> processParameterSource(String methodOwner, MethodNode enclosingMethod, int parameterIndex)
 	{
-		if (!mapper.targets(methodOwner, enclosingMethod.name, enclosingMethod.desc))
-			return null;
-		if (!mapper.targetsParameter(methodOwner, enclosingMethod.name, enclosingMethod.desc, parameterIndex))
-			return null;
-		logger.info(String.format("Using enclosing method %s.%s%s parameter %d", methodOwner, enclosingMethod.name, enclosingMethod.desc, parameterIndex));
-		return context -> mapper.mapParameter(methodOwner, enclosingMethod.name, enclosingMethod.desc, parameterIndex, context);
+		Consumer<Context> parameterMapper = resolveParameter(methodOwner, enclosingMethod.name, enclosingMethod.desc, parameterIndex);
+		if (parameterMapper != null)
+			logger.info(String.format("Using enclosing method %s.%s%s parameter %d", methodOwner, enclosingMethod.name, enclosingMethod.desc, parameterIndex));
+		return parameterMapper;
 	}
 
 	private Consumer<Context> processMethodUsage(UnpickValue.MethodUsage methodUsage)
@@ -199,16 +869,19 @@ public class ConstantUninliner
 			if (createsLambda(invokeDynamicInsn))
 			{
 				Handle lambdaMethod = (Handle) invokeDynamicInsn.bsmArgs[1];
-				if (!mapper.targets(lambdaMethod.getOwner(), lambdaMethod.getName(), lambdaMethod.getDesc()))
-					return null;
 				int kind = lambdaMethod.getTag();
 				boolean hasThis = kind != Opcodes.H_GETSTATIC && kind != Opcodes.H_PUTSTATIC && kind != Opcodes.H_INVOKESTATIC && kind != Opcodes.H_NEWINVOKESPECIAL;
 				int paramIndex = hasThis ? methodUsage.getParamIndex() - 1 : methodUsage.getParamIndex();
-				if (!mapper.targetsParameter(lambdaMethod.getOwner(), lambdaMethod.getName(), lambdaMethod.getDesc(), paramIndex))
+				// The bound receiver of an instance method reference is not one of its parameters
+				if (paramIndex < 0)
 					return null;
-				logger.info(String.format("Using lambda %s.%s%s captured parameter %d",
-					lambdaMethod.getOwner(), lambdaMethod.getName(), lambdaMethod.getDesc(), paramIndex));
-				return context -> mapper.mapParameter(lambdaMethod.getOwner(), lambdaMethod.getName(), lambdaMethod.getDesc(), paramIndex, context);
+				Consumer<Context> parameterMapper = resolveParameter(lambdaMethod.getOwner(), lambdaMethod.getName(), lambdaMethod.getDesc(), paramIndex);
+				if (parameterMapper != null)
+				{
+					logger.info(String.format("Using lambda %s.%s%s captured parameter %d",
+						lambdaMethod.getOwner(), lambdaMethod.getName(), lambdaMethod.getDesc(), paramIndex));
+				}
+				return parameterMapper;
 			}
 
 			return null;
@@ -216,28 +889,27 @@ public class ConstantUninliner
 		else
 		{
 			MethodInsnNode methodInsn = (MethodInsnNode) methodUsage.getMethodInvocation();
-			if (!mapper.targets(methodInsn.owner, methodInsn.name, methodInsn.desc))
-				return null;
-			if (!mapper.targetsParameter(methodInsn.owner, methodInsn.name, methodInsn.desc, methodUsage.getParamIndex()))
-				return null;
-			logger.info(String.format("Using method invocation %s.%s%s parameter %d",
-				methodInsn.owner, methodInsn.name, methodInsn.desc, methodUsage.getParamIndex()));
-			return context -> mapper.mapParameter(methodInsn.owner, methodInsn.name, methodInsn.desc, methodUsage.getParamIndex(), context);
+			Consumer<Context> parameterMapper = resolveParameter(methodInsn.owner, methodInsn.name, methodInsn.desc, methodUsage.getParamIndex());
+			if (parameterMapper != null)
+			{
+				logger.info(String.format("Using method invocation %s.%s%s parameter %d",
+					methodInsn.owner, methodInsn.name, methodInsn.desc, methodUsage.getParamIndex()));
+			}
+			return parameterMapper;
 		}
 	}
 
-	private Consumer<Context> processUsage(String methodOwner, MethodNode enclosingMethod, AbstractInsnNode usage)
+	private Consumer<Context> processUsage(String methodOwner, MethodNode enclosingMethod, AbstractInsnNode usage,
+		Map<MethodTriple, MethodTriple> lambdaSAMs)
 	{
 		if (usage.getType() == AbstractInsnNode.METHOD_INSN)
 		{
 			// A method "usage" is from the return type of a method invocation
 			MethodInsnNode method = (MethodInsnNode) usage;
-			if (!mapper.targets(method.owner, method.name, method.desc))
-				return null;
-			if (!mapper.targetsReturn(method.owner, method.name, method.desc))
-				return null;
-			logger.info(String.format("Using method invocation %s.%s%s return type", method.owner, method.name, method.desc));
-			return context -> mapper.mapReturn(method.owner, method.name, method.desc, context);
+			Consumer<Context> returnMapper = resolveReturn(method.owner, method.name, method.desc);
+			if (returnMapper != null)
+				logger.info(String.format("Using method invocation %s.%s%s return type", method.owner, method.name, method.desc));
+			return returnMapper;
 		}
 
 		if (usage.getOpcode() >= Opcodes.IRETURN && usage.getOpcode() <= Opcodes.RETURN)
@@ -245,64 +917,90 @@ public class ConstantUninliner
 			MethodTriple sam = lambdaSAMs.get(new MethodTriple(methodOwner, enclosingMethod.name, enclosingMethod.desc));
 			if (sam != null)
 			{
-				if (!mapper.targets(sam.owner, sam.name, sam.descriptor))
-					return null;
-				if (!mapper.targetsReturn(sam.owner, sam.name, sam.descriptor))
-					return null;
-				logger.info(String.format("Using lambda SAM %s.%s%s return type",
-					sam.owner, sam.name, sam.descriptor));
-				return context -> mapper.mapReturn(sam.owner, sam.name, sam.descriptor, context);
+				Consumer<Context> returnMapper = resolveReturn(sam.owner, sam.name, sam.descriptor);
+				if (returnMapper != null)
+				{
+					logger.info(String.format("Using lambda SAM %s.%s%s return type",
+						sam.owner, sam.name, sam.descriptor));
+				}
+				return returnMapper;
 			}
-			if (!mapper.targets(methodOwner, enclosingMethod.name, enclosingMethod.desc))
-				return null;
-			if (!mapper.targetsReturn(methodOwner, enclosingMethod.name, enclosingMethod.desc))
-				return null;
-			logger.info(String.format("Using enclosing method %s.%s%s return type",
-				methodOwner, enclosingMethod.name, enclosingMethod.desc));
-			return context -> mapper.mapReturn(methodOwner, enclosingMethod.name, enclosingMethod.desc, context);
-		}
-
-		if (usage.getType() == AbstractInsnNode.INVOKE_DYNAMIC_INSN)
-		{
-			InvokeDynamicInsnNode invokeDynamic = (InvokeDynamicInsnNode) usage;
-			if (createsLambda(invokeDynamic))
+			Consumer<Context> returnMapper = resolveReturn(methodOwner, enclosingMethod.name, enclosingMethod.desc);
+			if (returnMapper != null)
 			{
-				Handle implementation = (Handle) invokeDynamic.bsmArgs[1];
+				logger.info(String.format("Using enclosing method %s.%s%s return type",
+					methodOwner, enclosingMethod.name, enclosingMethod.desc));
+			}
+			return returnMapper;
+		}
 
-				if (implementation.isInterface()) {
-					return null;
-				}
+		return null;
+	}
 
-				ClassNode lambdaOwner = classResolver.resolveClassNode(implementation.getOwner());
-				MethodNode lambda = findMethod(lambdaOwner,
-					implementation.getName(), implementation.getDesc());
-				String samOwner = Type.getMethodType(invokeDynamic.desc).getReturnType().getInternalName();
-				String samName = invokeDynamic.name;
-				String samDesc = ((Type) invokeDynamic.bsmArgs[0]).getDescriptor();
-				MethodTriple old = lambdaSAMs.put(MethodTriple.fromHandle(implementation), new MethodTriple(samOwner, samName, samDesc));
+	/**
+	 * @return a mapper for values passed to the parameter, or null if the mapper does not target it
+	 */
+	private Consumer<Context> resolveParameter(String methodOwner, String methodName, String methodDescriptor, int parameterIndex)
+	{
+		return resolveCached(new CallSite(methodOwner, methodName, methodDescriptor, false, parameterIndex));
+	}
 
-				if (old != null) {
-					return null;
-				}
+	/**
+	 * @return a mapper for values returned from the method, or null if the mapper does not target its returns
+	 */
+	private Consumer<Context> resolveReturn(String methodOwner, String methodName, String methodDescriptor)
+	{
+		return resolveCached(new CallSite(methodOwner, methodName, methodDescriptor, true, -1));
+	}
 
-				if (lambdaOwner.name.equals(methodOwner) && lambda.name.equals(enclosingMethod.name)) {
-					return null;
-				}
-				return context -> transformMethod(lambdaOwner, lambda);
-			}
+	private Consumer<Context> resolveCached(CallSite callSite)
+	{
+		Consumer<Context> cached = callSiteMappers.get(callSite);
+		if (cached != null)
+			callSiteHits.increment();
+		else
+		{
+			callSiteMisses.increment();
+			Consumer<Context> resolved = resolve(callSite);
+			cached = resolved != null ? resolved : CallSite.UNTARGETED;
+			callSiteMappers.putIfAbsent(callSite, cached);
 		}
-
-		return null;
+		return cached != CallSite.UNTARGETED ? cached : null;
 	}
 
-	private MethodNode findMethod(ClassNode classNode, String name, String descriptor)
+	private Consumer<Context> resolve(CallSite callSite)
 	{
-		for (MethodNode method : classNode.methods)
+		String owner = callSite.owner,
+			   name = callSite.name,
+			   descriptor = callSite.descriptor;
+		int parameterIndex = callSite.parameterIndex;
+		if (mapper instanceof IResolvingConstantMapper)
+		{
+			IResolvingConstantMapper resolvingMapper = (IResolvingConstantMapper) mapper;
+			IResolvingConstantMapper.ResolvedTarget target = callSite.isReturn
+				? resolvingMapper.resolveReturn(owner, name, descriptor)
+				: resolvingMapper.resolveParameter(owner, name, descriptor, parameterIndex);
+			return target != null ? target::map : null;
+		}
+		if (!mapper.targets(owner, name, descriptor))
+			return null;
+		if (callSite.isReturn)
 		{
-			if (method.name.equals(name) && method.desc.equals(descriptor))
-				return method;
+			if (!mapper.targetsReturn(owner, name, descriptor))
+				return null;
+			return context -> mapper.mapReturn(owner, name, descriptor, context);
 		}
-		throw new IllegalStateException(name + descriptor + " not found in " + classNode.name);
+		if (!mapper.targetsParameter(owner, name, descriptor, parameterIndex))
+			return null;
+		return context -> mapper.mapParameter(owner, name, descriptor, parameterIndex, context);
+	}
+
+	private MethodNode findMethod(ClassNode classNode, String name, String descriptor)
+	{
+		MethodNode method = indexClass(classNode).getMethod(name, descriptor);
+		if (method == null)
+			throw new IllegalStateException(name + descriptor + " not found in " + classNode.name);
+		return method;
 	}
 
 	private boolean createsLambda(InvokeDynamicInsnNode invokeDynamicInsn)
@@ -311,6 +1009,71 @@ public class ConstantUninliner
 			"metafactory".equals(invokeDynamicInsn.bsm.getName());
 	}
 
+	/**
+	 * An operand of {@link #insn}, and the mapper for the literals it is computed from
+	 */
+	private static class Sink
+	{
+		final AbstractInsnNode insn;
+		final int depth;
+		final Consumer<Context> mapper;
+
+		Sink(AbstractInsnNode insn, int depth, Consumer<Context> mapper)
+		{
+			this.insn = insn;
+			this.depth = depth;
+			this.mapper = mapper;
+		}
+	}
+
+	/**
+	 * A method waiting to be transformed, and the class that owns it
+	 */
+	private static class ScheduledMethod
+	{
+		final ClassNode owner;
+		final MethodNode method;
+
+		ScheduledMethod(ClassNode owner, MethodNode method)
+		{
+			this.owner = owner;
+			this.method = method;
+		}
+	}
+
+	/**
+	 * The methods of a class by name and descriptor, and the lambda bodies each method creates
+	 */
+	private static class ClassIndex
+	{
+		private final Map<String, MethodNode> methods;
+		private final Map<MethodNode, List<Handle>> lambdaImplementations = new IdentityHashMap<>();
+
+		ClassIndex(ClassNode classNode)
+		{
+			this.methods = new HashMap<>(classNode.methods.size() * 2);
+			for (MethodNode method : classNode.methods)
+			{
+				methods.putIfAbsent(method.name + method.desc, method);
+			}
+		}
+
+		MethodNode getMethod(String name, String descriptor)
+		{
+			return methods.get(name + descriptor);
+		}
+
+		void addLambdaImplementation(MethodNode creator, Handle implementation)
+		{
+			lambdaImplementations.computeIfAbsent(creator, key -> new ArrayList<>()).add(implementation);
+		}
+
+		List<Handle> getLambdaImplementations(MethodNode creator)
+		{
+			return lambdaImplementations.getOrDefault(creator, Collections.emptyList());
+		}
+	}
+
 	private static class MethodTriple
 	{
 		String owner, name, descriptor;
@@ -350,4 +1113,242 @@ public class ConstantUninliner
 			return owner + "." + name + descriptor;
 		}
 	}
+
+	/**
+	 * Streams a class to its delegate, buffering only the methods that may need uninlining
+	 */
+	private class UninliningClassVisitor extends ClassVisitor
+	{
+		private final List<PeepholeMethodNode> buffered = new ArrayList<>();
+		private final List<MethodVisitor> bufferedTargets = new ArrayList<>();
+		private final AtomicBoolean changed = new AtomicBoolean();
+		private final CallSiteIndex index;
+		// Only written while the class is visited, before its methods are transformed
+		private final Map<MethodTriple, MethodTriple> classLambdaSAMs = new HashMap<>();
+		private String owner;
+
+		/**
+		 * @param index an index of the other classes that may create lambdas implemented by this class, or null
+		 */
+		UninliningClassVisitor(ClassVisitor delegate, CallSiteIndex index)
+		{
+			super(Opcodes.ASM9, delegate);
+			this.index = index;
+		}
+
+		@Override
+		public void visit(int version, int access, String name, String signature, String superName, String[] interfaces)
+		{
+			this.owner = name;
+			if (index != null)
+			{
+				for (CallSiteIndex.InvokeDynamicSite site : index.findLambdaSites(name))
+				{
+					CallSiteIndex.MethodReference implementation = site.getImplementation(),
+												  lambdaMethod = site.getLambdaMethod();
+					classLambdaSAMs.putIfAbsent(new MethodTriple(implementation.getOwner(), implementation.getName(), implementation.getDescriptor()),
+						new MethodTriple(lambdaMethod.getOwner(), lambdaMethod.getName(), lambdaMethod.getDescriptor()));
+				}
+			}
+			super.visit(version, access, name, signature, superName, interfaces);
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions)
+		{
+			MethodVisitor target = super.visitMethod(access, name, descriptor, signature, exceptions);
+			if (target == null)
+				return null;
+			return new PeepholeMethodNode(access, name, descriptor, signature, exceptions)
+			{
+				@Override
+				public void visitEnd()
+				{
+					super.visitEnd();
+					for (InvokeDynamicInsnNode invokeDynamic : getInvokeDynamics())
+					{
+						registerLambda(invokeDynamic, classLambdaSAMs);
+					}
+					if (containsReplaceableLiteral(this))
+					{
+						buffered.add(this);
+						bufferedTargets.add(target);
+					}
+					else
+						accept(target);
+				}
+			};
+		}
+
+		@Override
+		public void visitEnd()
+		{
+			if (forkJoinPool != null && buffered.size() > 1)
+			{
+				List<ForkJoinTask<?>> tasks = new ArrayList<>(buffered.size());
+				for (PeepholeMethodNode method : buffered)
+				{
+					tasks.add(ForkJoinTask.adapt(() -> transformBuffered(method)));
+				}
+				forkJoinPool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+			}
+			else
+			{
+				for (PeepholeMethodNode method : buffered)
+				{
+					transformBuffered(method);
+				}
+			}
+			// Visitor chains are not thread safe, so methods are passed on sequentially
+			for (int i = 0; i < buffered.size(); i++)
+			{
+				buffered.get(i).accept(bufferedTargets.get(i));
+			}
+			super.visitEnd();
+		}
+
+		private void transformBuffered(PeepholeMethodNode method)
+		{
+			if (transformPeephole(owner, method, classLambdaSAMs))
+			{
+				// Replacements may need more stack than the literals they replace, and delegates may not compute maxs
+				method.maxStack = Math.max(method.maxStack, StackEffects.computeMaxStack(owner, method));
+				changed.set(true);
+			}
+		}
+
+		/**
+		 * @return true if any method was changed. Only valid once the class has ended.
+		 */
+		boolean isChanged()
+		{
+			return changed.get();
+		}
+
+		private boolean containsReplaceableLiteral(MethodNode method)
+		{
+			for (AbstractInsnNode insn : method.instructions)
+			{
+				if (AbstractInsnNodes.hasLiteralValue(insn) && mapper.mayReplace(insn))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * A parameter or the return of a method, as invoked on a specific owner
+	 */
+	private static class CallSite
+	{
+		// Marks call sites that are not targeted, as concurrent maps cannot hold null
+		static final Consumer<Context> UNTARGETED = context -> {};
+		final String owner, name, descriptor;
+		// A flag rather than a sentinel parameter index, so that no computed index can be mistaken for the return
+		final boolean isReturn;
+		final int parameterIndex;
+
+		/**
+		 * @param parameterIndex the index of the parameter, ignored if {@code isReturn} is true
+		 */
+		CallSite(String owner, String name, String descriptor, boolean isReturn, int parameterIndex)
+		{
+			this.owner = owner;
+			this.name = name;
+			this.descriptor = descriptor;
+			this.isReturn = isReturn;
+			this.parameterIndex = isReturn ? -1 : parameterIndex;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (((owner.hashCode() * 31 + name.hashCode()) * 31 + descriptor.hashCode()) * 31 + parameterIndex) * 31 + (isReturn ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (this == obj) return true;
+			if (!(obj instanceof CallSite)) return false;
+			CallSite other = (CallSite) obj;
+			return isReturn == other.isReturn &&
+				   parameterIndex == other.parameterIndex &&
+				   owner.equals(other.owner) &&
+				   name.equals(other.name) &&
+				   descriptor.equals(other.descriptor);
+		}
+
+		@Override
+		public String toString()
+		{
+			return owner + "." + name + descriptor + (isReturn ? " return" : " parameter " + parameterIndex);
+		}
+	}
+
+	public static class Builder
+	{
+		private final IClassResolver classResolver;
+		private final IConstantMapper mapper;
+		private final IConstantResolver constantResolver;
+		private Logger logger = LogManager.getLogger("unpick");
+		private AnalysisMode analysisMode = AnalysisMode.FULL;
+		private ForkJoinPool forkJoinPool = null;
+		private FlagDecomposition flagDecomposition = FlagDecomposition.FIRST_FIT;
+
+		private Builder(IClassResolver classResolver, IConstantMapper mapper, IConstantResolver constantResolver)
+		{
+			this.classResolver = classResolver;
+			this.mapper = mapper;
+			this.constantResolver = constantResolver;
+		}
+
+		/**
+		 * @param logger a logger for debug logging.
+		 * @return this builder
+		 */
+		public Builder logger(Logger logger)
+		{
+			this.logger = logger;
+			return this;
+		}
+
+		/**
+		 * @param analysisMode how methods are analysed. Defaults to {@link AnalysisMode#FULL}.
+		 * @return this builder
+		 */
+		public Builder analysisMode(AnalysisMode analysisMode)
+		{
+			this.analysisMode = analysisMode;
+			return this;
+		}
+
+		/**
+		 * @param forkJoinPool a pool for {@link ConstantUninliner#transform(String)} to transform the methods of
+		 * each class on concurrently, or null to transform them sequentially. Defaults to null.
+		 * The class resolver, constant mapper, and constant resolver must be thread safe if a pool is used.
+		 * @return this builder
+		 */
+		public Builder forkJoinPool(ForkJoinPool forkJoinPool)
+		{
+			this.forkJoinPool = forkJoinPool;
+			return this;
+		}
+
+		/**
+		 * @param flagDecomposition how flag constant groups decompose literals into flags.
+		 * Defaults to {@link FlagDecomposition#FIRST_FIT}.
+		 * @return this builder
+		 */
+		public Builder flagDecomposition(FlagDecomposition flagDecomposition)
+		{
+			this.flagDecomposition = flagDecomposition;
+			return this;
+		}
+
+		public ConstantUninliner build()
+		{
+			return new ConstantUninliner(this);
+		}
+	}
 }
@@ -0,0 +1,71 @@
+package daomephsta.unpick.api;
+
+/**
+ * Controls how flag constant groups decompose literals into flags
+ * @author Daomephsta
+ */
+public final class FlagDecomposition
+{
+	/**
+	 * Uses each flag that is part of the literal and sets a bit no earlier flag set,
+	 * in the order the flags were defined. The combination produced depends on definition order.
+	 */
+	public static final FlagDecomposition FIRST_FIT = new FlagDecomposition(0);
+
+	private final int nodeBudget;
+
+	private FlagDecomposition(int nodeBudget)
+	{
+		this.nodeBudget = nodeBudget;
+	}
+
+	/**
+	 * Searches for the combination of the fewest flags that covers as much of the literal as {@link #FIRST_FIT}.
+	 * If the search visits {@code nodeBudget} nodes without finishing, the smallest combination found so far is used,
+	 * which is never larger than the one {@link #FIRST_FIT} produces. Decompositions are cached per literal.
+	 * @param nodeBudget the maximum number of search nodes to visit per literal
+	 * @return a minimal cover decomposition with the specified budget
+	 */
+	public static FlagDecomposition minimalCover(int nodeBudget)
+	{
+		if (nodeBudget <= 0)
+			throw new IllegalArgumentException("Node budget must be positive, was " + nodeBudget);
+		return new FlagDecomposition(nodeBudget);
+	}
+
+	/**
+	 * @return true if this decomposition searches for the smallest combination of flags
+	 */
+	public boolean isMinimalCover()
+	{
+		return nodeBudget > 0;
+	}
+
+	/**
+	 * @return the maximum number of search nodes to visit per literal, or 0 if this decomposition does not search
+	 */
+	public int getNodeBudget()
+	{
+		return nodeBudget;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return nodeBudget;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj) return true;
+		if (!(obj instanceof FlagDecomposition)) return false;
+		return nodeBudget == ((FlagDecomposition) obj).nodeBudget;
+	}
+
+	@Override
+	public String toString()
+	{
+		return isMinimalCover() ? "FlagDecomposition [Minimal Cover, Node Budget: " + nodeBudget + "]" : "FlagDecomposition [First Fit]";
+	}
+}
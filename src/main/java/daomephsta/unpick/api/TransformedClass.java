@@ -0,0 +1,44 @@
+package daomephsta.unpick.api;
+
+/**
+ * A class file transformed by {@link ConstantUninliner#transform(byte[])}
+ * @author Daomephsta
+ */
+public final class TransformedClass
+{
+	private final String name;
+	private final byte[] bytes;
+	private final boolean changed;
+
+	TransformedClass(String name, byte[] bytes, boolean changed)
+	{
+		this.name = name;
+		this.bytes = bytes;
+		this.changed = changed;
+	}
+
+	/**
+	 * @return the internal name of the class
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return the transformed class file. This is the class file passed to
+	 * {@link ConstantUninliner#transform(byte[])} if it was not changed.
+	 */
+	public byte[] getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * @return true if any inlined value was uninlined
+	 */
+	public boolean isChanged()
+	{
+		return changed;
+	}
+}
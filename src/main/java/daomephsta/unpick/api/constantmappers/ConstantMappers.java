@@ -5,6 +5,7 @@ import java.io.InputStream;
 import daomephsta.unpick.api.IClassResolver;
 import daomephsta.unpick.api.constantresolvers.IConstantResolver;
 import daomephsta.unpick.constantmappers.datadriven.parser.UnpickSyntaxException;
+import daomephsta.unpick.impl.constantmappers.datadriven.CompiledDataDrivenDefinitions;
 import daomephsta.unpick.impl.constantmappers.datadriven.DataDrivenConstantMapper;
 
 /**
@@ -25,4 +26,19 @@ public class ConstantMappers
 	{
 		return new DataDrivenConstantMapper(classResolver, constantResolver, mappingSources);
 	}
+
+	/**
+	 * Parses and resolves data-driven mappings once, so that they can be shared by any number of
+	 * uninliners and threads. Use {@link ICompiledDefinitions#createMapper(IClassResolver)} to create
+	 * a constant mapper for each job.
+	 * @return the compiled mappings defined by {@code mappingSources}
+	 * @param classResolver a class resolver that can resolve the classes of the target methods
+	 * @param constantResolver a constant resolver that can resolve the target constant fields
+	 * @param mappingSources streams of text in <a href="https://github.com/Daomephsta/unpick/wiki/Unpick-Format">.unpick format</a>
+	 * @throws UnpickSyntaxException if any of the mapping sources have invalid syntax
+	 */
+	public static ICompiledDefinitions compileDataDriven(IClassResolver classResolver, IConstantResolver constantResolver, InputStream... mappingSources)
+	{
+		return new CompiledDataDrivenDefinitions(classResolver, constantResolver, mappingSources);
+	}
 }
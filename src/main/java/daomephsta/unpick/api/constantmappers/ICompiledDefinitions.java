@@ -0,0 +1,20 @@
+package daomephsta.unpick.api.constantmappers;
+
+import daomephsta.unpick.api.IClassResolver;
+
+/**
+ * Parsed and resolved constant mappings that are immutable and thread safe, so they can be
+ * built once and shared by any number of uninliners.
+ * @author Daomephsta
+ */
+public interface ICompiledDefinitions
+{
+	/**
+	 * Creates a constant mapper that uses these definitions. Only state that depends on
+	 * {@code classResolver} is created, so this is cheap enough to call for every job.
+	 * @param classResolver a class resolver that can resolve the classes transformed by the job,
+	 * and the classes of the target methods
+	 * @return a constant mapper that uses these definitions
+	 */
+	public IConstantMapper createMapper(IClassResolver classResolver);
+}
@@ -1,5 +1,7 @@
 package daomephsta.unpick.api.constantmappers;
 
+import org.objectweb.asm.tree.AbstractInsnNode;
+
 import daomephsta.unpick.impl.representations.ReplacementInstructionGenerator.Context;
 
 /**
@@ -52,4 +54,28 @@ public interface IConstantMapper
 	 * @param context the context of the replacement.
 	 */
 	public void mapReturn(String methodOwner, String methodName, String methodDescriptor, Context context);
+
+	/**
+	 * Called for each literal before any target method of it is looked up, so that
+	 * literals this mapper can never replace are skipped cheaply.
+	 * @param literal an instruction that pushes a literal.
+	 * @return false if this mapper definitely cannot replace the value of {@code literal}.
+	 * Returns true by default.
+	 */
+	public default boolean mayReplace(AbstractInsnNode literal)
+	{
+		return true;
+	}
+
+	/**
+	 * Called to decide whether a class needs to be transformed at all, before its owner hierarchy is known.
+	 * @param methodName the name of the method.
+	 * @param methodDescriptor the descriptor of the method.
+	 * @return false if this mapper definitely does not target any method with this name and descriptor,
+	 * whatever its owner. Returns true by default.
+	 */
+	public default boolean mayTarget(String methodName, String methodDescriptor)
+	{
+		return true;
+	}
 }
@@ -0,0 +1,46 @@
+package daomephsta.unpick.api.constantmappers;
+
+import daomephsta.unpick.impl.representations.ReplacementInstructionGenerator.Context;
+
+/**
+ * A constant mapper that resolves a targeted parameter or return to a handle in a single lookup,
+ * instead of answering {@link #targets}, {@link #targetsParameter} and {@link #targetsReturn}
+ * before mapping. {@link daomephsta.unpick.api.ConstantUninliner} uses these methods when they are available.
+ * @author Daomephsta
+ */
+public interface IResolvingConstantMapper extends IConstantMapper
+{
+	/**
+	 * @param methodOwner the internal name of the class that owns the method.
+	 * @param methodName the name of the method.
+	 * @param methodDescriptor the descriptor of the method.
+	 * @param parameterIndex the index of the parameter.
+	 * @return a handle that maps values passed to the parameter of the method with an index of
+	 * {@code parameterIndex}, or null if this mapper does not target that parameter.
+	 */
+	public ResolvedTarget resolveParameter(String methodOwner, String methodName, String methodDescriptor, int parameterIndex);
+
+	/**
+	 * @param methodOwner the internal name of the class that owns the method.
+	 * @param methodName the name of the method.
+	 * @param methodDescriptor the descriptor of the method.
+	 * @return a handle that maps values returned from the method, or null if this mapper
+	 * does not target its return statements.
+	 */
+	public ResolvedTarget resolveReturn(String methodOwner, String methodName, String methodDescriptor);
+
+	/**
+	 * A resolved parameter or return of a target method. Handles do not depend on the
+	 * value being mapped, so they may be cached and invoked for any number of values.
+	 * @author Daomephsta
+	 */
+	@FunctionalInterface
+	public interface ResolvedTarget
+	{
+		/**
+		 * Maps an inlined value to replacement instructions.
+		 * @param context the context of the replacement.
+		 */
+		public void map(Context context);
+	}
+}
@@ -2,6 +2,7 @@ package daomephsta.unpick.impl;
 
 import static org.objectweb.asm.Opcodes.*;
 
+import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
 
 public class AbstractInsnNodes
@@ -49,6 +50,75 @@ public class AbstractInsnNodes
 		}
 	}
 
+	/**
+	 * @return the {@link Type#getSort() sort} of the literal pushed by {@code insn}: {@link Type#INT},
+	 * {@link Type#LONG}, {@link Type#FLOAT}, {@link Type#DOUBLE}, or {@link Type#OBJECT} for any other constant.
+	 * {@link Type#VOID} if {@code insn} does not push a literal.
+	 */
+	public static int getLiteralSort(AbstractInsnNode insn)
+	{
+		switch (insn.getOpcode())
+		{
+		case ICONST_M1: case ICONST_0: case ICONST_1: case ICONST_2: case ICONST_3: case ICONST_4: case ICONST_5:
+		case BIPUSH: case SIPUSH:
+			return Type.INT;
+		case LCONST_0: case LCONST_1:
+			return Type.LONG;
+		case FCONST_0: case FCONST_1: case FCONST_2:
+			return Type.FLOAT;
+		case DCONST_0: case DCONST_1:
+			return Type.DOUBLE;
+		case LDC:
+			Object cst = ((LdcInsnNode) insn).cst;
+			if (cst instanceof Integer)
+				return Type.INT;
+			if (cst instanceof Long)
+				return Type.LONG;
+			if (cst instanceof Float)
+				return Type.FLOAT;
+			if (cst instanceof Double)
+				return Type.DOUBLE;
+			return Type.OBJECT;
+		default:
+			return Type.VOID;
+		}
+	}
+
+	/**
+	 * Reads the literal pushed by {@code insn} without boxing it.
+	 * @return the value of an int or long literal, or the bits of a float or double literal as returned by
+	 * {@link Float#floatToIntBits(float)} or {@link Double#doubleToLongBits(double)}. 0 for any other literal.
+	 */
+	public static long getLiteralBits(AbstractInsnNode insn)
+	{
+		switch (insn.getOpcode())
+		{
+		case ICONST_M1: case ICONST_0: case ICONST_1: case ICONST_2: case ICONST_3: case ICONST_4: case ICONST_5:
+			return insn.getOpcode() - ICONST_0;
+		case LCONST_0: case LCONST_1:
+			return insn.getOpcode() - LCONST_0;
+		case FCONST_0: case FCONST_1: case FCONST_2:
+			return Float.floatToIntBits(insn.getOpcode() - FCONST_0);
+		case DCONST_0: case DCONST_1:
+			return Double.doubleToLongBits(insn.getOpcode() - DCONST_0);
+		case BIPUSH: case SIPUSH:
+			return ((IntInsnNode) insn).operand;
+		case LDC:
+			Object cst = ((LdcInsnNode) insn).cst;
+			if (cst instanceof Integer)
+				return (Integer) cst;
+			if (cst instanceof Long)
+				return (Long) cst;
+			if (cst instanceof Float)
+				return Float.floatToIntBits((Float) cst);
+			if (cst instanceof Double)
+				return Double.doubleToLongBits((Double) cst);
+			return 0;
+		default:
+			return 0;
+		}
+	}
+
 	public static boolean isLiteral(AbstractInsnNode insn, Object literal)
 	{
 		Object literalValue = getLiteralValue(insn);
@@ -0,0 +1,228 @@
+package daomephsta.unpick.impl;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.*;
+
+import org.objectweb.asm.tree.*;
+
+/**
+ * Finds the literals that an operand of an instruction is computed from, by walking backwards
+ * from the instruction through the instructions that produced the operand. Only operands computed by
+ * straight-line stack operations can be sliced. Operands that pass through local variables, stack
+ * shuffling instructions or control flow merges need full analysis by {@link UnpickInterpreter}.
+ * @author Daomephsta
+ */
+public class BackwardSlicer
+{
+	private final MethodNode method;
+	private final Set<LabelNode> mergePoints = new HashSet<>();
+	private boolean[] reachable;
+
+	public BackwardSlicer(MethodNode method)
+	{
+		this.method = method;
+		for (AbstractInsnNode insn : method.instructions)
+		{
+			if (insn instanceof JumpInsnNode)
+				mergePoints.add(((JumpInsnNode) insn).label);
+			else if (insn instanceof TableSwitchInsnNode)
+			{
+				TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode) insn;
+				mergePoints.add(tableSwitch.dflt);
+				mergePoints.addAll(tableSwitch.labels);
+			}
+			else if (insn instanceof LookupSwitchInsnNode)
+			{
+				LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode) insn;
+				mergePoints.add(lookupSwitch.dflt);
+				mergePoints.addAll(lookupSwitch.labels);
+			}
+		}
+		for (TryCatchBlockNode tryCatchBlock : method.tryCatchBlocks)
+		{
+			mergePoints.add(tryCatchBlock.handler);
+		}
+	}
+
+	/**
+	 * @param consumer an instruction
+	 * @param depth the depth of the operand of {@code consumer} to slice. The top of the stack is at depth 0.
+	 * @return the literals that the operand may be computed from, an empty list if {@code consumer} is unreachable,
+	 * or null if the operand cannot be sliced.
+	 */
+	public List<AbstractInsnNode> findLiteralSources(AbstractInsnNode consumer, int depth)
+	{
+		if (!isReachable(consumer))
+			return Collections.emptyList();
+		List<AbstractInsnNode> literals = new ArrayList<>();
+		// Depths of the values still being traced, relative to the stack before insn executes
+		int[] traced = {depth};
+		int tracedCount = 1;
+		for (AbstractInsnNode insn = consumer.getPrevious(); tracedCount > 0; insn = insn.getPrevious())
+		{
+			if (insn == null)
+				return null;
+			if (insn.getType() == AbstractInsnNode.LABEL)
+			{
+				if (mergePoints.contains(insn))
+					return null;
+				continue;
+			}
+			if (insn.getOpcode() == -1)
+				continue;
+			if (StackEffects.isUnconditionalTransfer(insn.getOpcode()))
+				return null;
+
+			int pops = StackEffects.pops(insn),
+				pushes = StackEffects.pushes(insn);
+			if (pops == StackEffects.VARIABLE || pushes == StackEffects.VARIABLE)
+				return null;
+			boolean produced = false;
+			int remaining = 0;
+			for (int i = 0; i < tracedCount; i++)
+			{
+				if (traced[i] < pushes)
+				{
+					// Copies made by DUP and friends are outside the scope of slicing
+					if (pushes != 1)
+						return null;
+					produced = true;
+				}
+				else
+					traced[remaining++] = traced[i] - pushes + pops;
+			}
+			tracedCount = remaining;
+			if (!produced)
+				continue;
+
+			int[] operands = operandsSharingResult(insn);
+			if (operands == null)
+				return null;
+			if (operands == LITERAL)
+			{
+				literals.add(insn);
+				continue;
+			}
+			if (tracedCount + operands.length > traced.length)
+				traced = Arrays.copyOf(traced, tracedCount + operands.length + 4);
+			for (int operand : operands)
+				traced[tracedCount++] = operand;
+		}
+		return literals;
+	}
+
+	private static final int[] LITERAL = {},
+							   FRESH = {},
+							   TOP = {0},
+							   SECOND = {1},
+							   BOTH = {0, 1};
+
+	/**
+	 * Mirrors how {@link UnpickInterpreter} propagates values
+	 * @return the depths of the operands of {@code producer} whose value sets are shared with its result,
+	 * {@link #LITERAL} if {@code producer} is a literal, or null if {@code producer} is not supported
+	 */
+	private static int[] operandsSharingResult(AbstractInsnNode producer)
+	{
+		if (AbstractInsnNodes.hasLiteralValue(producer))
+			return LITERAL;
+		int opcode = producer.getOpcode();
+		switch (opcode)
+		{
+		case ACONST_NULL:
+		case GETSTATIC:
+		case NEW:
+		case MULTIANEWARRAY:
+		case INVOKEVIRTUAL: case INVOKESPECIAL: case INVOKESTATIC: case INVOKEINTERFACE: case INVOKEDYNAMIC:
+		case IALOAD: case LALOAD: case FALOAD: case DALOAD: case AALOAD: case BALOAD: case CALOAD: case SALOAD:
+		case LCMP: case FCMPL: case FCMPG: case DCMPL: case DCMPG:
+			return FRESH;
+		case ISHL: case LSHL: case ISHR: case LSHR: case IUSHR: case LUSHR:
+			return SECOND;
+		case INEG: case LNEG: case FNEG: case DNEG:
+		case I2L: case I2F: case I2D: case L2I: case L2F: case L2D: case F2I: case F2L: case F2D:
+		case D2I: case D2L: case D2F: case I2B: case I2C: case I2S:
+		case GETFIELD:
+		case NEWARRAY: case ANEWARRAY: case ARRAYLENGTH:
+		case CHECKCAST: case INSTANCEOF:
+			return TOP;
+		default:
+			if ((opcode >= IADD && opcode <= DREM) || (opcode >= IAND && opcode <= LXOR))
+				return BOTH;
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if {@code insn} can be reached from the start of the method
+	 */
+	public boolean isReachable(AbstractInsnNode insn)
+	{
+		if (reachable == null)
+			reachable = computeReachable();
+		return reachable[method.instructions.indexOf(insn)];
+	}
+
+	private boolean[] computeReachable()
+	{
+		InsnList instructions = method.instructions;
+		boolean[] reachable = new boolean[instructions.size()];
+		Deque<AbstractInsnNode> pending = new ArrayDeque<>();
+		if (instructions.size() > 0)
+			markReachable(instructions.getFirst(), reachable, pending);
+		boolean changed = true;
+		while (changed)
+		{
+			while (!pending.isEmpty())
+			{
+				AbstractInsnNode insn = pending.pop();
+				if (insn instanceof JumpInsnNode)
+					markReachable(((JumpInsnNode) insn).label, reachable, pending);
+				else if (insn instanceof TableSwitchInsnNode)
+				{
+					TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode) insn;
+					markReachable(tableSwitch.dflt, reachable, pending);
+					for (LabelNode label : tableSwitch.labels)
+						markReachable(label, reachable, pending);
+				}
+				else if (insn instanceof LookupSwitchInsnNode)
+				{
+					LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode) insn;
+					markReachable(lookupSwitch.dflt, reachable, pending);
+					for (LabelNode label : lookupSwitch.labels)
+						markReachable(label, reachable, pending);
+				}
+				if (!StackEffects.isUnconditionalTransfer(insn.getOpcode()) && insn.getNext() != null)
+					markReachable(insn.getNext(), reachable, pending);
+			}
+			// Handlers are reachable if any instruction they cover is
+			changed = false;
+			for (TryCatchBlockNode tryCatchBlock : method.tryCatchBlocks)
+			{
+				if (reachable[instructions.indexOf(tryCatchBlock.handler)])
+					continue;
+				for (AbstractInsnNode insn = tryCatchBlock.start; insn != tryCatchBlock.end; insn = insn.getNext())
+				{
+					if (reachable[instructions.indexOf(insn)])
+					{
+						markReachable(tryCatchBlock.handler, reachable, pending);
+						changed = true;
+						break;
+					}
+				}
+			}
+		}
+		return reachable;
+	}
+
+	private void markReachable(AbstractInsnNode insn, boolean[] reachable, Deque<AbstractInsnNode> pending)
+	{
+		int index = method.instructions.indexOf(insn);
+		if (!reachable[index])
+		{
+			reachable[index] = true;
+			pending.push(insn);
+		}
+	}
+}
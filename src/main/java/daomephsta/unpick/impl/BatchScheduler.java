@@ -0,0 +1,163 @@
+package daomephsta.unpick.impl;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Submits the items of a batch to an executor as long as the estimated memory cost
+ * of the items in flight stays within a budget. More items are submitted whenever
+ * an item completes, so no thread is blocked waiting for the budget.
+ * @author Daomephsta
+ */
+public class BatchScheduler<T, R>
+{
+	private final Iterator<T> inputs;
+	private final Executor executor;
+	private final long budget;
+	private final ToLongFunction<T> cost;
+	private final Function<T, R> task;
+	private final Consumer<R> callback;
+	private final CompletableFuture<Void> completion = new CompletableFuture<>();
+	// Guarded by this
+	private T pending;
+	private long pendingCost,
+				 inFlightCost;
+	private int inFlight;
+	private boolean submitting,
+					resubmit;
+
+	private BatchScheduler(Iterator<T> inputs, Executor executor, long budget, ToLongFunction<T> cost, Function<T, R> task, Consumer<R> callback)
+	{
+		this.inputs = inputs;
+		this.executor = executor;
+		this.budget = budget;
+		this.cost = cost;
+		this.task = task;
+		this.callback = callback;
+	}
+
+	/**
+	 * Applies {@code task} to every item of {@code inputs} on {@code executor}, and passes each result to {@code callback}.
+	 * @param budget the maximum total cost of the items in flight. An item that costs more than the budget
+	 * is only submitted when nothing else is in flight.
+	 * @param cost estimates the memory cost of an item
+	 * @return a future that completes when every item has been passed to {@code callback}, or completes
+	 * exceptionally when {@code task} or {@code callback} first throws. No items are submitted after that.
+	 */
+	public static <T, R> CompletableFuture<Void> run(Iterator<T> inputs, Executor executor, long budget,
+		ToLongFunction<T> cost, Function<T, R> task, Consumer<R> callback)
+	{
+		BatchScheduler<T, R> scheduler = new BatchScheduler<>(inputs, executor, budget, cost, task, callback);
+		scheduler.submit();
+		return scheduler.completion;
+	}
+
+	private void submit()
+	{
+		synchronized (this)
+		{
+			// Whoever is already submitting will check the budget again
+			if (submitting)
+			{
+				resubmit = true;
+				return;
+			}
+			submitting = true;
+		}
+		while (true)
+		{
+			T item;
+			long itemCost;
+			synchronized (this)
+			{
+				if (!completion.isDone() && !canSubmit())
+				{
+					if (resubmit)
+					{
+						resubmit = false;
+						continue;
+					}
+					if (pending == null && inFlight == 0)
+						completion.complete(null);
+					submitting = false;
+					return;
+				}
+				if (completion.isDone())
+				{
+					submitting = false;
+					return;
+				}
+				item = pending;
+				itemCost = pendingCost;
+				pending = null;
+				inFlight++;
+				inFlightCost += itemCost;
+			}
+			try
+			{
+				executor.execute(() -> process(item, itemCost));
+			}
+			catch (RuntimeException e)
+			{
+				completion.completeExceptionally(e);
+				finished(itemCost);
+			}
+		}
+	}
+
+	/**
+	 * Takes the next item from the inputs if there is no pending item
+	 * @return true if there is a pending item that fits in the budget
+	 */
+	private boolean canSubmit()
+	{
+		if (pending == null)
+		{
+			try
+			{
+				if (!inputs.hasNext())
+					return false;
+				pending = inputs.next();
+				pendingCost = Math.max(0, Math.min(cost.applyAsLong(pending), budget));
+			}
+			catch (RuntimeException e)
+			{
+				pending = null;
+				completion.completeExceptionally(e);
+				return false;
+			}
+		}
+		return inFlight == 0 || inFlightCost + pendingCost <= budget;
+	}
+
+	private void process(T item, long itemCost)
+	{
+		try
+		{
+			if (!completion.isDone())
+				callback.accept(task.apply(item));
+		}
+		catch (Throwable e)
+		{
+			completion.completeExceptionally(e);
+		}
+		finally
+		{
+			finished(itemCost);
+		}
+	}
+
+	private void finished(long itemCost)
+	{
+		synchronized (this)
+		{
+			inFlight--;
+			inFlightCost -= itemCost;
+		}
+		submit();
+	}
+}
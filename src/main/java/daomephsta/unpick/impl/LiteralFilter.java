@@ -0,0 +1,192 @@
+package daomephsta.unpick.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+
+import daomephsta.unpick.impl.representations.AbstractConstantGroup;
+
+/**
+ * A compact, conservative filter over the literal values that can be replaced.
+ * Constant values are kept in a Bloom filter, so false positives are possible but false negatives are not.
+ * Flags are kept as a union of their bits. A literal can only be decomposed into flags if it shares a bit with the union,
+ * or if the union covers every bit of its bitwise negation.
+ * @author Daomephsta
+ */
+public class LiteralFilter
+{
+	private static final int BITS_PER_VALUE = 10,
+							 HASH_COUNT = 3;
+	private static final long INT_MASK = 0xFFFFFFFFL;
+	private final long[] bloom;
+	private final int bloomMask;
+	private long intFlags,
+				 longFlags;
+	private boolean intZeroFlag,
+					longZeroFlag,
+					longAllOnesFlag;
+
+	private LiteralFilter(Builder builder)
+	{
+		int bits = Long.SIZE;
+		while (bits < builder.constants.size() * BITS_PER_VALUE && bits < (1 << 30))
+			bits <<= 1;
+		this.bloom = new long[bits / Long.SIZE];
+		this.bloomMask = bits - 1;
+		for (Object constant : builder.constants)
+			addConstant(constant);
+		for (Number flag : builder.flags)
+			addFlag(flag);
+	}
+
+	public static Builder builder()
+	{
+		return new Builder();
+	}
+
+	/**
+	 * @param groups resolved constant groups
+	 * @return a filter over the values that the constants of {@code groups} can replace
+	 */
+	public static LiteralFilter of(Iterable<? extends AbstractConstantGroup<?>> groups)
+	{
+		Builder builder = builder();
+		for (AbstractConstantGroup<?> group : groups)
+			group.addReplaceableValues(builder);
+		return builder.build();
+	}
+
+	/**
+	 * @param literal an instruction that pushes a literal
+	 * @return false if the value of {@code literal} definitely cannot be replaced
+	 */
+	public boolean mayContain(AbstractInsnNode literal)
+	{
+		int sort = AbstractInsnNodes.getLiteralSort(literal);
+		long bits = sort == Type.OBJECT
+			? AbstractInsnNodes.getLiteralValue(literal).hashCode()
+			: AbstractInsnNodes.getLiteralBits(literal);
+		if (bloomContains(sort, bits))
+			return true;
+		// Flag groups only replace 0, and long -1, with a flag of that exact value
+		switch (sort)
+		{
+		case Type.INT:
+			return bits == 0 ? intZeroFlag : mayDecompose(bits & INT_MASK, intFlags, INT_MASK);
+		case Type.LONG:
+			if (bits == 0)
+				return longZeroFlag;
+			return bits == -1 ? longAllOnesFlag : mayDecompose(bits, longFlags, -1L);
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @param literal the unsigned value of a literal
+	 * @param flags the union of the flags of the literal's type
+	 * @param typeMask the bits of the literal's type
+	 * @return false if no flag is a subset of {@code literal}, and the flags do not cover its bitwise negation
+	 */
+	private static boolean mayDecompose(long literal, long flags, long typeMask)
+	{
+		return (literal & flags) != 0 || (~literal & typeMask & ~flags) == 0;
+	}
+
+	// Byte, short, and char values are widened to int, as the JVM pushes them as ints
+	private void addConstant(Object value)
+	{
+		if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+			addBits(Type.INT, ((Number) value).intValue());
+		else if (value instanceof Character)
+			addBits(Type.INT, (Character) value);
+		else if (value instanceof Long)
+			addBits(Type.LONG, (Long) value);
+		else if (value instanceof Float)
+			addBits(Type.FLOAT, Float.floatToIntBits((Float) value));
+		else if (value instanceof Double)
+			addBits(Type.DOUBLE, Double.doubleToLongBits((Double) value));
+		else
+			addBits(Type.OBJECT, value.hashCode());
+	}
+
+	private void addFlag(Number value)
+	{
+		intFlags |= Integer.toUnsignedLong(value.intValue());
+		longFlags |= value.longValue();
+		intZeroFlag |= value.intValue() == 0;
+		longZeroFlag |= value.longValue() == 0;
+		longAllOnesFlag |= value.longValue() == -1;
+	}
+
+	private void addBits(int sort, long bits)
+	{
+		long hash = hash(sort, bits);
+		for (int i = 0; i < HASH_COUNT; i++)
+		{
+			int index = bitIndex(hash, i);
+			bloom[index >>> 6] |= 1L << index;
+		}
+	}
+
+	private boolean bloomContains(int sort, long bits)
+	{
+		long hash = hash(sort, bits);
+		for (int i = 0; i < HASH_COUNT; i++)
+		{
+			int index = bitIndex(hash, i);
+			if ((bloom[index >>> 6] & (1L << index)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	private static long hash(int sort, long bits)
+	{
+		long hash = (bits ^ ((long) sort << 56)) * 0x9E3779B97F4A7C15L;
+		return hash ^ (hash >>> 29);
+	}
+
+	/**
+	 * Derives the {@code i}th bit index from two halves of {@code hash}
+	 */
+	private int bitIndex(long hash, int i)
+	{
+		int h1 = (int) hash,
+			h2 = (int) (hash >>> 32) | 1;
+		return (h1 + i * h2) & bloomMask;
+	}
+
+	public static class Builder
+	{
+		private final List<Object> constants = new ArrayList<>();
+		private final List<Number> flags = new ArrayList<>();
+
+		/**
+		 * @param value the value of a constant that can replace literals with the same value
+		 * @return this builder
+		 */
+		public Builder constant(Object value)
+		{
+			constants.add(value);
+			return this;
+		}
+
+		/**
+		 * @param value the value of a flag that can be part of the replacement of int or long literals
+		 * @return this builder
+		 */
+		public Builder flag(Number value)
+		{
+			flags.add(value);
+			return this;
+		}
+
+		public LiteralFilter build()
+		{
+			return new LiteralFilter(this);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package daomephsta.unpick.impl;
+
+/**
+ * An open addressing hash map with primitive long keys, so lookups neither box nor allocate.
+ * Null values are not supported.
+ * @author Daomephsta
+ */
+public class LongKeyedMap<V>
+{
+	private long[] keys;
+	private Object[] values;
+	private int size;
+
+	public LongKeyedMap()
+	{
+		this.keys = new long[8];
+		this.values = new Object[8];
+	}
+
+	/**
+	 * Associates {@code value} with {@code key}, replacing any existing value
+	 */
+	public void put(long key, V value)
+	{
+		if (value == null)
+			throw new IllegalArgumentException("Null values are not supported");
+		// Keep the load factor at or below 1/2, so probe sequences stay short
+		if ((size + 1) * 2 > keys.length)
+			resize(keys.length * 2);
+		int slot = findSlot(keys, values, key);
+		if (values[slot] == null)
+			size++;
+		keys[slot] = key;
+		values[slot] = value;
+	}
+
+	/**
+	 * @return the value associated with {@code key}, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key)
+	{
+		return (V) values[findSlot(keys, values, key)];
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	private void resize(int capacity)
+	{
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (oldValues[i] != null)
+			{
+				int slot = findSlot(keys, values, oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * @return the slot that holds {@code key}, or the empty slot it would be inserted into
+	 */
+	private static int findSlot(long[] keys, Object[] values, long key)
+	{
+		int mask = keys.length - 1;
+		long hash = key * 0x9E3779B97F4A7C15L;
+		int slot = (int) (hash ^ (hash >>> 32)) & mask;
+		while (values[slot] != null && keys[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder("{");
+		for (int i = 0; i < keys.length; i++)
+		{
+			if (values[i] != null)
+			{
+				if (builder.length() > 1)
+					builder.append(", ");
+				builder.append(keys[i]).append('=').append(values[i]);
+			}
+		}
+		return builder.append('}').toString();
+	}
+}
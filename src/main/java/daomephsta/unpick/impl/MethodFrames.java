@@ -0,0 +1,115 @@
+package daomephsta.unpick.impl;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+import org.objectweb.asm.tree.analysis.Frame;
+
+/**
+ * The frames computed for the instructions of a method, indexed by instruction index.
+ * @author Daomephsta
+ */
+public abstract class MethodFrames
+{
+	/**
+	 * @param frames the frames returned by {@link org.objectweb.asm.tree.analysis.Analyzer#analyze}
+	 * @return an instance of MethodFrames that retains every frame in {@code frames}
+	 */
+	public static MethodFrames of(Frame<UnpickValue>[] frames)
+	{
+		return new Full(frames);
+	}
+
+	/**
+	 * Copies the frames selected by {@code retain} out of {@code frames}, so that the
+	 * rest of the array can be garbage collected as soon as the caller drops it.
+	 * @param frames the frames returned by {@link org.objectweb.asm.tree.analysis.Analyzer#analyze}
+	 * @param retain selects the instruction indices to retain the frames of
+	 * @return an instance of MethodFrames that retains only the selected frames
+	 */
+	public static MethodFrames sparse(Frame<UnpickValue>[] frames, IntPredicate retain)
+	{
+		int[] indices = new int[frames.length];
+		int count = 0;
+		for (int index = 0; index < frames.length; index++)
+		{
+			if (frames[index] != null && retain.test(index))
+				indices[count++] = index;
+		}
+		Frame<?>[] retained = new Frame<?>[count];
+		for (int i = 0; i < count; i++)
+			retained[i] = frames[indices[i]];
+		return new Sparse(frames.length, Arrays.copyOf(indices, count), retained);
+	}
+
+	/**
+	 * @param size the number of instructions in the method
+	 * @return an instance of MethodFrames that retains no frames, for methods that were not analysed
+	 */
+	public static MethodFrames none(int size)
+	{
+		return new Sparse(size, new int[0], new Frame<?>[0]);
+	}
+
+	/**
+	 * @param index the index of an instruction
+	 * @return the frame before the instruction at {@code index} is executed, or null if
+	 * the instruction is unreachable, {@code index} is out of bounds, or the frame was not retained.
+	 */
+	public abstract Frame<UnpickValue> get(int index);
+
+	/**@return the number of instructions in the analysed method*/
+	public abstract int size();
+
+	private static class Full extends MethodFrames
+	{
+		private final Frame<UnpickValue>[] frames;
+
+		Full(Frame<UnpickValue>[] frames)
+		{
+			this.frames = frames;
+		}
+
+		@Override
+		public Frame<UnpickValue> get(int index)
+		{
+			return index >= 0 && index < frames.length ? frames[index] : null;
+		}
+
+		@Override
+		public int size()
+		{
+			return frames.length;
+		}
+	}
+
+	private static class Sparse extends MethodFrames
+	{
+		private final int size;
+		// Sorted, so that frames can be found by binary search
+		private final int[] indices;
+		// Only ever holds frames of UnpickValues, as generic arrays cannot be created
+		private final Frame<?>[] frames;
+
+		Sparse(int size, int[] indices, Frame<?>[] frames)
+		{
+			this.size = size;
+			this.indices = indices;
+			this.frames = frames;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Frame<UnpickValue> get(int index)
+		{
+			int position = Arrays.binarySearch(indices, index);
+			return position >= 0 ? (Frame<UnpickValue>) frames[position] : null;
+		}
+
+		@Override
+		public int size()
+		{
+			return size;
+		}
+	}
+}
@@ -0,0 +1,516 @@
+package daomephsta.unpick.impl;
+
+import java.util.*;
+
+import org.objectweb.asm.*;
+import org.objectweb.asm.tree.*;
+
+/**
+ * Buffers a method while simulating its operand stack, to find literals that are passed directly
+ * to a method invocation or lambda capture, or are returned directly. Methods where a literal is used in
+ * any other way, or where values are on the stack at a branch, are marked as complex and must be analysed
+ * by {@link UnpickInterpreter} instead.
+ * @author Daomephsta
+ */
+public class PeepholeMethodNode extends MethodNode
+{
+	private final List<Site> sites = new ArrayList<>();
+	private final List<InvokeDynamicInsnNode> invokeDynamics = new ArrayList<>();
+	private final Set<Label> handlers = new HashSet<>();
+	// The labels that jumps, switches and exception handlers may transfer control to
+	private final Set<LabelNode> targets = new HashSet<>();
+	// The instructions that end a block, after which execution only continues at a target
+	private final List<AbstractInsnNode> transfers = new ArrayList<>();
+	// The literal each stack value came from, or null if it did not come from a literal
+	private AbstractInsnNode[] stackLiterals = new AbstractInsnNode[8];
+	private boolean[] stackWide = new boolean[8];
+	private int stackSize = 0;
+	private final AbstractInsnNode[] shuffledLiterals = new AbstractInsnNode[4];
+	private final boolean[] shuffledWide = new boolean[4];
+	private boolean complex = false;
+
+	public PeepholeMethodNode(int access, String name, String descriptor, String signature, String[] exceptions)
+	{
+		super(Opcodes.ASM9, access, name, descriptor, signature, exceptions);
+	}
+
+	/**@return true if the method must be analysed by {@link UnpickInterpreter}*/
+	public boolean isComplex()
+	{
+		return complex;
+	}
+
+	/**@return true if the method may contain unreachable instructions*/
+	public boolean mayContainUnreachableCode()
+	{
+		for (AbstractInsnNode transfer : transfers)
+		{
+			// An instruction directly after a transfer, without a target in between, is never executed
+			for (AbstractInsnNode next = transfer.getNext(); next != null; next = next.getNext())
+			{
+				if (next instanceof LabelNode)
+				{
+					if (targets.contains(next))
+						break;
+				}
+				else if (next.getOpcode() >= 0)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**@return the literals that are passed directly to method invocations, lambda captures, or returns*/
+	public List<Site> getSites()
+	{
+		return sites;
+	}
+
+	/**@return the invokedynamic instructions in this method*/
+	public List<InvokeDynamicInsnNode> getInvokeDynamics()
+	{
+		return invokeDynamics;
+	}
+
+	@Override
+	public void visitTryCatchBlock(Label start, Label end, Label handler, String type)
+	{
+		super.visitTryCatchBlock(start, end, handler, type);
+		handlers.add(handler);
+		targets.add(getLabelNode(handler));
+	}
+
+	@Override
+	public void visitLabel(Label label)
+	{
+		super.visitLabel(label);
+		if (handlers.contains(label))
+		{
+			stackSize = 0;
+			push(null, false); // The exception
+		}
+	}
+
+	@Override
+	public void visitInsn(int opcode)
+	{
+		super.visitInsn(opcode);
+		if (complex)
+			return;
+		switch (opcode)
+		{
+		case Opcodes.NOP:
+			break;
+		case Opcodes.ICONST_M1: case Opcodes.ICONST_0: case Opcodes.ICONST_1: case Opcodes.ICONST_2:
+		case Opcodes.ICONST_3: case Opcodes.ICONST_4: case Opcodes.ICONST_5:
+		case Opcodes.FCONST_0: case Opcodes.FCONST_1: case Opcodes.FCONST_2:
+			push(instructions.getLast(), false);
+			break;
+		case Opcodes.LCONST_0: case Opcodes.LCONST_1: case Opcodes.DCONST_0: case Opcodes.DCONST_1:
+			push(instructions.getLast(), true);
+			break;
+		case Opcodes.POP:
+			pop();
+			break;
+		case Opcodes.POP2:
+			if (!pop().wide)
+				pop();
+			break;
+		case Opcodes.IASTORE: case Opcodes.LASTORE: case Opcodes.FASTORE: case Opcodes.DASTORE:
+		case Opcodes.AASTORE: case Opcodes.BASTORE: case Opcodes.CASTORE: case Opcodes.SASTORE:
+			// Array elements are not tracked, so storing literals in them is a dead end
+			pop();
+			pop();
+			pop();
+			break;
+		case Opcodes.DUP:
+			shuffle(1, 0, 0);
+			break;
+		case Opcodes.DUP_X1:
+			shuffle(2, 0, 1, 0);
+			break;
+		case Opcodes.DUP_X2:
+			if (isWide(1))
+				shuffle(2, 0, 1, 0);
+			else
+				shuffle(3, 0, 2, 1, 0);
+			break;
+		case Opcodes.DUP2:
+			if (isWide(0))
+				shuffle(1, 0, 0);
+			else
+				shuffle(2, 1, 0, 1, 0);
+			break;
+		case Opcodes.DUP2_X1:
+			if (isWide(0))
+				shuffle(2, 0, 1, 0);
+			else
+				shuffle(3, 1, 0, 2, 1, 0);
+			break;
+		case Opcodes.DUP2_X2:
+			if (isWide(0))
+			{
+				if (isWide(1))
+					shuffle(2, 0, 1, 0);
+				else
+					shuffle(3, 0, 2, 1, 0);
+			}
+			else
+			{
+				if (isWide(2))
+					shuffle(3, 1, 0, 2, 1, 0);
+				else
+					shuffle(4, 1, 0, 3, 2, 1, 0);
+			}
+			break;
+		case Opcodes.SWAP:
+			shuffle(2, 0, 1);
+			break;
+		case Opcodes.IRETURN: case Opcodes.LRETURN: case Opcodes.FRETURN: case Opcodes.DRETURN: case Opcodes.ARETURN:
+		{
+			AbstractInsnNode literal = pop().literal;
+			if (literal != null)
+				sites.add(new Site(literal, instructions.getLast(), Site.RETURN));
+			endBlock();
+			break;
+		}
+		case Opcodes.RETURN:
+			endBlock();
+			break;
+		case Opcodes.ATHROW:
+			consume(1);
+			endBlock();
+			break;
+		default:
+			consume(StackEffects.pops(opcode));
+			if (StackEffects.pushes(opcode) == 1)
+				push(null, isWideResult(opcode));
+			break;
+		}
+	}
+
+	@Override
+	public void visitIntInsn(int opcode, int operand)
+	{
+		super.visitIntInsn(opcode, operand);
+		if (complex)
+			return;
+		if (opcode == Opcodes.NEWARRAY)
+			consume(1);
+		push(opcode == Opcodes.NEWARRAY ? null : instructions.getLast(), false);
+	}
+
+	@Override
+	public void visitVarInsn(int opcode, int varIndex)
+	{
+		super.visitVarInsn(opcode, varIndex);
+		if (complex)
+			return;
+		if (opcode == Opcodes.RET)
+			complex = true;
+		else if (opcode >= Opcodes.ISTORE)
+			consume(1);
+		else
+			push(null, opcode == Opcodes.LLOAD || opcode == Opcodes.DLOAD);
+	}
+
+	@Override
+	public void visitTypeInsn(int opcode, String type)
+	{
+		super.visitTypeInsn(opcode, type);
+		if (complex)
+			return;
+		if (opcode != Opcodes.NEW)
+			consume(1);
+		push(null, false);
+	}
+
+	@Override
+	public void visitFieldInsn(int opcode, String owner, String name, String descriptor)
+	{
+		super.visitFieldInsn(opcode, owner, name, descriptor);
+		if (complex)
+			return;
+		boolean wide = descriptor.equals("J") || descriptor.equals("D");
+		switch (opcode)
+		{
+		case Opcodes.GETSTATIC:
+			push(null, wide);
+			break;
+		case Opcodes.PUTSTATIC:
+			pop();
+			break;
+		case Opcodes.GETFIELD:
+			consume(1);
+			push(null, wide);
+			break;
+		case Opcodes.PUTFIELD:
+			pop();
+			pop();
+			break;
+		}
+	}
+
+	@Override
+	public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface)
+	{
+		super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+		if (complex)
+			return;
+		AbstractInsnNode invocation = instructions.getLast();
+		popArguments(invocation, descriptor);
+		// Literal receivers are never mapped
+		if (opcode != Opcodes.INVOKESTATIC)
+			pop();
+		pushReturnValue(descriptor);
+	}
+
+	@Override
+	public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments)
+	{
+		super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+		InvokeDynamicInsnNode invokeDynamic = (InvokeDynamicInsnNode) instructions.getLast();
+		invokeDynamics.add(invokeDynamic);
+		if (complex)
+			return;
+		popArguments(invokeDynamic, descriptor);
+		pushReturnValue(descriptor);
+	}
+
+	@Override
+	public void visitJumpInsn(int opcode, Label label)
+	{
+		super.visitJumpInsn(opcode, label);
+		targets.add(getLabelNode(label));
+		if (complex)
+			return;
+		if (opcode == Opcodes.JSR)
+		{
+			complex = true;
+			return;
+		}
+		consume(StackEffects.pops(opcode));
+		branch();
+		if (opcode == Opcodes.GOTO)
+			endBlock();
+	}
+
+	@Override
+	public void visitLdcInsn(Object value)
+	{
+		super.visitLdcInsn(value);
+		if (complex)
+			return;
+		push(instructions.getLast(), value instanceof Long || value instanceof Double);
+	}
+
+	@Override
+	public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels)
+	{
+		super.visitTableSwitchInsn(min, max, dflt, labels);
+		addTargets(dflt, labels);
+		if (complex)
+			return;
+		consume(1);
+		branch();
+		endBlock();
+	}
+
+	@Override
+	public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels)
+	{
+		super.visitLookupSwitchInsn(dflt, keys, labels);
+		addTargets(dflt, labels);
+		if (complex)
+			return;
+		consume(1);
+		branch();
+		endBlock();
+	}
+
+	@Override
+	public void visitMultiANewArrayInsn(String descriptor, int numDimensions)
+	{
+		super.visitMultiANewArrayInsn(descriptor, numDimensions);
+		if (complex)
+			return;
+		consume(numDimensions);
+		push(null, false);
+	}
+
+	private void addTargets(Label dflt, Label[] labels)
+	{
+		targets.add(getLabelNode(dflt));
+		for (Label label : labels)
+			targets.add(getLabelNode(label));
+	}
+
+	private void popArguments(AbstractInsnNode invocation, String descriptor)
+	{
+		for (int parameterIndex = StackEffects.countArguments(descriptor) - 1; parameterIndex >= 0; parameterIndex--)
+		{
+			AbstractInsnNode literal = pop().literal;
+			if (literal != null)
+				sites.add(new Site(literal, invocation, parameterIndex));
+		}
+	}
+
+	private void pushReturnValue(String descriptor)
+	{
+		if (StackEffects.returnsValue(descriptor))
+		{
+			int returnTypeStart = descriptor.length() - 2;
+			char returnType = descriptor.charAt(descriptor.length() - 1);
+			push(null, descriptor.charAt(returnTypeStart) == ')' && (returnType == 'J' || returnType == 'D'));
+		}
+	}
+
+	/**
+	 * Values on the stack at a branch may merge with other values, which only {@link UnpickInterpreter} tracks
+	 */
+	private void branch()
+	{
+		if (stackSize > 0)
+			complex = true;
+	}
+
+	private void endBlock()
+	{
+		stackSize = 0;
+		transfers.add(instructions.getLast());
+	}
+
+	/**
+	 * Pops {@code count} values, which are copied to the stack in {@code pushOrder}, bottom first. 0 is the top value.
+	 * Stack shuffling copies values, which only {@link UnpickInterpreter} tracks, so literals must not be shuffled.
+	 */
+	private void shuffle(int count, int... pushOrder)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			Popped popped = pop();
+			if (popped.literal != null)
+			{
+				complex = true;
+				return;
+			}
+			shuffledLiterals[i] = null;
+			shuffledWide[i] = popped.wide;
+		}
+		for (int i : pushOrder)
+			push(shuffledLiterals[i], shuffledWide[i]);
+	}
+
+	/**
+	 * Pops {@code count} values. Literals used by anything other than a method invocation or return
+	 * are tracked by {@link UnpickInterpreter} only.
+	 */
+	private void consume(int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			if (pop().literal != null)
+				complex = true;
+		}
+	}
+
+	private void push(AbstractInsnNode literal, boolean wide)
+	{
+		if (stackSize == stackLiterals.length)
+		{
+			stackLiterals = Arrays.copyOf(stackLiterals, stackSize * 2);
+			stackWide = Arrays.copyOf(stackWide, stackSize * 2);
+		}
+		stackLiterals[stackSize] = literal;
+		stackWide[stackSize] = wide;
+		stackSize++;
+	}
+
+	private final Popped popped = new Popped();
+
+	private Popped pop()
+	{
+		if (stackSize == 0)
+		{
+			// Only possible in unreachable code that was not preceded by a label
+			complex = true;
+			popped.literal = null;
+			popped.wide = false;
+			return popped;
+		}
+		stackSize--;
+		popped.literal = stackLiterals[stackSize];
+		popped.wide = stackWide[stackSize];
+		stackLiterals[stackSize] = null;
+		return popped;
+	}
+
+	private boolean isWide(int depth)
+	{
+		return depth < stackSize && stackWide[stackSize - 1 - depth];
+	}
+
+	private static boolean isWideResult(int opcode)
+	{
+		switch (opcode)
+		{
+		case Opcodes.LALOAD: case Opcodes.DALOAD:
+		case Opcodes.LSHL: case Opcodes.LSHR: case Opcodes.LUSHR:
+		case Opcodes.LAND: case Opcodes.LOR: case Opcodes.LXOR:
+		case Opcodes.I2L: case Opcodes.I2D: case Opcodes.F2L: case Opcodes.F2D: case Opcodes.L2D: case Opcodes.D2L:
+			return true;
+		default:
+			if (opcode >= Opcodes.IADD && opcode <= Opcodes.DNEG)
+			{
+				// Arithmetic opcodes are ordered int, long, float, double
+				int type = (opcode - Opcodes.IADD) % 4;
+				return type == 1 || type == 3;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Reused to avoid allocating for every pop
+	 */
+	private static class Popped
+	{
+		AbstractInsnNode literal;
+		boolean wide;
+	}
+
+	/**
+	 * A literal that is passed directly to a method invocation or lambda capture, or is returned directly
+	 */
+	public static class Site
+	{
+		public static final int RETURN = -1;
+
+		private final AbstractInsnNode literal, consumer;
+		private final int parameterIndex;
+
+		Site(AbstractInsnNode literal, AbstractInsnNode consumer, int parameterIndex)
+		{
+			this.literal = literal;
+			this.consumer = consumer;
+			this.parameterIndex = parameterIndex;
+		}
+
+		public AbstractInsnNode getLiteral()
+		{
+			return literal;
+		}
+
+		/**@return the method invocation, invokedynamic, or return instruction that uses the literal*/
+		public AbstractInsnNode getConsumer()
+		{
+			return consumer;
+		}
+
+		/**@return the index of the parameter the literal is passed as, or {@link #RETURN} if it is returned*/
+		public int getParameterIndex()
+		{
+			return parameterIndex;
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package daomephsta.unpick.impl;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+/**
+ * The number of stack values, rather than stack words, that instructions pop and push.
+ * Instructions whose effect depends on the sizes of the values on the stack, or that
+ * use subroutines, are reported as {@link #VARIABLE}.
+ * @author Daomephsta
+ */
+public class StackEffects
+{
+	public static final int VARIABLE = -1;
+
+	/**
+	 * Computes the maximum operand stack size of a method in words, as a {@link org.objectweb.asm.ClassWriter}
+	 * would with {@link org.objectweb.asm.ClassWriter#COMPUTE_MAXS}.
+	 * @param owner the internal name of the class that owns {@code method}
+	 * @return the maximum stack size of {@code method}, or its current {@link MethodNode#maxStack} if it cannot be analysed
+	 */
+	public static int computeMaxStack(String owner, MethodNode method)
+	{
+		// Frames are sized by the current max stack, so it is grown until the stack fits
+		int original = method.maxStack;
+		Frame<BasicValue>[] frames;
+		try
+		{
+			while (true)
+			{
+				try
+				{
+					frames = new Analyzer<>(new BasicInterpreter()).analyze(owner, method);
+					break;
+				}
+				catch (AnalyzerException e)
+				{
+					if (!(e.getCause() instanceof IndexOutOfBoundsException))
+						return original;
+					method.maxStack = method.maxStack * 2 + 2;
+				}
+			}
+		}
+		finally
+		{
+			method.maxStack = original;
+		}
+		// Every value pushed is on the stack before the instruction that consumes it,
+		// so the largest frame is the largest stack
+		int maxStack = 0;
+		for (Frame<BasicValue> frame : frames)
+		{
+			if (frame == null)
+				continue;
+			int size = 0;
+			for (int i = 0; i < frame.getStackSize(); i++)
+				size += frame.getStack(i).getSize();
+			maxStack = Math.max(maxStack, size);
+		}
+		return maxStack;
+	}
+
+	public static int pops(AbstractInsnNode insn)
+	{
+		switch (insn.getType())
+		{
+		case AbstractInsnNode.METHOD_INSN:
+		{
+			MethodInsnNode methodInsn = (MethodInsnNode) insn;
+			return countArguments(methodInsn.desc) + (insn.getOpcode() == INVOKESTATIC ? 0 : 1);
+		}
+		case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+			return countArguments(((InvokeDynamicInsnNode) insn).desc);
+		case AbstractInsnNode.MULTIANEWARRAY_INSN:
+			return ((MultiANewArrayInsnNode) insn).dims;
+		default:
+			return pops(insn.getOpcode());
+		}
+	}
+
+	public static int pushes(AbstractInsnNode insn)
+	{
+		switch (insn.getType())
+		{
+		case AbstractInsnNode.METHOD_INSN:
+			return returnsValue(((MethodInsnNode) insn).desc) ? 1 : 0;
+		case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+			return returnsValue(((InvokeDynamicInsnNode) insn).desc) ? 1 : 0;
+		default:
+			return pushes(insn.getOpcode());
+		}
+	}
+
+	/**
+	 * @param opcode an opcode, or -1 for labels, line numbers and frames
+	 * @return the number of values popped by instructions with {@code opcode}. Method invocations
+	 * and multi-dimensional array creations depend on their operands, and are reported as {@link #VARIABLE}.
+	 */
+	public static int pops(int opcode)
+	{
+		switch (opcode)
+		{
+		case -1:
+		case NOP:
+		case GOTO:
+		case IINC:
+		case RETURN:
+		case GETSTATIC:
+		case NEW:
+			return 0;
+		case ISTORE: case LSTORE: case FSTORE: case DSTORE: case ASTORE:
+		case POP:
+		case INEG: case LNEG: case FNEG: case DNEG:
+		case I2L: case I2F: case I2D: case L2I: case L2F: case L2D: case F2I: case F2L: case F2D:
+		case D2I: case D2L: case D2F: case I2B: case I2C: case I2S:
+		case IFEQ: case IFNE: case IFLT: case IFGE: case IFGT: case IFLE: case IFNULL: case IFNONNULL:
+		case TABLESWITCH: case LOOKUPSWITCH:
+		case IRETURN: case LRETURN: case FRETURN: case DRETURN: case ARETURN:
+		case PUTSTATIC:
+		case GETFIELD:
+		case NEWARRAY: case ANEWARRAY: case ARRAYLENGTH:
+		case ATHROW:
+		case CHECKCAST: case INSTANCEOF:
+		case MONITORENTER: case MONITOREXIT:
+			return 1;
+		case IALOAD: case LALOAD: case FALOAD: case DALOAD: case AALOAD: case BALOAD: case CALOAD: case SALOAD:
+		case DUP_X1:
+		case SWAP:
+		case IADD: case LADD: case FADD: case DADD: case ISUB: case LSUB: case FSUB: case DSUB:
+		case IMUL: case LMUL: case FMUL: case DMUL: case IDIV: case LDIV: case FDIV: case DDIV:
+		case IREM: case LREM: case FREM: case DREM:
+		case ISHL: case LSHL: case ISHR: case LSHR: case IUSHR: case LUSHR:
+		case IAND: case LAND: case IOR: case LOR: case IXOR: case LXOR:
+		case LCMP: case FCMPL: case FCMPG: case DCMPL: case DCMPG:
+		case IF_ICMPEQ: case IF_ICMPNE: case IF_ICMPLT: case IF_ICMPGE: case IF_ICMPGT: case IF_ICMPLE:
+		case IF_ACMPEQ: case IF_ACMPNE:
+		case PUTFIELD:
+			return 2;
+		case IASTORE: case LASTORE: case FASTORE: case DASTORE: case AASTORE: case BASTORE: case CASTORE: case SASTORE:
+			return 3;
+		case DUP:
+			return 1;
+		default:
+			if (opcode >= ACONST_NULL && opcode <= ALOAD)
+				return 0; // Constants, literals and loads
+			return VARIABLE;
+		}
+	}
+
+	/**
+	 * @param opcode an opcode, or -1 for labels, line numbers and frames
+	 * @return the number of values pushed by instructions with {@code opcode}. Method invocations
+	 * depend on their descriptor, and are reported as {@link #VARIABLE}.
+	 */
+	public static int pushes(int opcode)
+	{
+		switch (opcode)
+		{
+		case DUP:
+		case SWAP:
+			return 2;
+		case DUP_X1:
+			return 3;
+		case GETSTATIC:
+		case GETFIELD:
+		case NEW:
+		case MULTIANEWARRAY:
+			return 1;
+		case INVOKEVIRTUAL: case INVOKESPECIAL: case INVOKESTATIC: case INVOKEINTERFACE: case INVOKEDYNAMIC:
+		case POP2: case DUP_X2: case DUP2: case DUP2_X1: case DUP2_X2:
+		case JSR: case RET:
+			return VARIABLE;
+		default:
+			int pops = pops(opcode);
+			if (pops == VARIABLE)
+				return VARIABLE;
+			if (opcode >= ACONST_NULL && opcode <= ALOAD)
+				return 1;
+			// Everything else either consumes its operands or replaces them with a single result
+			return producesValue(opcode) ? 1 : 0;
+		}
+	}
+
+	private static boolean producesValue(int opcode)
+	{
+		return (opcode >= IALOAD && opcode <= SALOAD)
+			|| (opcode >= IADD && opcode <= LXOR)
+			|| (opcode >= I2L && opcode <= DCMPG)
+			|| opcode == NEWARRAY || opcode == ANEWARRAY || opcode == ARRAYLENGTH
+			|| opcode == CHECKCAST || opcode == INSTANCEOF;
+	}
+
+	/**
+	 * @return true if instructions with {@code opcode} never continue to the next instruction
+	 */
+	public static boolean isUnconditionalTransfer(int opcode)
+	{
+		return opcode == GOTO || opcode == TABLESWITCH || opcode == LOOKUPSWITCH
+			|| (opcode >= IRETURN && opcode <= RETURN) || opcode == ATHROW;
+	}
+
+	/**
+	 * Counts the arguments of a method descriptor without allocating, unlike
+	 * {@link Type#getArgumentTypes(String)}
+	 * @param methodDescriptor a method descriptor
+	 * @return the number of arguments in {@code methodDescriptor}
+	 */
+	public static int countArguments(String methodDescriptor)
+	{
+		int count = 0;
+		int index = 1; // Skip '('
+		while (methodDescriptor.charAt(index) != ')')
+		{
+			while (methodDescriptor.charAt(index) == '[')
+				index++;
+			if (methodDescriptor.charAt(index) == 'L')
+				index = methodDescriptor.indexOf(';', index);
+			index++;
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @param methodDescriptor a method descriptor
+	 * @return false if the return type of {@code methodDescriptor} is void
+	 */
+	public static boolean returnsValue(String methodDescriptor)
+	{
+		return methodDescriptor.charAt(methodDescriptor.length() - 1) != 'V';
+	}
+}
@@ -0,0 +1,41 @@
+package daomephsta.unpick.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Deduplicates the owners, names, descriptors, and group ids of parsed definitions,
+ * so that each distinct string is kept in memory once, however many definitions refer to it.
+ * Thread safe.
+ * @author Daomephsta
+ */
+public class SymbolTable
+{
+	private final Map<String, String> symbols = new ConcurrentHashMap<>();
+
+	/**
+	 * @param symbol a string, or null
+	 * @return the canonical instance of {@code symbol}, or null if {@code symbol} is null
+	 */
+	public String intern(String symbol)
+	{
+		if (symbol == null)
+			return null;
+		String canonical = symbols.putIfAbsent(symbol, symbol);
+		return canonical != null ? canonical : symbol;
+	}
+
+	/**
+	 * @return the number of distinct symbols interned
+	 */
+	public int size()
+	{
+		return symbols.size();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("SymbolTable [size=%d]", symbols.size());
+	}
+}
@@ -0,0 +1,128 @@
+package daomephsta.unpick.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+
+import daomephsta.unpick.api.CacheStatistics;
+import daomephsta.unpick.api.ConstantUninliner;
+import daomephsta.unpick.api.IClassResolver;
+
+/**
+ * Resolves classes through another class resolver, and uninlines them on first request.
+ * Up to a maximum number of uninlined classes are cached, and the least recently used class
+ * is evicted when the cache is full. Classes are uninlined by a single uninliner, so its mapper,
+ * hierarchy, and constant caches are shared by every request.
+ * @author Daomephsta
+ */
+public class UninliningClassResolver implements IClassResolver
+{
+	private final IClassResolver classResolver;
+	private final ConstantUninliner uninliner;
+	private final Map<String, UninlinedClass> cache;
+	private final LongAdder hits = new LongAdder(),
+							 misses = new LongAdder();
+
+	/**
+	 * @param classResolver the class resolver used by {@code uninliner}, to resolve the classes to uninline with
+	 * @param uninliner the uninliner to uninline classes with
+	 * @param maximumSize the maximum number of uninlined classes to cache
+	 */
+	public UninliningClassResolver(IClassResolver classResolver, ConstantUninliner uninliner, int maximumSize)
+	{
+		if (maximumSize <= 0)
+			throw new IllegalArgumentException("Maximum size must be positive, was " + maximumSize);
+		this.classResolver = classResolver;
+		this.uninliner = uninliner;
+		this.cache = new LinkedHashMap<String, UninlinedClass>(16, 0.75F, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, UninlinedClass> eldest)
+			{
+				return size() > maximumSize;
+			}
+		};
+	}
+
+	@Override
+	public ClassReader resolveClassReader(String binaryName) throws ClassResolutionException
+	{
+		return new ClassReader(resolve(binaryName).bytes);
+	}
+
+	/**
+	 * @return a {@link ClassNode} for the uninlined class. The same instance is returned for as long
+	 * as the class stays cached.
+	 */
+	@Override
+	public ClassNode resolveClassNode(String binaryName) throws ClassResolutionException
+	{
+		return resolve(binaryName).getNode();
+	}
+
+	/**
+	 * @return the number of requests answered from the cache, and the number that uninlined a class
+	 */
+	public CacheStatistics getCacheStatistics()
+	{
+		return new CacheStatistics(hits.sum(), misses.sum());
+	}
+
+	private UninlinedClass resolve(String binaryName)
+	{
+		String internalName = binaryName.replace('.', '/');
+		UninlinedClass uninlined;
+		synchronized (cache)
+		{
+			uninlined = cache.get(internalName);
+		}
+		if (uninlined != null)
+		{
+			hits.increment();
+			return uninlined;
+		}
+		misses.increment();
+		// Uninlined outside the lock, so that requests for other classes are not blocked
+		uninlined = new UninlinedClass(uninliner.transform(classResolver.resolveClassReader(binaryName)).getBytes());
+		synchronized (cache)
+		{
+			UninlinedClass existing = cache.putIfAbsent(internalName, uninlined);
+			return existing != null ? existing : uninlined;
+		}
+	}
+
+	private static class UninlinedClass
+	{
+		final byte[] bytes;
+		private volatile ClassNode node;
+
+		UninlinedClass(byte[] bytes)
+		{
+			this.bytes = bytes;
+		}
+
+		ClassNode getNode()
+		{
+			ClassNode node = this.node;
+			if (node == null)
+			{
+				synchronized (this)
+				{
+					node = this.node;
+					if (node == null)
+					{
+						node = new ClassNode();
+						new ClassReader(bytes).accept(node, 0);
+						this.node = node;
+					}
+				}
+			}
+			return node;
+		}
+	}
+}
@@ -2,22 +2,54 @@ package daomephsta.unpick.impl.constantmappers;
 
 import java.util.Map;
 
-import daomephsta.unpick.api.constantmappers.IConstantMapper;
+import org.objectweb.asm.tree.AbstractInsnNode;
+
+import daomephsta.unpick.api.constantmappers.IResolvingConstantMapper;
 import daomephsta.unpick.constantmappers.datadriven.parser.UnpickSyntaxException;
+import daomephsta.unpick.impl.LiteralFilter;
 import daomephsta.unpick.impl.representations.*;
 import daomephsta.unpick.impl.representations.ReplacementInstructionGenerator.Context;
+import daomephsta.unpick.impl.representations.TargetMethods.TargetMethod;
 
-public abstract class SimpleAbstractConstantMapper implements IConstantMapper
+public abstract class SimpleAbstractConstantMapper implements IResolvingConstantMapper
 {
 	protected final Map<String, AbstractConstantGroup<?>> constantGroups;
+	// Built on first use, as groups are resolved after construction
+	private volatile LiteralFilter literalFilter;
 
 	protected SimpleAbstractConstantMapper(Map<String, AbstractConstantGroup<?>> constantGroups)
+	{
+		this(constantGroups, null);
+	}
+
+	/**
+	 * @param constantGroups the constant groups of this mapper, by id
+	 * @param literalFilter a filter over the values {@code constantGroups} can replace,
+	 * or null to build one on first use
+	 */
+	protected SimpleAbstractConstantMapper(Map<String, AbstractConstantGroup<?>> constantGroups, LiteralFilter literalFilter)
 	{
 		this.constantGroups = constantGroups;
+		this.literalFilter = literalFilter;
 	}
 
 	protected abstract TargetMethods getTargetMethods();
 
+	@Override
+	public boolean mayReplace(AbstractInsnNode literal)
+	{
+		LiteralFilter filter = literalFilter;
+		if (filter == null)
+			literalFilter = filter = LiteralFilter.of(constantGroups.values());
+		return filter.mayContain(literal);
+	}
+
+	@Override
+	public boolean mayTarget(String methodName, String methodDescriptor)
+	{
+		return getTargetMethods().mayTarget(methodName, methodDescriptor);
+	}
+
 	@Override
 	public boolean targets(String methodOwner, String methodName, String methodDescriptor)
 	{
@@ -34,20 +66,7 @@ public abstract class SimpleAbstractConstantMapper implements IConstantMapper
 	public void mapParameter(String methodOwner, String methodName, String methodDescriptor, int parameterIndex, Context context)
 	{
 		String constantGroupID = getTargetMethods().getParameterConstantGroup(methodOwner, methodName, methodDescriptor, parameterIndex);
-		ReplacementInstructionGenerator constantGroup = constantGroups.get(constantGroupID);
-		if (constantGroup == null)
-		{
-			throw new UnpickSyntaxException(String.format("The constant group '%s' does not exist. Target: %s.%s%s parameter %d",
-				constantGroupID, methodOwner, methodName, methodDescriptor, parameterIndex));
-		}
-		if (!constantGroup.canReplace(context))
-		{
-			context.getLogger().info("Transformation skipped. Constant group " + constantGroupID + " cannot transform this invocation.");
-			return;
-		}
-
-		constantGroup.generateReplacements(context);
-		context.getLogger().info("Transformation complete");
+		getParameterConstantGroup(constantGroupID, methodOwner, methodName, methodDescriptor, parameterIndex).map(context);
 	}
 
 	@Override
@@ -60,19 +79,72 @@ public abstract class SimpleAbstractConstantMapper implements IConstantMapper
 	public void mapReturn(String methodOwner, String methodName, String methodDescriptor, Context context)
 	{
 		String constantGroupID = getTargetMethods().getReturnConstantGroup(methodOwner, methodName, methodDescriptor);
-		ReplacementInstructionGenerator constantGroup = constantGroups.get(constantGroupID);
+		getReturnConstantGroup(constantGroupID, methodOwner, methodName, methodDescriptor).map(context);
+	}
+
+	@Override
+	public ResolvedTarget resolveParameter(String methodOwner, String methodName, String methodDescriptor, int parameterIndex)
+	{
+		TargetMethod targetMethod = getTargetMethods().findTargetMethod(methodOwner, methodName, methodDescriptor);
+		if (targetMethod == null || !targetMethod.hasParameterConstantGroup(parameterIndex))
+			return null;
+		return getParameterConstantGroup(targetMethod.getParameterConstantGroup(parameterIndex), methodOwner, methodName, methodDescriptor, parameterIndex);
+	}
+
+	@Override
+	public ResolvedTarget resolveReturn(String methodOwner, String methodName, String methodDescriptor)
+	{
+		TargetMethod targetMethod = getTargetMethods().findTargetMethod(methodOwner, methodName, methodDescriptor);
+		if (targetMethod == null || !targetMethod.hasReturnConstantGroup())
+			return null;
+		return getReturnConstantGroup(targetMethod.getReturnConstantGroup(), methodOwner, methodName, methodDescriptor);
+	}
+
+	private ConstantGroupTarget getParameterConstantGroup(String constantGroupID, String methodOwner, String methodName, String methodDescriptor, int parameterIndex)
+	{
+		AbstractConstantGroup<?> constantGroup = constantGroups.get(constantGroupID);
+		if (constantGroup == null)
+		{
+			throw new UnpickSyntaxException(String.format("The constant group '%s' does not exist. Target: %s.%s%s parameter %d",
+				constantGroupID, methodOwner, methodName, methodDescriptor, parameterIndex));
+		}
+		return new ConstantGroupTarget(constantGroup);
+	}
+
+	private ConstantGroupTarget getReturnConstantGroup(String constantGroupID, String methodOwner, String methodName, String methodDescriptor)
+	{
+		AbstractConstantGroup<?> constantGroup = constantGroups.get(constantGroupID);
 		if (constantGroup == null)
 		{
 			throw new UnpickSyntaxException(String.format("The constant group '%s' does not exist. Target: %s.%s%s returns",
 				constantGroupID, methodOwner, methodName, methodDescriptor));
 		}
-		if (!constantGroup.canReplace(context))
+		return new ConstantGroupTarget(constantGroup);
+	}
+
+	/**
+	 * Replaces values with the constants of a single constant group
+	 */
+	private static class ConstantGroupTarget implements ResolvedTarget
+	{
+		private final AbstractConstantGroup<?> constantGroup;
+
+		ConstantGroupTarget(AbstractConstantGroup<?> constantGroup)
 		{
-			context.getLogger().info("Transformation skipped. Constant group " + constantGroupID + " cannot transform this invocation.");
-			return;
+			this.constantGroup = constantGroup;
 		}
 
-		constantGroup.generateReplacements(context);
-		context.getLogger().info("Transformation complete");
+		@Override
+		public void map(Context context)
+		{
+			if (!constantGroup.canReplace(context))
+			{
+				context.getLogger().info("Transformation skipped. Constant group " + constantGroup.getId() + " cannot transform this invocation.");
+				return;
+			}
+
+			constantGroup.generateReplacements(context);
+			context.getLogger().info("Transformation complete");
+		}
 	}
 }
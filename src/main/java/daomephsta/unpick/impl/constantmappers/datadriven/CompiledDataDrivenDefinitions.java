@@ -0,0 +1,122 @@
+package daomephsta.unpick.impl.constantmappers.datadriven;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import daomephsta.unpick.api.IClassResolver;
+import daomephsta.unpick.api.constantmappers.ICompiledDefinitions;
+import daomephsta.unpick.api.constantmappers.IConstantMapper;
+import daomephsta.unpick.api.constantresolvers.IConstantResolver;
+import daomephsta.unpick.constantmappers.datadriven.parser.UnpickSyntaxException;
+import daomephsta.unpick.impl.LiteralFilter;
+import daomephsta.unpick.impl.SymbolTable;
+import daomephsta.unpick.impl.constantmappers.datadriven.parser.V1Parser;
+import daomephsta.unpick.impl.constantmappers.datadriven.parser.v2.V2Parser;
+import daomephsta.unpick.impl.representations.AbstractConstantGroup;
+import daomephsta.unpick.impl.representations.TargetMethods;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Mappings defined in files, parsed and resolved once.
+ * Nothing is modified after construction, except for thread safe caches.
+ * @author Daomephsta
+ */
+public class CompiledDataDrivenDefinitions implements ICompiledDefinitions
+{
+	private static final Logger LOGGER = LogManager.getLogger("unpick");
+	private final Map<String, AbstractConstantGroup<?>> constantGroups;
+	private final TargetMethods targetMethods;
+	private final LiteralFilter literalFilter;
+
+	/**
+	 * @param classResolver a class resolver that can resolve the classes of the target methods
+	 * @param constantResolver a constant resolver that can resolve the target constant fields
+	 * @param mappingSources streams of text in .unpick format
+	 */
+	public CompiledDataDrivenDefinitions(IClassResolver classResolver, IConstantResolver constantResolver, InputStream... mappingSources)
+	{
+		Map<String, AbstractConstantGroup<?>> constantGroups = new HashMap<>();
+		// Shared by every mapping source, so definitions that span sources are deduplicated too
+		SymbolTable symbols = new SymbolTable();
+		TargetMethods.Builder targetMethodsBuilder = TargetMethods.builder(classResolver, symbols);
+		for (InputStream mappingSource : mappingSources)
+		{
+			try
+			{
+				//Avoid buffering, so that only the version specifier bytes are consumed
+				byte[] version = new byte [2];
+				mappingSource.read(version);
+
+				// prepend the version to the stream (parsers will expect it to be present)
+				List<InputStream> streams = Arrays.asList(new ByteArrayInputStream(version), mappingSource);
+				InputStream newMappingSource = new SequenceInputStream(Collections.enumeration(streams));
+
+				if (version[0] == 'v')
+				{
+					switch (version[1])
+					{
+					case '1':
+						V1Parser.INSTANCE.parse(newMappingSource, constantGroups, targetMethodsBuilder, symbols);
+						break;
+
+					case '2':
+						V2Parser.parse(newMappingSource, constantGroups, targetMethodsBuilder, symbols);
+						break;
+
+					default :
+						throw new UnpickSyntaxException(1, "Unknown version " + (char) version[1]);
+					}
+				}
+				else
+					throw new UnpickSyntaxException(1, "Missing version");
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		this.targetMethods = targetMethodsBuilder.build();
+		LOGGER.info("Loaded " + targetMethods);
+		boolean resolved = true;
+		for (AbstractConstantGroup<?> group : constantGroups.values())
+		{
+			group.resolveAllConstants(constantResolver);
+			if (!group.isResolved())
+				resolved = false;
+		}
+		if (!resolved)
+			throw new RuntimeException("One or more constants failed to resolve, check the log for details");
+		this.constantGroups = Collections.unmodifiableMap(constantGroups);
+		this.literalFilter = LiteralFilter.of(constantGroups.values());
+	}
+
+	@Override
+	public IConstantMapper createMapper(IClassResolver classResolver)
+	{
+		return new DataDrivenConstantMapper(this, classResolver);
+	}
+
+	Map<String, AbstractConstantGroup<?>> getConstantGroups()
+	{
+		return constantGroups;
+	}
+
+	TargetMethods getTargetMethods()
+	{
+		return targetMethods;
+	}
+
+	LiteralFilter getLiteralFilter()
+	{
+		return literalFilter;
+	}
+}
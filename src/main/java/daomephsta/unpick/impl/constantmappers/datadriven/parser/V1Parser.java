@@ -7,6 +7,7 @@ import java.util.regex.Pattern;
 import org.objectweb.asm.Type;
 
 import daomephsta.unpick.constantmappers.datadriven.parser.UnpickSyntaxException;
+import daomephsta.unpick.impl.SymbolTable;
 import daomephsta.unpick.impl.representations.*;
 import daomephsta.unpick.impl.representations.TargetMethods.Builder;
 import daomephsta.unpick.impl.representations.TargetMethods.TargetMethodBuilder;
@@ -17,7 +18,7 @@ public enum V1Parser
 
 	private static final Pattern WHITESPACE_SPLITTER = Pattern.compile("\\s");
 
-	public void parse(InputStream mappingSource, Map<String, AbstractConstantGroup<?>> constantGroups, TargetMethods.Builder targetMethodsBuilder) throws IOException
+	public void parse(InputStream mappingSource, Map<String, AbstractConstantGroup<?>> constantGroups, TargetMethods.Builder targetMethodsBuilder, SymbolTable symbols) throws IOException
 	{
 		try(LineNumberReader reader = new LineNumberReader(new InputStreamReader(mappingSource)))
 		{
@@ -27,7 +28,7 @@ public enum V1Parser
 				line = stripComment(line).trim();
 				if (line.isEmpty()) continue;
 
-				String[] tokens = tokenize(line);
+				String[] tokens = tokenize(line, symbols);
 				if (tokens.length == 0) continue;
 
 				switch (tokens[0])
@@ -87,13 +88,13 @@ public enum V1Parser
 		return c == -1 ? in : in.substring(0, c);
 	}
 
-	private String[] tokenize(String in)
+	private String[] tokenize(String in, SymbolTable symbols)
 	{
 		List<String> result = new ArrayList<>();
 
 		for (String s : WHITESPACE_SPLITTER.split(in))
 		{
-			if (!s.isEmpty()) result.add(s);
+			if (!s.isEmpty()) result.add(symbols.intern(s));
 		}
 
 		return result.toArray(new String[0]);
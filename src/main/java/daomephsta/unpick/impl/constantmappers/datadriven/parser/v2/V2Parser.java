@@ -11,6 +11,7 @@ import daomephsta.unpick.constantmappers.datadriven.parser.UnpickSyntaxException
 import daomephsta.unpick.constantmappers.datadriven.parser.v2.UnpickV2Reader;
 import daomephsta.unpick.constantmappers.datadriven.parser.v2.UnpickV2Reader.TargetMethodDefinitionVisitor;
 import daomephsta.unpick.constantmappers.datadriven.parser.v2.UnpickV2Reader.Visitor;
+import daomephsta.unpick.impl.SymbolTable;
 import daomephsta.unpick.impl.representations.*;
 import daomephsta.unpick.impl.representations.TargetMethods.DuplicateMappingException;
 import daomephsta.unpick.impl.representations.TargetMethods.TargetMethodBuilder;
@@ -19,19 +20,21 @@ public class V2Parser implements Visitor
 {
 	private final Map<String, AbstractConstantGroup<?>> constantGroups;
 	private final TargetMethods.Builder targetMethodsBuilder;
+	private final SymbolTable symbols;
 	private int lineNumber;
 
-	public V2Parser(Map<String, AbstractConstantGroup<?>> constantGroups, TargetMethods.Builder targetMethodsBuilder)
+	public V2Parser(Map<String, AbstractConstantGroup<?>> constantGroups, TargetMethods.Builder targetMethodsBuilder, SymbolTable symbols)
 	{
 		this.constantGroups = constantGroups;
 		this.targetMethodsBuilder = targetMethodsBuilder;
+		this.symbols = symbols;
 	}
 
-	public static void parse(InputStream mappingSource, Map<String, AbstractConstantGroup<?>> constantGroups, TargetMethods.Builder targetMethodsBuilder) throws IOException
+	public static void parse(InputStream mappingSource, Map<String, AbstractConstantGroup<?>> constantGroups, TargetMethods.Builder targetMethodsBuilder, SymbolTable symbols) throws IOException
 	{
 		try (UnpickV2Reader unpickDefinitions = new UnpickV2Reader(mappingSource))
 		{
-			unpickDefinitions.accept(new V2Parser(constantGroups, targetMethodsBuilder));
+			unpickDefinitions.accept(new V2Parser(constantGroups, targetMethodsBuilder, symbols));
 		}
 	}
 
@@ -44,7 +47,7 @@ public class V2Parser implements Visitor
 	@Override
 	public void visitSimpleConstantDefinition(String groupId, String owner, String name, String value, String descriptor)
 	{
-		ReplacementInstructionGenerator group = constantGroups.computeIfAbsent(groupId, k -> new SimpleConstantGroup(k));
+		ReplacementInstructionGenerator group = constantGroups.computeIfAbsent(symbols.intern(groupId), k -> new SimpleConstantGroup(k));
 		SimpleConstantDefinition constant = createSimpleConstantDefinition(owner, name, value, descriptor);
 		if (group instanceof SimpleConstantGroup)
 			((SimpleConstantGroup) group).add(constant);
@@ -58,20 +61,20 @@ public class V2Parser implements Visitor
 		{
 			try
 			{
-				return new SimpleConstantDefinition(owner, name, Type.getType(descriptor), value);
+				return new SimpleConstantDefinition(symbols.intern(owner), symbols.intern(name), Type.getType(symbols.intern(descriptor)), value);
 			}
 			catch (IllegalArgumentException e)
 			{
 				throw new UnpickSyntaxException(lineNumber, "Unable to parse descriptor " + descriptor);
 			}
 		}
-		return new SimpleConstantDefinition(owner, name);
+		return new SimpleConstantDefinition(symbols.intern(owner), symbols.intern(name));
 	}
 
 	@Override
 	public void visitFlagConstantDefinition(String groupId, String owner, String name, String value, String descriptor)
 	{
-		ReplacementInstructionGenerator group = constantGroups.computeIfAbsent(groupId, k -> new FlagConstantGroup(k));
+		ReplacementInstructionGenerator group = constantGroups.computeIfAbsent(symbols.intern(groupId), k -> new FlagConstantGroup(k));
 		FlagDefinition constant = createFlagDefinition(owner, name, value, descriptor);
 		if (group instanceof FlagConstantGroup)
 			((FlagConstantGroup) group).add(constant);
@@ -85,20 +88,20 @@ public class V2Parser implements Visitor
 		{
 			try
 			{
-				return new FlagDefinition(owner, name, Type.getType(descriptor), value);
+				return new FlagDefinition(symbols.intern(owner), symbols.intern(name), Type.getType(symbols.intern(descriptor)), value);
 			}
 			catch (IllegalArgumentException e)
 			{
 				throw new UnpickSyntaxException(lineNumber, "Unable to parse descriptor " + descriptor);
 			}
 		}
-		return new FlagDefinition(owner, name);
+		return new FlagDefinition(symbols.intern(owner), symbols.intern(name));
 	}
 
 	@Override
 	public TargetMethodDefinitionVisitor visitTargetMethodDefinition(String owner, String name, String descriptor)
 	{
-		return new TargetMethodParser(targetMethodsBuilder.targetMethod(owner, name, Type.getType(descriptor)), () -> lineNumber);
+		return new TargetMethodParser(targetMethodsBuilder.targetMethod(owner, name, Type.getType(symbols.intern(descriptor))), () -> lineNumber);
 	}
 
 	private static class TargetMethodParser implements TargetMethodDefinitionVisitor
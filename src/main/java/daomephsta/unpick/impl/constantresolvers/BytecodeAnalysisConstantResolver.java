@@ -4,6 +4,7 @@ import static java.util.stream.Collectors.toSet;
 
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.objectweb.asm.*;
 
@@ -19,7 +20,7 @@ public class BytecodeAnalysisConstantResolver implements IConstantResolver
 {
 	private static final Set<Type> VALID_CONSTANT_TYPES = Arrays.stream(LiteralType.values()).map(LiteralType::getType).collect(toSet());
 
-	private final Map<String, ResolvedConstants> constantDataCache = new HashMap<>();
+	private final Map<String, ResolvedConstants> constantDataCache = new ConcurrentHashMap<>();
 	private final IClassResolver classResolver;
 
 	public BytecodeAnalysisConstantResolver(IClassResolver classResolver)
@@ -6,6 +6,7 @@ import java.util.Iterator;
 import java.util.List;
 
 import daomephsta.unpick.api.constantresolvers.IConstantResolver;
+import daomephsta.unpick.impl.LiteralFilter;
 import daomephsta.unpick.impl.representations.AbstractConstantDefinition.ResolutionException;
 
 import org.apache.logging.log4j.LogManager;
@@ -55,6 +56,11 @@ public abstract class AbstractConstantGroup<T extends AbstractConstantDefinition
 
 	protected abstract void acceptResolved(T definition);
 
+	/**
+	 * Adds the values of the resolved constants of this group to {@code filter}
+	 */
+	public abstract void addReplaceableValues(LiteralFilter.Builder filter);
+
 	public String getId()
 	{
 		return id;
@@ -1,11 +1,13 @@
 package daomephsta.unpick.impl.representations;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.InsnList;
 
+import daomephsta.unpick.api.FlagDecomposition;
 import daomephsta.unpick.impl.*;
 
 import org.apache.logging.log4j.Logger;
@@ -19,6 +21,7 @@ public class FlagConstantGroup extends AbstractConstantGroup<FlagDefinition>
 {
 	private static final Logger LOGGER = LogManager.getLogger("unpick");
 	private final Collection<FlagDefinition> resolvedConstantDefinitions = new ArrayList<>();
+	private final Map<IntegerType, FlagIndex> indices = new ConcurrentHashMap<>();
 
 	public FlagConstantGroup(String id)
 	{
@@ -34,7 +37,7 @@ public class FlagConstantGroup extends AbstractConstantGroup<FlagDefinition>
 	{
 		LOGGER.info("Loaded " + flagDefinition + " into '" + getId() + "'");
 		if (flagDefinition.isResolved())
-			resolvedConstantDefinitions.add(flagDefinition);
+			acceptResolved(flagDefinition);
 		else
 			unresolvedConstantDefinitions.add(flagDefinition);
 	}
@@ -53,38 +56,21 @@ public class FlagConstantGroup extends AbstractConstantGroup<FlagDefinition>
 	{
 		Number literalNum = (Number) AbstractInsnNodes.getLiteralValue(context.getArgSeed());
 		IntegerType integerType = IntegerType.from(literalNum);
+		Decomposition decomposition = getIndex(integerType).decompose(literalNum, context.getFlagDecomposition());
+		if (decomposition.constants.length == 0)
+			return;
 
-		long literal = integerType.toUnsignedLong(literalNum);
-		if (literal == 0 || literal == -1)
+		if (decomposition.exact)
 		{
-			// Special cases: likely we want just the literal constant, but check for any named constants representing 0 or -1
-			for (FlagDefinition constant : resolvedConstantDefinitions)
-			{
-				if (integerType.toUnsignedLong(constant.getValue()) == literal)
-				{
-					context.getReplacementSet().addReplacement(context.getArgSeed(), new FieldInsnNode(Opcodes.GETSTATIC, constant.getOwner(), constant.getName(), constant.getDescriptorString()));
-					break;
-				}
-			}
+			FlagDefinition constant = decomposition.constants[0];
+			context.getReplacementSet().addReplacement(context.getArgSeed(), new FieldInsnNode(Opcodes.GETSTATIC, constant.getOwner(), constant.getName(), constant.getDescriptorString()));
 			return;
 		}
 
-		List<FlagDefinition> orConstants = new ArrayList<>();
-		long orResidual = getConstantsEncompassing(literal, integerType, orConstants);
-		long negatedLiteral = integerType.toUnsignedLong(integerType.binaryNegate(literalNum));
-		List<FlagDefinition> negatedConstants = new ArrayList<>();
-		long negatedResidual = getConstantsEncompassing(negatedLiteral, integerType, negatedConstants);
-
-		boolean negated = negatedResidual == 0 && (orResidual != 0 || negatedConstants.size() < orConstants.size());
-		List<FlagDefinition> constants = negated ? negatedConstants : orConstants;
-		if (constants.isEmpty())
-			return;
-		long residual = negated ? negatedResidual : orResidual;
-
 		InsnList replacement = new InsnList();
 
 		boolean firstConstant = true;
-		for (FlagDefinition constant : constants)
+		for (FlagDefinition constant : decomposition.constants)
 		{
 			replacement.add(new FieldInsnNode(Opcodes.GETSTATIC, constant.getOwner(), constant.getName(), constant.getDescriptorString()));
 
@@ -94,13 +80,13 @@ public class FlagConstantGroup extends AbstractConstantGroup<FlagDefinition>
 				replacement.add(integerType.createOrInsn());
 		}
 
-		if (residual != 0)
+		if (decomposition.residual != 0)
 		{
-			replacement.add(integerType.createLiteralPushInsn(residual));
+			replacement.add(integerType.createLiteralPushInsn(decomposition.residual));
 			replacement.add(integerType.createOrInsn());
 		}
 
-		if (negated)
+		if (decomposition.negated)
 		{
 			// bitwise not
 			replacement.add(integerType.createLiteralPushInsn(-1));
@@ -110,31 +96,282 @@ public class FlagConstantGroup extends AbstractConstantGroup<FlagDefinition>
 		context.getReplacementSet().addReplacement(context.getArgSeed(), replacement);
 	}
 
+	private FlagIndex getIndex(IntegerType integerType)
+	{
+		return indices.computeIfAbsent(integerType, type -> new FlagIndex(resolvedConstantDefinitions, type));
+	}
+
 	/**
-	 * Adds the constants that encompass {@code literal} to {@code constantsOut}.
-	 * Returns the residual (bits set in the literal not covered by the returned constants).
+	 * The resolved flags of a group as unsigned values of an integer type, bucketed by their lowest set bit.
+	 * Decompositions are memoized by strategy and literal value.
 	 */
-	private long getConstantsEncompassing(long literal, IntegerType integerType, List<FlagDefinition> constantsOut)
+	private static class FlagIndex
 	{
-		long residual = literal;
-		for (FlagDefinition constant : resolvedConstantDefinitions)
+		private static final int MAX_MEMOIZED = 4096;
+		private static final int[] NO_CANDIDATES = {};
+		private final IntegerType integerType;
+		// In insertion order, as decompositions prefer earlier flags
+		private final FlagDefinition[] definitions;
+		private final long[] values;
+		// Indices into definitions of the non-zero flags with each lowest set bit, in ascending order
+		private final int[][] byLowestBit = new int[Long.SIZE][];
+		// Keyed by primitive literals, so lookups do not box them. Guarded by each memo's lock, which is only held to read or write it.
+		private final Map<FlagDecomposition, LongKeyedMap<Decomposition>> memos = new ConcurrentHashMap<>();
+
+		FlagIndex(Collection<FlagDefinition> resolvedConstantDefinitions, IntegerType integerType)
+		{
+			this.integerType = integerType;
+			this.definitions = resolvedConstantDefinitions.toArray(new FlagDefinition[0]);
+			this.values = new long[definitions.length];
+			int[] bucketSizes = new int[Long.SIZE];
+			for (int i = 0; i < definitions.length; i++)
+			{
+				values[i] = integerType.toUnsignedLong(definitions[i].getValue());
+				if (values[i] != 0)
+					bucketSizes[Long.numberOfTrailingZeros(values[i])]++;
+			}
+			for (int bit = 0; bit < Long.SIZE; bit++)
+				byLowestBit[bit] = bucketSizes[bit] == 0 ? NO_CANDIDATES : new int[bucketSizes[bit]];
+			Arrays.fill(bucketSizes, 0);
+			for (int i = 0; i < definitions.length; i++)
+			{
+				if (values[i] != 0)
+				{
+					int bit = Long.numberOfTrailingZeros(values[i]);
+					byLowestBit[bit][bucketSizes[bit]++] = i;
+				}
+			}
+		}
+
+		Decomposition decompose(Number literalNum, FlagDecomposition strategy)
 		{
-			long val = integerType.toUnsignedLong(constant.getValue());
-			if ((val & residual) != 0 && (val & literal) == val)
+			long literal = integerType.toUnsignedLong(literalNum);
+			LongKeyedMap<Decomposition> memo = memos.computeIfAbsent(strategy, key -> new LongKeyedMap<>());
+			Decomposition decomposition;
+			synchronized (memo)
 			{
-				residual &= ~val;
-				constantsOut.add(constant);
-				if (residual == 0)
-					break;
+				decomposition = memo.get(literal);
 			}
+			if (decomposition == null)
+			{
+				decomposition = computeDecomposition(literalNum, literal, strategy);
+				synchronized (memo)
+				{
+					if (memo.size() < MAX_MEMOIZED)
+						memo.put(literal, decomposition);
+				}
+			}
+			return decomposition;
+		}
+
+		private Decomposition computeDecomposition(Number literalNum, long literal, FlagDecomposition strategy)
+		{
+			if (literal == 0 || literal == -1)
+			{
+				// Special cases: likely we want just the literal constant, but check for any named constants representing 0 or -1
+				for (int i = 0; i < definitions.length; i++)
+				{
+					if (values[i] == literal)
+						return new Decomposition(new FlagDefinition[] {definitions[i]}, 0, false, true);
+				}
+				return Decomposition.NONE;
+			}
+
+			List<FlagDefinition> orConstants = new ArrayList<>();
+			long orResidual = getConstantsEncompassing(literal, strategy, orConstants);
+			long negatedLiteral = integerType.toUnsignedLong(integerType.binaryNegate(literalNum));
+			List<FlagDefinition> negatedConstants = new ArrayList<>();
+			long negatedResidual = getConstantsEncompassing(negatedLiteral, strategy, negatedConstants);
+
+			boolean negated = negatedResidual == 0 && (orResidual != 0 || negatedConstants.size() < orConstants.size());
+			List<FlagDefinition> constants = negated ? negatedConstants : orConstants;
+			if (constants.isEmpty())
+				return Decomposition.NONE;
+			return new Decomposition(constants.toArray(new FlagDefinition[0]), negated ? negatedResidual : orResidual, negated, false);
+		}
+
+		/**
+		 * Adds the constants that encompass {@code literal} to {@code constantsOut}.
+		 * Returns the residual (bits set in the literal not covered by the returned constants).
+		 */
+		private long getConstantsEncompassing(long literal, FlagDecomposition strategy, List<FlagDefinition> constantsOut)
+		{
+			// A flag can only be encompassed by the literal if its lowest set bit is set in the literal
+			int[] candidates = NO_CANDIDATES;
+			int candidateCount = 0;
+			for (long bits = literal; bits != 0; bits &= bits - 1)
+			{
+				for (int i : byLowestBit[Long.numberOfTrailingZeros(bits)])
+				{
+					if ((values[i] & literal) == values[i])
+					{
+						if (candidateCount == candidates.length)
+							candidates = Arrays.copyOf(candidates, Math.max(8, candidateCount * 2));
+						candidates[candidateCount++] = i;
+					}
+				}
+			}
+			Arrays.sort(candidates, 0, candidateCount);
+
+			int[] chosen = new int[candidateCount];
+			int chosenCount = 0;
+			long residual = literal;
+			for (int c = 0; c < candidateCount && residual != 0; c++)
+			{
+				long val = values[candidates[c]];
+				if ((val & residual) != 0)
+				{
+					residual &= ~val;
+					chosen[chosenCount++] = candidates[c];
+				}
+			}
+			if (strategy.isMinimalCover() && chosenCount > 1)
+			{
+				// First fit already covers every bit any candidate can, so only the number of flags can improve
+				CoverSearch search = new CoverSearch(candidates, candidateCount, chosen, chosenCount, strategy.getNodeBudget());
+				search.search(literal & ~residual, 0);
+				chosen = search.best;
+				chosenCount = search.bestCount;
+				Arrays.sort(chosen, 0, chosenCount);
+			}
+			for (int c = 0; c < chosenCount; c++)
+				constantsOut.add(definitions[chosen[c]]);
+			return residual;
+		}
+
+		/**
+		 * Branch and bound search for the fewest flags that cover a set of bits
+		 */
+		private class CoverSearch
+		{
+			// Candidates that are not a subset of another candidate, in definition order
+			private final int[] flags;
+			private final long[] masks;
+			private final int maxBitsPerFlag;
+			private final int[] path;
+			private int[] best;
+			private int bestCount;
+			private int nodesRemaining;
+
+			CoverSearch(int[] candidates, int candidateCount, int[] initial, int initialCount, int nodeBudget)
+			{
+				int[] flags = new int[candidateCount];
+				int flagCount = 0;
+				int maxBitsPerFlag = 1;
+				for (int c = 0; c < candidateCount; c++)
+				{
+					long mask = values[candidates[c]];
+					if (!isDominated(mask, c, candidates, candidateCount))
+					{
+						flags[flagCount++] = candidates[c];
+						maxBitsPerFlag = Math.max(maxBitsPerFlag, Long.bitCount(mask));
+					}
+				}
+				this.flags = Arrays.copyOf(flags, flagCount);
+				this.masks = new long[flagCount];
+				for (int f = 0; f < flagCount; f++)
+					masks[f] = values[this.flags[f]];
+				this.maxBitsPerFlag = maxBitsPerFlag;
+				this.path = new int[initialCount];
+				this.best = Arrays.copyOf(initial, initialCount);
+				this.bestCount = initialCount;
+				this.nodesRemaining = nodeBudget;
+			}
+
+			/**
+			 * @return true if another candidate sets every bit {@code mask} does. Of equal candidates, the first is kept.
+			 */
+			private boolean isDominated(long mask, int index, int[] candidates, int candidateCount)
+			{
+				for (int c = 0; c < candidateCount; c++)
+				{
+					long other = values[candidates[c]];
+					if (c != index && (other & mask) == mask && (other != mask || c < index))
+						return true;
+				}
+				return false;
+			}
+
+			void search(long uncovered, int depth)
+			{
+				if (uncovered == 0)
+				{
+					if (depth < bestCount)
+					{
+						best = Arrays.copyOf(path, depth);
+						bestCount = depth;
+					}
+					return;
+				}
+				if (nodesRemaining-- <= 0)
+					return;
+				// Every flag covers at most maxBitsPerFlag bits
+				int lowerBound = (Long.bitCount(uncovered) + maxBitsPerFlag - 1) / maxBitsPerFlag;
+				if (depth + lowerBound >= bestCount)
+					return;
+
+				// Branch on the uncovered bit with the fewest flags setting it
+				long branchBit = 0;
+				int fewestFlags = Integer.MAX_VALUE;
+				for (long bits = uncovered; bits != 0 && fewestFlags > 1; bits &= bits - 1)
+				{
+					long bit = Long.lowestOneBit(bits);
+					int flagCount = 0;
+					for (long mask : masks)
+					{
+						if ((mask & bit) != 0)
+							flagCount++;
+					}
+					if (flagCount < fewestFlags)
+					{
+						fewestFlags = flagCount;
+						branchBit = bit;
+					}
+				}
+				for (int f = 0; f < masks.length; f++)
+				{
+					if ((masks[f] & branchBit) != 0)
+					{
+						path[depth] = flags[f];
+						search(uncovered & ~masks[f], depth + 1);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The flags that make up a literal, and the bits of the literal that are not covered by them
+	 */
+	private static class Decomposition
+	{
+		static final Decomposition NONE = new Decomposition(new FlagDefinition[0], 0, false, false);
+		final FlagDefinition[] constants;
+		final long residual;
+		final boolean negated,
+					  exact;
+
+		Decomposition(FlagDefinition[] constants, long residual, boolean negated, boolean exact)
+		{
+			this.constants = constants;
+			this.residual = residual;
+			this.negated = negated;
+			this.exact = exact;
 		}
-		return residual;
 	}
 
 	@Override
 	protected void acceptResolved(FlagDefinition definition)
 	{
 		resolvedConstantDefinitions.add(definition);
+		indices.clear();
+	}
+
+	@Override
+	public void addReplaceableValues(LiteralFilter.Builder filter)
+	{
+		for (FlagDefinition definition : resolvedConstantDefinitions)
+			filter.flag(definition.getValue());
 	}
 
 	@Override
@@ -1,10 +1,13 @@
 package daomephsta.unpick.impl.representations;
 
+import daomephsta.unpick.impl.AbstractInsnNodes;
+import daomephsta.unpick.impl.MethodFrames;
 import daomephsta.unpick.impl.UnpickValue;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.analysis.Frame;
 
+import daomephsta.unpick.api.FlagDecomposition;
 import daomephsta.unpick.api.constantresolvers.IConstantResolver;
 
 import org.apache.logging.log4j.Logger;
@@ -28,11 +31,27 @@ public interface ReplacementInstructionGenerator
 		private final ReplacementSet replacementSet;
 		private final AbstractInsnNode argSeed;
 		private final InsnList instructions;
-		private final Frame<UnpickValue>[] frames;
+		private final MethodFrames frames;
 		private final Logger logger;
+		private final FlagDecomposition flagDecomposition;
+		// The literal pushed by argSeed, decoded on first use
+		private int literalSort = -1;
+		private long literalBits;
 
 		public Context(IConstantResolver constantResolver, ReplacementSet replacementSet, AbstractInsnNode argSeed,
 				InsnList instructions, Frame<UnpickValue>[] frames, Logger logger)
+		{
+			this(constantResolver, replacementSet, argSeed, instructions, MethodFrames.of(frames), logger);
+		}
+
+		public Context(IConstantResolver constantResolver, ReplacementSet replacementSet, AbstractInsnNode argSeed,
+				InsnList instructions, MethodFrames frames, Logger logger)
+		{
+			this(constantResolver, replacementSet, argSeed, instructions, frames, logger, FlagDecomposition.FIRST_FIT);
+		}
+
+		public Context(IConstantResolver constantResolver, ReplacementSet replacementSet, AbstractInsnNode argSeed,
+				InsnList instructions, MethodFrames frames, Logger logger, FlagDecomposition flagDecomposition)
 		{
 			this.constantResolver = constantResolver;
 			this.replacementSet = replacementSet;
@@ -40,6 +59,7 @@ public interface ReplacementInstructionGenerator
 			this.instructions = instructions;
 			this.frames = frames;
 			this.logger = logger;
+			this.flagDecomposition = flagDecomposition;
 		}
 
 		public IConstantResolver getConstantResolver()
@@ -57,14 +77,49 @@ public interface ReplacementInstructionGenerator
 			return argSeed;
 		}
 
+		/**
+		 * @param insn an instruction of the method being transformed
+		 * @return the frame before {@code insn} is executed, or null if {@code insn} is
+		 * unreachable or its frame was not retained by the {@link daomephsta.unpick.api.AnalysisMode AnalysisMode}
+		 */
 		public Frame<UnpickValue> getFrameForInstruction(AbstractInsnNode insn)
 		{
-			return frames[instructions.indexOf(insn)];
+			return frames.get(instructions.indexOf(insn));
+		}
+
+		/**
+		 * @return the sort of the literal pushed by the arg seed, as returned by {@link AbstractInsnNodes#getLiteralSort(AbstractInsnNode)}
+		 */
+		public int getLiteralSort()
+		{
+			if (literalSort == -1)
+			{
+				literalSort = AbstractInsnNodes.getLiteralSort(argSeed);
+				literalBits = AbstractInsnNodes.getLiteralBits(argSeed);
+			}
+			return literalSort;
+		}
+
+		/**
+		 * @return the unboxed literal pushed by the arg seed, as returned by {@link AbstractInsnNodes#getLiteralBits(AbstractInsnNode)}
+		 */
+		public long getLiteralBits()
+		{
+			getLiteralSort();
+			return literalBits;
 		}
 
 		public Logger getLogger()
 		{
 			return logger;
 		}
+
+		/**
+		 * @return how flag constant groups should decompose the literal
+		 */
+		public FlagDecomposition getFlagDecomposition()
+		{
+			return flagDecomposition;
+		}
 	}
 }
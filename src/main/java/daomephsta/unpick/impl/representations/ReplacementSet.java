@@ -32,7 +32,10 @@ public class ReplacementSet
 			throw new IllegalArgumentException("Replacement already defined for " + Utils.visitableToString(oldNode::accept).trim());
 	}
 
-	public void apply()
+	/**
+	 * @return true if any instructions were replaced
+	 */
+	public boolean apply()
 	{
 		for (Map.Entry<AbstractInsnNode, InsnList> replacement : replacements.entrySet())
 		{
@@ -41,6 +44,7 @@ public class ReplacementSet
 			target.insert(oldNode, newNodes);
 			target.remove(oldNode);
 		}
+		return !replacements.isEmpty();
 	}
 
 	@Override
@@ -1,12 +1,17 @@
 package daomephsta.unpick.impl.representations;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.FieldInsnNode;
 
 import daomephsta.unpick.impl.AbstractInsnNodes;
+import daomephsta.unpick.impl.LiteralFilter;
+import daomephsta.unpick.impl.LongKeyedMap;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -18,7 +23,13 @@ import org.apache.logging.log4j.LogManager;
 public class SimpleConstantGroup extends AbstractConstantGroup<SimpleConstantDefinition>
 {
 	private static final Logger LOGGER = LogManager.getLogger("unpick");
-	private final Map<Object, SimpleConstantDefinition> resolvedConstantDefinitions = new HashMap<>();
+	private final Collection<SimpleConstantDefinition> resolvedConstantDefinitions = new ArrayList<>();
+	// Resolved constants by value. Byte, short and char constants are widened to int, as the JVM pushes them as ints.
+	private final LongKeyedMap<SimpleConstantDefinition> intConstants = new LongKeyedMap<>(),
+														 longConstants = new LongKeyedMap<>(),
+														 floatConstants = new LongKeyedMap<>(),
+														 doubleConstants = new LongKeyedMap<>();
+	private final Map<Object, SimpleConstantDefinition> otherConstants = new HashMap<>();
 
 	public SimpleConstantGroup(String id)
 	{
@@ -42,24 +53,61 @@ public class SimpleConstantGroup extends AbstractConstantGroup<SimpleConstantDef
 	@Override
 	public boolean canReplace(Context context)
 	{
-		return AbstractInsnNodes.hasLiteralValue(context.getArgSeed())
-				&& resolvedConstantDefinitions.containsKey(AbstractInsnNodes.getLiteralValue(context.getArgSeed()));
+		return findConstant(context) != null;
 	}
 
 	@Override
 	public void generateReplacements(Context context)
 	{
-		Object literalValue = AbstractInsnNodes.getLiteralValue(context.getArgSeed());
-		SimpleConstantDefinition constantDefinition = resolvedConstantDefinitions.get(literalValue);
+		SimpleConstantDefinition constantDefinition = findConstant(context);
 		context.getReplacementSet().addReplacement(context.getArgSeed(),
 				new FieldInsnNode(Opcodes.GETSTATIC, constantDefinition.getOwner(),
 						constantDefinition.getName(), constantDefinition.getDescriptorString()));
 	}
 
+	private SimpleConstantDefinition findConstant(Context context)
+	{
+		switch (context.getLiteralSort())
+		{
+		case Type.INT:
+			return intConstants.get(context.getLiteralBits());
+		case Type.LONG:
+			return longConstants.get(context.getLiteralBits());
+		case Type.FLOAT:
+			return floatConstants.get(context.getLiteralBits());
+		case Type.DOUBLE:
+			return doubleConstants.get(context.getLiteralBits());
+		case Type.OBJECT:
+			return otherConstants.get(AbstractInsnNodes.getLiteralValue(context.getArgSeed()));
+		default:
+			return null;
+		}
+	}
+
 	@Override
 	protected void acceptResolved(SimpleConstantDefinition definition)
 	{
-		resolvedConstantDefinitions.put(definition.getValue(), definition);
+		resolvedConstantDefinitions.add(definition);
+		Object value = definition.getValue();
+		if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+			intConstants.put(((Number) value).intValue(), definition);
+		else if (value instanceof Character)
+			intConstants.put((Character) value, definition);
+		else if (value instanceof Long)
+			longConstants.put((Long) value, definition);
+		else if (value instanceof Float)
+			floatConstants.put(Float.floatToIntBits((Float) value), definition);
+		else if (value instanceof Double)
+			doubleConstants.put(Double.doubleToLongBits((Double) value), definition);
+		else
+			otherConstants.put(value, definition);
+	}
+
+	@Override
+	public void addReplaceableValues(LiteralFilter.Builder filter)
+	{
+		for (SimpleConstantDefinition definition : resolvedConstantDefinitions)
+			filter.constant(definition.getValue());
 	}
 
 	@Override
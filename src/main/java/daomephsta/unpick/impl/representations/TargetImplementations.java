@@ -1,6 +1,7 @@
 package daomephsta.unpick.impl.representations;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.objectweb.asm.*;
 
@@ -67,8 +68,9 @@ public class TargetImplementations
 	{
 		private final String declarator,
 							 name;
-		private final Set<String> implementors = new HashSet<>(),
-								  nonimplementors = new HashSet<>();
+		// Concurrent, as implementors may be looked up by several transformations at once
+		private final Set<String> implementors = ConcurrentHashMap.newKeySet(),
+								  nonimplementors = ConcurrentHashMap.newKeySet();
 		private final Type descriptor;
 		private final Map<Integer, String> parameterConstantGroups;
 
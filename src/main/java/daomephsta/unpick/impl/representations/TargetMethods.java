@@ -2,66 +2,165 @@ package daomephsta.unpick.impl.representations;
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import org.objectweb.asm.*;
 
 import daomephsta.unpick.api.IClassResolver;
 import daomephsta.unpick.api.IClassResolver.ClassResolutionException;
+import daomephsta.unpick.impl.SymbolTable;
 import daomephsta.unpick.impl.representations.TargetMethods.TargetMethod;
 
 public class TargetMethods implements Iterable<TargetMethod>
 {
+	private static final TargetMethod[] NO_METHODS = {};
 	private final Map<String, List<TargetMethod>> methods;
+	// Target methods by name, then descriptor, so lookups do not concatenate strings
+	private final Map<String, Map<String, TargetMethod[]>> index;
 	private final IClassResolver classResolver;
 
 	private TargetMethods(IClassResolver classResolver, Map<String, List<TargetMethod>> methods)
 	{
 		this.classResolver = classResolver;
 		this.methods = methods;
+		this.index = new HashMap<>();
+		for (List<TargetMethod> overloads : methods.values())
+		{
+			if (overloads.isEmpty())
+				continue;
+			TargetMethod first = overloads.get(0);
+			index.computeIfAbsent(first.name, name -> new HashMap<>())
+				.put(first.descriptor.getDescriptor(), overloads.toArray(NO_METHODS));
+		}
 	}
 
 	public static TargetMethods.Builder builder(IClassResolver classResolver)
 	{
-		return new TargetMethods.Builder(classResolver);
+		return builder(classResolver, new SymbolTable());
 	}
 
-	public boolean targets(String methodOwner, String methodName, String methodDescriptor)
+	/**
+	 * @param classResolver a class resolver for checking which classes implement target methods
+	 * @param symbols the symbol table to deduplicate owners, names, and constant group ids with
+	 * @return a new builder
+	 */
+	public static TargetMethods.Builder builder(IClassResolver classResolver, SymbolTable symbols)
 	{
-		List<TargetMethod> possibleMethods = methods.getOrDefault(methodName + methodDescriptor, Collections.emptyList());
-		if (possibleMethods.isEmpty()) {
-			return false;
+		return new TargetMethods.Builder(classResolver, symbols);
+	}
+
+	/**
+	 * @param classResolver a class resolver for checking which classes implement target methods
+	 * @return target methods with the same definitions as these, that check implementations with {@code classResolver}.
+	 * Returns this if {@code classResolver} is already used by these target methods.
+	 */
+	public TargetMethods withClassResolver(IClassResolver classResolver)
+	{
+		if (classResolver == this.classResolver)
+			return this;
+		// Which classes implement a method depends on the class resolver, so the copies start with no known implementors
+		Map<String, List<TargetMethod>> copies = new HashMap<>(methods.size());
+		for (Entry<String, List<TargetMethod>> entry : methods.entrySet())
+		{
+			List<TargetMethod> overloads = new ArrayList<>(entry.getValue().size());
+			for (TargetMethod method : entry.getValue())
+				overloads.add(new TargetMethod(method));
+			copies.put(entry.getKey(), overloads);
 		}
+		return new TargetMethods(classResolver, copies);
+	}
 
-		return possibleMethods.stream().anyMatch(method -> method.implementedBy(classResolver, methodOwner));
+	private TargetMethod[] lookup(String methodName, String methodDescriptor)
+	{
+		Map<String, TargetMethod[]> overloads = index.get(methodName);
+		if (overloads == null)
+			return NO_METHODS;
+		TargetMethod[] candidates = overloads.get(methodDescriptor);
+		return candidates != null ? candidates : NO_METHODS;
+	}
+
+	/**
+	 * @return true if any target method has this name and descriptor, whatever its owner
+	 */
+	public boolean mayTarget(String methodName, String methodDescriptor)
+	{
+		return lookup(methodName, methodDescriptor).length > 0;
+	}
+
+	public boolean targets(String methodOwner, String methodName, String methodDescriptor)
+	{
+		for (TargetMethod method : lookup(methodName, methodDescriptor))
+		{
+			if (method.implementedBy(classResolver, methodOwner))
+				return true;
+		}
+		return false;
 	}
 
 	public boolean targetsParameter(String methodOwner, String methodName, String methodDescriptor, int parameterIndex)
 	{
-		return methods.get(methodName + methodDescriptor).stream().anyMatch(method -> method.hasParameterConstantGroup(parameterIndex));
+		for (TargetMethod method : lookup(methodName, methodDescriptor))
+		{
+			if (method.hasParameterConstantGroup(parameterIndex))
+				return true;
+		}
+		return false;
 	}
 
 	public boolean targetsReturn(String methodOwner, String methodName, String methodDescriptor)
 	{
-		return methods.get(methodName + methodDescriptor).stream().anyMatch(TargetMethod::hasReturnConstantGroup);
+		for (TargetMethod method : lookup(methodName, methodDescriptor))
+		{
+			if (method.hasReturnConstantGroup())
+				return true;
+		}
+		return false;
 	}
 
 	public String getParameterConstantGroup(String methodOwner, String methodName, String methodDescriptor, int parameterIndex)
 	{
-		List<TargetMethod> targetMethods = methods.get(methodName + methodDescriptor).stream().filter(method -> method.implementedBy(classResolver, methodOwner)).collect(Collectors.toList());
-		if (targetMethods.size() != 1) {
-			throw new RuntimeException("Other than one possible method for " + methodName + methodDescriptor + " for class " + methodOwner + "was found: " + targetMethods);
-		}
-		return targetMethods.get(0).getParameterConstantGroup(parameterIndex);
+		return findImplementedMethod(methodOwner, methodName, methodDescriptor).getParameterConstantGroup(parameterIndex);
 	}
 
 	public String getReturnConstantGroup(String methodOwner, String methodName, String methodDescriptor)
 	{
-		List<TargetMethod> targetMethods = methods.get(methodName + methodDescriptor).stream().filter(method -> method.implementedBy(classResolver, methodOwner)).collect(Collectors.toList());
-		if (targetMethods.size() != 1) {
+		return findImplementedMethod(methodOwner, methodName, methodDescriptor).getReturnConstantGroup();
+	}
+
+	private TargetMethod findImplementedMethod(String methodOwner, String methodName, String methodDescriptor)
+	{
+		TargetMethod found = findTargetMethod(methodOwner, methodName, methodDescriptor);
+		if (found == null)
+			throw new RuntimeException("Other than one possible method for " + methodName + methodDescriptor + " for class " + methodOwner + "was found: []");
+		return found;
+	}
+
+	/**
+	 * @param methodOwner the internal name of the class that owns the method.
+	 * @param methodName the name of the method.
+	 * @param methodDescriptor the descriptor of the method.
+	 * @return the target method that {@code methodOwner} implements, or null if it implements none.
+	 * @throws RuntimeException if {@code methodOwner} implements more than one target method.
+	 */
+	public TargetMethod findTargetMethod(String methodOwner, String methodName, String methodDescriptor)
+	{
+		TargetMethod[] candidates = lookup(methodName, methodDescriptor);
+		TargetMethod found = null;
+		int foundCount = 0;
+		for (TargetMethod method : candidates)
+		{
+			if (method.implementedBy(classResolver, methodOwner))
+			{
+				found = method;
+				foundCount++;
+			}
+		}
+		if (foundCount > 1) {
+			List<TargetMethod> targetMethods = Arrays.stream(candidates).filter(method -> method.implementedBy(classResolver, methodOwner)).collect(Collectors.toList());
 			throw new RuntimeException("Other than one possible method for " + methodName + methodDescriptor + " for class " + methodOwner + "was found: " + targetMethods);
 		}
-		return targetMethods.get(0).getReturnConstantGroup();
+		return found;
 	}
 
 	@Override
@@ -79,16 +178,18 @@ public class TargetMethods implements Iterable<TargetMethod>
 	public static class Builder
 	{
 		private final IClassResolver classResolver;
+		private final SymbolTable symbols;
 		private final Map<String, List<TargetMethod>> targetMethods = new HashMap<>();
 
-		private Builder(IClassResolver classResolver)
+		private Builder(IClassResolver classResolver, SymbolTable symbols)
 		{
 			this.classResolver = classResolver;
+			this.symbols = symbols;
 		}
 
 		public TargetMethodBuilder targetMethod(String owner, String name, Type descriptor)
 		{
-			return new TargetMethodBuilder(this, owner, name, descriptor);
+			return new TargetMethodBuilder(this, symbols.intern(owner), symbols.intern(name), descriptor);
 		}
 
 		public TargetMethods build()
@@ -116,6 +217,7 @@ public class TargetMethods implements Iterable<TargetMethod>
 
 		public TargetMethodBuilder parameterGroup(int parameterIndex, String constantGroup)
 		{
+			constantGroup = parent.symbols.intern(constantGroup);
 			String existingGroup = parameterConstantGroups.putIfAbsent(parameterIndex, constantGroup);
 			if (existingGroup != null)
 				throw duplicateParameterGroup(parameterIndex, existingGroup, constantGroup);
@@ -126,7 +228,7 @@ public class TargetMethods implements Iterable<TargetMethod>
 			if (returnConstantGroup != null)
 				throw duplicateReturnGroup(returnConstantGroup, constantGroup);
 			else
-				returnConstantGroup = constantGroup;
+				returnConstantGroup = parent.symbols.intern(constantGroup);
 			return this;
 		}
 
@@ -194,10 +296,13 @@ public class TargetMethods implements Iterable<TargetMethod>
 	{
 		private final String declarator,
 							 name;
-		private final Set<String> implementors = new HashSet<>(),
-								  nonimplementors = new HashSet<>();
+		// Concurrent, as implementors may be looked up by several transformations at once
+		private final Set<String> implementors = ConcurrentHashMap.newKeySet(),
+								  nonimplementors = ConcurrentHashMap.newKeySet();
 		private final Type descriptor;
 		private final Map<Integer, String> parameterConstantGroups;
+		// Parameter constant groups by parameter index, so lookups do not box
+		private final String[] parameterConstantGroupArray;
 		private final String returnConstantGroup;
 
 		/**
@@ -217,6 +322,25 @@ public class TargetMethods implements Iterable<TargetMethod>
 			this.descriptor = descriptor;
 			this.parameterConstantGroups = parameterConstantGroups;
 			this.returnConstantGroup = returnConstantGroup;
+			int parameterCount = 0;
+			for (int parameterIndex : parameterConstantGroups.keySet())
+				parameterCount = Math.max(parameterCount, parameterIndex + 1);
+			this.parameterConstantGroupArray = new String[parameterCount];
+			for (Entry<Integer, String> entry : parameterConstantGroups.entrySet())
+			{
+				if (entry.getKey() >= 0)
+					parameterConstantGroupArray[entry.getKey()] = entry.getValue();
+			}
+		}
+
+		private TargetMethod(TargetMethod template)
+		{
+			this.declarator = template.declarator;
+			this.name = template.name;
+			this.descriptor = template.descriptor;
+			this.parameterConstantGroups = template.parameterConstantGroups;
+			this.parameterConstantGroupArray = template.parameterConstantGroupArray;
+			this.returnConstantGroup = template.returnConstantGroup;
 		}
 
 		/**
@@ -226,7 +350,9 @@ public class TargetMethods implements Iterable<TargetMethod>
 		 */
 		public String getParameterConstantGroup(int parameterIndex)
 		{
-			return parameterConstantGroups.get(parameterIndex);
+			return parameterIndex >= 0 && parameterIndex < parameterConstantGroupArray.length
+				? parameterConstantGroupArray[parameterIndex]
+				: null;
 		}
 
 		/**
@@ -236,7 +362,7 @@ public class TargetMethods implements Iterable<TargetMethod>
 		 */
 		public boolean hasParameterConstantGroup(int parameterIndex)
 		{
-			return parameterConstantGroups.containsKey(parameterIndex);
+			return getParameterConstantGroup(parameterIndex) != null;
 		}
 
 		/**
@@ -0,0 +1,187 @@
+package daomephsta.unpick.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+
+import daomephsta.unpick.api.AnalysisMode;
+import daomephsta.unpick.api.ConstantUninliner;
+import daomephsta.unpick.api.constantmappers.IConstantMapper;
+import daomephsta.unpick.api.constantresolvers.IConstantResolver;
+import daomephsta.unpick.impl.BackwardSlicer;
+import daomephsta.unpick.impl.MethodFrames;
+import daomephsta.unpick.impl.UnpickInterpreter;
+import daomephsta.unpick.impl.UnpickValue;
+import daomephsta.unpick.impl.constantresolvers.BytecodeAnalysisConstantResolver;
+import daomephsta.unpick.tests.lib.MethodMocker;
+import daomephsta.unpick.tests.lib.MethodMocker.MockMethod;
+import daomephsta.unpick.tests.lib.MockConstantMapper;
+
+public class AnalysisModeTest
+{
+	private static final String INT_CONSUMER = Type.getInternalName(MethodSource.class);
+
+	@ParameterizedTest(name = "{0}")
+	@EnumSource(AnalysisMode.class)
+	public void testMixedUsages(AnalysisMode analysisMode)
+	{
+		MethodMockingClassResolver classResolver = new MethodMockingClassResolver();
+		IConstantResolver constantResolver = new BytecodeAnalysisConstantResolver(classResolver);
+		IConstantMapper mapper = MockConstantMapper.builder(classResolver, constantResolver)
+				.simpleConstantGroup("test")
+					.defineAll(ConstantSource.class, "INT_CONST_2", "INT_CONST_3", "INT_CONST_4", "INT_CONST")
+				.add()
+				.targetMethod(MethodSource.class, "intConsumer", "(I)V")
+					.remapParameter(0, "test")
+				.add()
+				.build();
+		MockMethod mock = classResolver.mock(MethodMocker.mock(void.class, mv ->
+		{
+			// Passed directly
+			mv.visitInsn(ICONST_2);
+			mv.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intConsumer", "(I)V", false);
+			// Passed through a local
+			mv.visitIntInsn(SIPUSH, 257);
+			mv.visitVarInsn(ISTORE, 0);
+			mv.visitVarInsn(ILOAD, 0);
+			mv.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intConsumer", "(I)V", false);
+			// Merged by a branch
+			Label otherwise = new Label(),
+				  end = new Label();
+			mv.visitVarInsn(ILOAD, 0);
+			mv.visitJumpInsn(IFEQ, otherwise);
+			mv.visitInsn(ICONST_3);
+			mv.visitJumpInsn(GOTO, end);
+			mv.visitLabel(otherwise);
+			mv.visitInsn(ICONST_4);
+			mv.visitLabel(end);
+			mv.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intConsumer", "(I)V", false);
+			mv.visitInsn(RETURN);
+		}));
+
+		ConstantUninliner uninliner = ConstantUninliner.builder(classResolver, mapper, constantResolver)
+				.analysisMode(analysisMode)
+				.build();
+		uninliner.transformMethod(mock.getOwner(), mock.getName(), mock.getDescriptor());
+
+		List<String> readFields = new ArrayList<>();
+		for (AbstractInsnNode insn : mock.getInstructions())
+		{
+			if (insn.getOpcode() == GETSTATIC)
+				readFields.add(((FieldInsnNode) insn).name);
+		}
+		assertEquals(Arrays.asList("INT_CONST_2", "INT_CONST", "INT_CONST_3", "INT_CONST_4"), readFields);
+	}
+
+	@ParameterizedTest(name = "{0}")
+	@EnumSource(AnalysisMode.class)
+	public void testStraightLineUsages(AnalysisMode analysisMode)
+	{
+		MethodMockingClassResolver classResolver = new MethodMockingClassResolver();
+		IConstantResolver constantResolver = new BytecodeAnalysisConstantResolver(classResolver);
+		IConstantMapper mapper = MockConstantMapper.builder(classResolver, constantResolver)
+				.simpleConstantGroup("test")
+					.defineAll(ConstantSource.class, "INT_CONST_2", "INT_CONST_3", "INT_CONST")
+				.add()
+				.targetMethod(MethodSource.class, "intConsumer", "(I)V")
+					.remapParameter(0, "test")
+				.add()
+				.build();
+		MockMethod mock = classResolver.mock(MethodMocker.mock(void.class, mv ->
+		{
+			// Unrelated literal, which is never replaced
+			mv.visitInsn(ICONST_3);
+			mv.visitInsn(POP);
+			mv.visitInsn(ICONST_2);
+			mv.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intConsumer", "(I)V", false);
+			// Combined by arithmetic, across a label that is not a jump target
+			mv.visitIntInsn(SIPUSH, 257);
+			Label line = new Label();
+			mv.visitLabel(line);
+			mv.visitLineNumber(2, line);
+			mv.visitInsn(ICONST_3);
+			mv.visitInsn(IOR);
+			mv.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intConsumer", "(I)V", false);
+			mv.visitInsn(RETURN);
+		}));
+
+		ConstantUninliner uninliner = ConstantUninliner.builder(classResolver, mapper, constantResolver)
+				.analysisMode(analysisMode)
+				.build();
+		uninliner.transformMethod(mock.getOwner(), mock.getName(), mock.getDescriptor());
+
+		List<String> readFields = new ArrayList<>();
+		for (AbstractInsnNode insn : mock.getInstructions())
+		{
+			if (insn.getOpcode() == GETSTATIC)
+				readFields.add(((FieldInsnNode) insn).name);
+		}
+		assertEquals(Arrays.asList("INT_CONST_2", "INT_CONST", "INT_CONST_3"), readFields);
+	}
+
+	@Test
+	public void testBackwardSlicer()
+	{
+		MockMethod mock = MethodMocker.mock(void.class, mv ->
+		{
+			mv.visitInsn(ICONST_2);
+			mv.visitInsn(ICONST_3);
+			mv.visitInsn(IADD);
+			mv.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intConsumer", "(I)V", false);
+			mv.visitInsn(ICONST_4);
+			mv.visitInsn(DUP);
+			mv.visitInsn(POP);
+			mv.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intConsumer", "(I)V", false);
+			mv.visitInsn(RETURN);
+		});
+		InsnList instructions = mock.getInstructions();
+		BackwardSlicer slicer = new BackwardSlicer(mock.getMockMethod());
+
+		List<AbstractInsnNode> sources = slicer.findLiteralSources(instructions.get(3), 0);
+		assertNotNull(sources);
+		assertEquals(2, sources.size());
+		assertTrue(sources.contains(instructions.get(0)));
+		assertTrue(sources.contains(instructions.get(1)));
+		// Copies made by DUP are not sliced
+		assertNull(slicer.findLiteralSources(instructions.get(7), 0));
+	}
+
+	@Test
+	public void testSparseFramesRetainSelected() throws AnalyzerException
+	{
+		MockMethod mock = MethodMocker.mock(void.class, mv ->
+		{
+			mv.visitInsn(ICONST_2);
+			mv.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intConsumer", "(I)V", false);
+			mv.visitInsn(RETURN);
+		});
+		Frame<UnpickValue>[] frames = new Analyzer<>(new UnpickInterpreter(mock.getMockMethod()))
+				.analyze(mock.getOwner(), mock.getMockMethod());
+
+		MethodFrames sparse = MethodFrames.sparse(frames, index -> index == 1);
+		assertEquals(frames.length, sparse.size());
+		assertNull(sparse.get(0));
+		assertNotNull(sparse.get(1));
+		assertEquals(1, sparse.get(1).getStackSize());
+		assertNull(sparse.get(2));
+		assertNull(sparse.get(frames.length));
+	}
+}
@@ -0,0 +1,212 @@
+package daomephsta.unpick.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import daomephsta.unpick.api.CallSiteIndex;
+import daomephsta.unpick.api.CallSiteIndex.IndexedClass;
+import daomephsta.unpick.api.CallSiteIndex.InvokeDynamicSite;
+import daomephsta.unpick.api.CallSiteIndex.MethodReference;
+import daomephsta.unpick.api.ConstantUninliner;
+import daomephsta.unpick.api.constantmappers.IConstantMapper;
+import daomephsta.unpick.api.constantresolvers.IConstantResolver;
+import daomephsta.unpick.impl.constantresolvers.BytecodeAnalysisConstantResolver;
+import daomephsta.unpick.tests.lib.MockConstantMapper;
+
+public class CallSiteIndexTest
+{
+	private static final String INT_CONSUMER = Type.getInternalName(MethodSource.class);
+	private static final Handle METAFACTORY = new Handle(H_INVOKESTATIC, "java/lang/invoke/LambdaMetafactory", "metafactory",
+		"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;"
+		+ "Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;", false);
+
+	@Test
+	public void testIndexContents() throws IOException
+	{
+		CallSiteIndex built = buildIndex();
+		Path file = Files.createTempFile("unpick", ".index");
+		try
+		{
+			built.write(file);
+			for (CallSiteIndex index : Arrays.asList(built, CallSiteIndex.read(file)))
+			{
+				assertEquals(Arrays.asList("index/Caller", "index/Implementor", "index/Unrelated"), index.getClassNames());
+				assertNull(index.findClass("index/Missing"));
+
+				IndexedClass caller = index.findClass("index/Caller");
+				assertEquals(Arrays.asList(new MethodReference("index/Caller", "call", "()V")), caller.getDeclaredMethods());
+				MethodReference intConsumer = new MethodReference(INT_CONSUMER, "intConsumer", "(I)V");
+				assertEquals(Arrays.asList("index/Caller"), index.findReferencingClasses(INT_CONSUMER, "intConsumer", "(I)V"));
+				List<InvokeDynamicSite> sites = caller.getInvokeDynamicSites();
+				assertEquals(1, sites.size());
+				assertEquals("getAsInt", sites.get(0).getName());
+				assertEquals(METAFACTORY.getName(), sites.get(0).getBootstrapMethod().getName());
+				assertEquals(new MethodReference("java/util/function/IntSupplier", "getAsInt", "()I"), sites.get(0).getLambdaMethod());
+				assertEquals(new MethodReference("index/Implementor", "supply", "()I"), sites.get(0).getImplementation());
+				assertTrue(caller.getMethodReferences().contains(intConsumer));
+
+				assertEquals(Collections.emptyList(), index.findClass("index/Unrelated").getInvokeDynamicSites());
+			}
+		}
+		finally
+		{
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testIndexSource() throws IOException
+	{
+		assertNull(buildIndex().getSource());
+		CallSiteIndex built = CallSiteIndex.build(Arrays.asList(implementor(), unrelated(), caller()), ForkJoinPool.commonPool(), "index.jar 1234");
+		Path file = Files.createTempFile("unpick", ".index");
+		try
+		{
+			built.write(file);
+			assertEquals("index.jar 1234", CallSiteIndex.read(file).getSource());
+			// The source is stored with the other strings, so it does not disturb the class names
+			assertEquals(Arrays.asList("index/Caller", "index/Implementor", "index/Unrelated"), CallSiteIndex.read(file).getClassNames());
+		}
+		finally
+		{
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testPlanTransformation()
+	{
+		CallSiteIndex index = buildIndex();
+		// Calls to intConsumer are targeted, so only the caller may be changed
+		assertEquals(Arrays.asList("index/Caller"), plan(index, false));
+		// The lambda is targeted too, so its implementor may be changed, after the caller creates the lambda
+		assertEquals(Arrays.asList("index/Caller", "index/Implementor"), plan(index, true));
+	}
+
+	@Test
+	public void testPlanTransformationShards()
+	{
+		CallSiteIndex index = buildIndex();
+		ConstantUninliner uninliner = uninliner(true);
+		for (int shardCount = 1; shardCount <= 4; shardCount++)
+		{
+			List<String> shards = new ArrayList<>();
+			for (int shard = 0; shard < shardCount; shard++)
+			{
+				List<String> share = uninliner.planTransformation(index, shard, shardCount);
+				// The caller creates the lambda the implementor implements, so they are never split
+				assertTrue(share.isEmpty() || share.equals(Arrays.asList("index/Caller", "index/Implementor")));
+				shards.addAll(share);
+			}
+			assertEquals(uninliner.planTransformation(index), shards);
+		}
+		assertThrows(IllegalArgumentException.class, () -> uninliner.planTransformation(index, 2, 2));
+	}
+
+	@Test
+	public void testTransformWithIndex()
+	{
+		ConstantUninliner uninliner = uninliner(true);
+		// Transforming the class that creates the lambda first does not change how its body is transformed
+		uninliner.transform(caller());
+		assertFalse(uninliner.transform(implementor()).isChanged());
+		assertTrue(uninliner.transform(implementor(), buildIndex()).isChanged());
+	}
+
+	private List<String> plan(CallSiteIndex index, boolean targetLambda)
+	{
+		return uninliner(targetLambda).planTransformation(index);
+	}
+
+	private ConstantUninliner uninliner(boolean targetLambda)
+	{
+		MethodMockingClassResolver classResolver = new MethodMockingClassResolver();
+		IConstantResolver constantResolver = new BytecodeAnalysisConstantResolver(classResolver);
+		MockConstantMapper.Builder builder = MockConstantMapper.builder(classResolver, constantResolver)
+				.simpleConstantGroup("test")
+					.defineAll(ConstantSource.class, "INT_CONST_2")
+				.add()
+				.targetMethod(MethodSource.class, "intConsumer", "(I)V")
+					.remapParameter(0, "test")
+				.add();
+		if (targetLambda)
+		{
+			builder.targetMethod("java/util/function/IntSupplier", "getAsInt", "()I")
+				.remapReturn("test")
+				.add();
+		}
+		IConstantMapper mapper = builder.build();
+		return ConstantUninliner.builder(classResolver, mapper, constantResolver)
+				.build();
+	}
+
+	private static CallSiteIndex buildIndex()
+	{
+		// Out of order, to check that classes are sorted
+		return CallSiteIndex.build(Arrays.asList(implementor(), unrelated(), caller()), ForkJoinPool.commonPool());
+	}
+
+	private static byte[] caller()
+	{
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		classWriter.visit(V1_8, ACC_PUBLIC, "index/Caller", null, "java/lang/Object", null);
+		MethodVisitor call = classWriter.visitMethod(ACC_STATIC, "call", "()V", null, null);
+		call.visitCode();
+		call.visitInsn(ICONST_2);
+		call.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intConsumer", "(I)V", false);
+		call.visitInvokeDynamicInsn("getAsInt", "()Ljava/util/function/IntSupplier;", METAFACTORY,
+			Type.getType("()I"), new Handle(H_INVOKESTATIC, "index/Implementor", "supply", "()I", false), Type.getType("()I"));
+		call.visitInsn(POP);
+		call.visitInsn(RETURN);
+		call.visitMaxs(0, 0);
+		call.visitEnd();
+		classWriter.visitEnd();
+		return classWriter.toByteArray();
+	}
+
+	private static byte[] implementor()
+	{
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		classWriter.visit(V1_8, ACC_PUBLIC, "index/Implementor", null, "java/lang/Object", null);
+		MethodVisitor supply = classWriter.visitMethod(ACC_STATIC, "supply", "()I", null, null);
+		supply.visitCode();
+		supply.visitInsn(ICONST_2);
+		supply.visitInsn(IRETURN);
+		supply.visitMaxs(0, 0);
+		supply.visitEnd();
+		classWriter.visitEnd();
+		return classWriter.toByteArray();
+	}
+
+	private static byte[] unrelated()
+	{
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		classWriter.visit(V1_8, ACC_PUBLIC, "index/Unrelated", null, "java/lang/Object", null);
+		MethodVisitor nothing = classWriter.visitMethod(ACC_STATIC, "nothing", "()V", null, null);
+		nothing.visitCode();
+		nothing.visitInsn(RETURN);
+		nothing.visitMaxs(0, 0);
+		nothing.visitEnd();
+		classWriter.visitEnd();
+		return classWriter.toByteArray();
+	}
+}
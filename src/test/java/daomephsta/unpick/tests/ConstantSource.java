@@ -48,7 +48,9 @@ class ConstantSource
 							INT_FLAG_BIT_0 = 1 << 0,
 							INT_FLAG_BIT_1 = 1 << 1,
 							INT_FLAG_BIT_2 = 1 << 2,
-							INT_FLAG_BIT_3 = 1 << 3;
+							INT_FLAG_BIT_3 = 1 << 3,
+							INT_FLAG_BITS_0_1 = INT_FLAG_BIT_0 | INT_FLAG_BIT_1,
+							INT_FLAG_BITS_2_3 = INT_FLAG_BIT_2 | INT_FLAG_BIT_3;
 
 	public static final long LONG_CONST_0 = 0,
 							 LONG_CONST_1 = 1,
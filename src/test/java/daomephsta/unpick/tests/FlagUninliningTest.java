@@ -5,6 +5,9 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.objectweb.asm.Opcodes.INVOKESTATIC;
 import static org.objectweb.asm.Opcodes.RETURN;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.stream.Stream;
 
@@ -13,9 +16,12 @@ import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.junit.jupiter.params.provider.ValueSource;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
 
 import daomephsta.unpick.api.ConstantUninliner;
+import daomephsta.unpick.api.FlagDecomposition;
 import daomephsta.unpick.api.constantmappers.IConstantMapper;
 import daomephsta.unpick.api.constantresolvers.IConstantResolver;
 import daomephsta.unpick.impl.IntegerType;
@@ -84,6 +90,88 @@ public class FlagUninliningTest
 		testKnownFlagsReturn(testConstant, expectedConstantCombination, constantNames);
 	}
 
+	private static Stream<Arguments> flagDecompositionProvider()
+	{
+		String[] constantNames = {"INT_FLAG_BIT_0", "INT_FLAG_BIT_1", "INT_FLAG_BIT_2", "INT_FLAG_BIT_3", "INT_FLAG_BITS_0_1", "INT_FLAG_BITS_2_3"};
+		return Stream.of
+		(
+			Arguments.of(FlagDecomposition.FIRST_FIT, 0b1111, new String[] {"INT_FLAG_BIT_0", "INT_FLAG_BIT_1", "INT_FLAG_BIT_2", "INT_FLAG_BIT_3"}, constantNames),
+			Arguments.of(FlagDecomposition.minimalCover(1000), 0b1111, new String[] {"INT_FLAG_BITS_0_1", "INT_FLAG_BITS_2_3"}, constantNames),
+			Arguments.of(FlagDecomposition.minimalCover(1000), 0b1110, new String[] {"INT_FLAG_BIT_1", "INT_FLAG_BITS_2_3"}, constantNames),
+			Arguments.of(FlagDecomposition.minimalCover(1000), 0b0101, new String[] {"INT_FLAG_BIT_0", "INT_FLAG_BIT_2"}, constantNames),
+			// Out of budget before any search, so the first fit combination is kept
+			Arguments.of(FlagDecomposition.minimalCover(1), 0b1111, new String[] {"INT_FLAG_BIT_0", "INT_FLAG_BIT_1", "INT_FLAG_BIT_2", "INT_FLAG_BIT_3"}, constantNames)
+		);
+	}
+
+	@ParameterizedTest(name = "{0}: {1} -> {2}")
+	@MethodSource("flagDecompositionProvider")
+	public void testFlagDecomposition(FlagDecomposition flagDecomposition, Integer testConstant, String[] expectedConstantCombination, String[] constantNames)
+	{
+		MethodMockingClassResolver classResolver = new MethodMockingClassResolver();
+		IConstantResolver constantResolver = new BytecodeAnalysisConstantResolver(classResolver);
+		IConstantMapper mapper = MockConstantMapper.builder(classResolver, constantResolver)
+				.flagConstantGroup("test")
+					.defineAll(ConstantSource.class, constantNames)
+				.add()
+				.targetMethod(MethodSource.class, "intConsumer", "(I)V")
+					.remapParameter(0, "test")
+				.add()
+				.build();
+
+		ConstantUninliner uninliner = ConstantUninliner.builder(classResolver, mapper, constantResolver)
+				.flagDecomposition(flagDecomposition)
+				.build();
+
+		MockMethod mock = classResolver.mock(TestUtils.mockInvokeStatic(MethodSource.class, "intConsumer", "(I)V", testConstant));
+		uninliner.transformMethod(mock.getOwner(), mock.getName(), mock.getDescriptor());
+		assertEquals(Arrays.asList(expectedConstantCombination), readFields(mock));
+	}
+
+	@ParameterizedTest(name = "{0} -> {1}")
+	@MethodSource("intFlagsProvider")
+	public void testRepeatedIntFlagsParameter(Integer testConstant, String[] expectedConstantCombination, String[] constantNames)
+	{
+		MethodMockingClassResolver classResolver = new MethodMockingClassResolver();
+		IConstantResolver constantResolver = new BytecodeAnalysisConstantResolver(classResolver);
+		IConstantMapper mapper = MockConstantMapper.builder(classResolver, constantResolver)
+				.flagConstantGroup("test")
+					.defineAll(ConstantSource.class, constantNames)
+				.add()
+				.targetMethod(MethodSource.class, "intConsumer", "(I)V")
+					.remapParameter(0, "test")
+				.add()
+				.build();
+
+		ConstantUninliner uninliner = new ConstantUninliner(classResolver, mapper, constantResolver);
+
+		// The second site reuses the decomposition of the first
+		MockMethod mock = classResolver.mock(MethodMocker.mock(void.class, mv ->
+		{
+			for (int i = 0; i < 2; i++)
+			{
+				IntegerType.INT.appendLiteralPushInsn(mv, testConstant);
+				mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(MethodSource.class), "intConsumer", "(I)V", false);
+			}
+			mv.visitInsn(RETURN);
+		}));
+		uninliner.transformMethod(mock.getOwner(), mock.getName(), mock.getDescriptor());
+		List<String> expected = new ArrayList<>(Arrays.asList(expectedConstantCombination));
+		expected.addAll(Arrays.asList(expectedConstantCombination));
+		assertEquals(expected, readFields(mock));
+	}
+
+	private static List<String> readFields(MockMethod mock)
+	{
+		List<String> readFields = new ArrayList<>();
+		for (AbstractInsnNode insn : mock.getInstructions())
+		{
+			if (insn.getOpcode() == Opcodes.GETSTATIC)
+				readFields.add(((FieldInsnNode) insn).name);
+		}
+		return readFields;
+	}
+
 	private void testKnownFlagsParameter(Number testConstant, String[] expectedConstantCombination, String[] constantNames, String constantConsumerName, String constantConsumerDescriptor)
 	{
 		MethodMockingClassResolver classResolver = new MethodMockingClassResolver();
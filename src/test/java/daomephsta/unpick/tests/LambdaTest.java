@@ -5,12 +5,17 @@ import static org.junit.jupiter.api.Assertions.fail;
 import static org.junit.jupiter.params.provider.Arguments.arguments;
 
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.InvokeDynamicInsnNode;
@@ -43,10 +48,94 @@ public class LambdaTest
 	@ParameterizedTest(name = "{0}: {1} -> {2}")
 	@MethodSource
 	public void lambdaConstantReturn(String lambdaParentName, int constant, String constantName) throws IOException
+	{
+		testLambdaConstantReturn(lambdaParentName, constant, constantName, null);
+	}
+
+	@ParameterizedTest(name = "{0}: {1} -> {2}")
+	@MethodSource("lambdaConstantReturn")
+	public void lambdaConstantReturnConcurrent(String lambdaParentName, int constant, String constantName) throws IOException
+	{
+		testLambdaConstantReturn(lambdaParentName, constant, constantName, new ForkJoinPool(4));
+	}
+
+	private static Stream<Arguments> lambdaBodyConstantReturn()
+	{
+		return Stream.of(
+			arguments("lambdaParentMINUS_1", MINUS_1, "MINUS_1"),
+			arguments("lambdaParentARBITRARY", ARBITRARY, "ARBITRARY")
+		);
+	}
+
+	// The lambda body is transformed without transforming the method that creates it
+	@ParameterizedTest(name = "{0}: {1} -> {2}")
+	@MethodSource
+	public void lambdaBodyConstantReturn(String lambdaParentName, int constant, String constantName)
+	{
+		IClassResolver classResolver = new MethodMockingClassResolver();
+		ConstantUninliner uninliner = ConstantUninliner.builder(classResolver, createMapper(classResolver, constantName),
+			new BytecodeAnalysisConstantResolver(classResolver))
+			.build();
+		ClassNode lambdaParentClass = classResolver.resolveClassNode(Type.getInternalName(Methods.class));
+		MethodNode lambda = findLambda(classResolver, lambdaParentClass, lambdaParentName);
+		ASMAssertions.assertIsLiteral(lambda.instructions.get(0), constant);
+		uninliner.transformMethod(lambdaParentClass.name, lambda.name, lambda.desc);
+		ASMAssertions.assertReadsField(lambda.instructions.get(0), this.getClass(), constantName, "I");
+	}
+
+	// The bound receiver of a method reference is not a parameter, so the method's return mapping must not apply to it
+	@Test
+	public void boundReceiverIsNotReturn()
 	{
 		IClassResolver classResolver = new MethodMockingClassResolver();
 		IConstantResolver constantResolver = new BytecodeAnalysisConstantResolver(classResolver);
 		IConstantMapper mapper = MockConstantMapper.builder(classResolver, constantResolver)
+			.simpleConstantGroup("strings")
+				.defineAll(ConstantSource.class, "STRING_CONST_FOO")
+				.add()
+			.targetMethod("java/lang/String", "trim", "()Ljava/lang/String;")
+				.remapReturn("strings")
+				.add()
+			.build();
+		ConstantUninliner uninliner = ConstantUninliner.builder(classResolver, mapper, constantResolver).build();
+		ClassNode lambdaParentClass = classResolver.resolveClassNode(Methods.class.getName());
+		uninliner.transform(Methods.class.getName());
+		for (MethodNode method : lambdaParentClass.methods)
+		{
+			if (method.name.equals("boundStringMethodRefParent"))
+			{
+				for (AbstractInsnNode insn : method.instructions)
+				{
+					if (insn.getOpcode() == Opcodes.LDC || insn.getOpcode() == Opcodes.GETSTATIC)
+					{
+						ASMAssertions.assertIsLiteral(insn, ConstantSource.STRING_CONST_FOO);
+						return;
+					}
+				}
+			}
+		}
+		fail("boundStringMethodRefParent not found");
+	}
+
+	private void testLambdaConstantReturn(String lambdaParentName, int constant, String constantName, ForkJoinPool forkJoinPool)
+	{
+		IClassResolver classResolver = new MethodMockingClassResolver();
+		IConstantMapper mapper = createMapper(classResolver, constantName);
+		ConstantUninliner uninliner = ConstantUninliner.builder(classResolver, mapper,
+			new BytecodeAnalysisConstantResolver(classResolver))
+			.forkJoinPool(forkJoinPool)
+			.build();
+		ClassNode lambdaParentClass = classResolver.resolveClassNode(Methods.class.getName());
+		MethodNode lambda = findLambda(classResolver, lambdaParentClass, lambdaParentName);
+		ASMAssertions.assertIsLiteral(lambda.instructions.get(0), constant);
+		uninliner.transform(Methods.class.getName());
+		ASMAssertions.assertReadsField(lambda.instructions.get(0), this.getClass(), constantName, "I");
+	}
+
+	private IConstantMapper createMapper(IClassResolver classResolver, String constantName)
+	{
+		IConstantResolver constantResolver = new BytecodeAnalysisConstantResolver(classResolver);
+		return MockConstantMapper.builder(classResolver, constantResolver)
 			.simpleConstantGroup("test")
 				.defineAll(this.getClass(), constantName)
 				.add()
@@ -57,13 +146,6 @@ public class LambdaTest
 				.remapReturn("test")
 				.add()
 			.build();
-		ConstantUninliner uninliner = new ConstantUninliner(classResolver, mapper,
-			new BytecodeAnalysisConstantResolver(classResolver));
-		ClassNode lambdaParentClass = classResolver.resolveClassNode(Methods.class.getName());
-		MethodNode lambda = findLambda(classResolver, lambdaParentClass, lambdaParentName);
-		ASMAssertions.assertIsLiteral(lambda.instructions.get(0), constant);
-		uninliner.transform(Methods.class.getName());
-		ASMAssertions.assertReadsField(lambda.instructions.get(0), this.getClass(), constantName, "I");
 	}
 
 	// Finds the test lambda contained by the given parent method
@@ -127,8 +209,15 @@ public class LambdaTest
 			lambdaConsumer(ExternalMethodReferences::instanceRef, new ExternalMethodReferences());
 		}
 
+		void boundStringMethodRefParent()
+		{
+			stringConsumer(ConstantSource.STRING_CONST_FOO::trim);
+		}
+
 		void lambdaConsumer(LambdaI lambda) {}
 
+		void stringConsumer(Supplier<String> lambda) {}
+
 		<T> void lambdaConsumer(LambdaT2I<T> lambda, T instance) {}
 	}
 
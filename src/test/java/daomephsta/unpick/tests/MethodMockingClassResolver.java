@@ -1,8 +1,8 @@
 package daomephsta.unpick.tests;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.tree.ClassNode;
@@ -12,7 +12,7 @@ import daomephsta.unpick.tests.lib.MethodMocker.MockMethod;
 
 class MethodMockingClassResolver implements IClassResolver
 {
-	private final Map<String, ClassNode> cache = new HashMap<>();
+	private final Map<String, ClassNode> cache = new ConcurrentHashMap<>();
 
 	public MockMethod mock(MockMethod mock)
 	{
@@ -0,0 +1,341 @@
+package daomephsta.unpick.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import daomephsta.unpick.api.AnalysisMode;
+import daomephsta.unpick.api.ConstantUninliner;
+import daomephsta.unpick.api.TransformedClass;
+import daomephsta.unpick.api.constantmappers.IConstantMapper;
+import daomephsta.unpick.api.constantresolvers.IConstantResolver;
+import daomephsta.unpick.impl.PeepholeMethodNode;
+import daomephsta.unpick.impl.UninliningClassResolver;
+import daomephsta.unpick.impl.constantresolvers.BytecodeAnalysisConstantResolver;
+import daomephsta.unpick.tests.lib.MethodMocker;
+import daomephsta.unpick.tests.lib.MethodMocker.MockMethod;
+import daomephsta.unpick.tests.lib.MockConstantMapper;
+
+public class MethodVisitorTest
+{
+	private static final String INT_CONSUMER = Type.getInternalName(MethodSource.class);
+
+	@Test
+	public void testDirectUsages()
+	{
+		List<String> readFields = uninline(AnalysisMode.FULL, mv ->
+		{
+			mv.visitInsn(ICONST_2);
+			mv.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intConsumer", "(I)V", false);
+			mv.visitIntInsn(SIPUSH, 257);
+			mv.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intConsumer", "(I)V", false);
+			mv.visitInsn(RETURN);
+		});
+		assertEquals(Arrays.asList("INT_CONST_2", "INT_CONST"), readFields);
+	}
+
+	@ParameterizedTest(name = "{0}")
+	@EnumSource(AnalysisMode.class)
+	public void testComplexUsages(AnalysisMode analysisMode)
+	{
+		List<String> readFields = uninline(analysisMode, mv ->
+		{
+			mv.visitIntInsn(SIPUSH, 257);
+			mv.visitVarInsn(ISTORE, 0);
+			mv.visitVarInsn(ILOAD, 0);
+			mv.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intConsumer", "(I)V", false);
+			Label otherwise = new Label(),
+				  end = new Label();
+			mv.visitVarInsn(ILOAD, 0);
+			mv.visitJumpInsn(IFEQ, otherwise);
+			mv.visitInsn(ICONST_3);
+			mv.visitJumpInsn(GOTO, end);
+			mv.visitLabel(otherwise);
+			mv.visitInsn(ICONST_4);
+			mv.visitLabel(end);
+			mv.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intConsumer", "(I)V", false);
+			mv.visitInsn(RETURN);
+		});
+		assertEquals(Arrays.asList("INT_CONST", "INT_CONST_3", "INT_CONST_4"), readFields);
+	}
+
+	@Test
+	public void testPeepholeSites()
+	{
+		PeepholeMethodNode direct = new PeepholeMethodNode(ACC_STATIC, "direct", "()V", null, null);
+		direct.visitInsn(ICONST_2);
+		direct.visitInsn(LCONST_1);
+		direct.visitInsn(POP2);
+		direct.visitFieldInsn(GETSTATIC, INT_CONSUMER, "LONG", "J");
+		direct.visitInsn(DUP2);
+		direct.visitInsn(POP2);
+		direct.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intLongConsumer", "(IJ)V", false);
+		direct.visitInsn(RETURN);
+		assertFalse(direct.isComplex());
+		assertEquals(1, direct.getSites().size());
+		assertEquals(0, direct.getSites().get(0).getParameterIndex());
+		assertEquals(direct.instructions.getFirst(), direct.getSites().get(0).getLiteral());
+
+		PeepholeMethodNode duplicated = new PeepholeMethodNode(ACC_STATIC, "duplicated", "()V", null, null);
+		duplicated.visitInsn(ICONST_2);
+		duplicated.visitInsn(DUP);
+		duplicated.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intConsumer", "(I)V", false);
+		duplicated.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intConsumer", "(I)V", false);
+		duplicated.visitInsn(RETURN);
+		assertTrue(duplicated.isComplex());
+	}
+
+	@Test
+	public void testPeepholeReachability()
+	{
+		PeepholeMethodNode returns = new PeepholeMethodNode(ACC_STATIC, "returns", "(I)I", null, null);
+		Label otherwise = new Label(), end = new Label();
+		returns.visitVarInsn(ILOAD, 0);
+		returns.visitJumpInsn(IFEQ, otherwise);
+		returns.visitInsn(ICONST_2);
+		returns.visitInsn(IRETURN);
+		returns.visitLabel(otherwise);
+		returns.visitLineNumber(1, otherwise);
+		returns.visitInsn(ICONST_3);
+		returns.visitInsn(IRETURN);
+		returns.visitLabel(end);
+		// Only targets of jumps resume execution after a return
+		assertFalse(returns.mayContainUnreachableCode());
+
+		PeepholeMethodNode dead = new PeepholeMethodNode(ACC_STATIC, "dead", "()I", null, null);
+		dead.visitInsn(ICONST_2);
+		dead.visitInsn(IRETURN);
+		dead.visitLabel(new Label());
+		dead.visitInsn(ICONST_3);
+		dead.visitInsn(IRETURN);
+		assertTrue(dead.mayContainUnreachableCode());
+	}
+
+	@Test
+	public void testClassVisitor()
+	{
+		MethodMockingClassResolver classResolver = new MethodMockingClassResolver();
+		ConstantUninliner uninliner = createUninliner(classResolver, AnalysisMode.FULL);
+		ClassNode uninlined = new ClassNode();
+		new ClassReader(mockClass(true)).accept(uninliner.classVisitor(uninlined), 0);
+
+		// Buffered methods are passed on in their original order
+		assertEquals(Arrays.asList("literals", "noLiterals"), uninlined.methods.stream().map(method -> method.name).collect(Collectors.toList()));
+		assertEquals(Arrays.asList("INT_CONST_2"), readFields(uninlined.methods.get(0)));
+	}
+
+	@Test
+	public void testMaxStackOfFlags()
+	{
+		MethodMockingClassResolver classResolver = new MethodMockingClassResolver();
+		IConstantResolver constantResolver = new BytecodeAnalysisConstantResolver(classResolver);
+		IConstantMapper mapper = MockConstantMapper.builder(classResolver, constantResolver)
+				.flagConstantGroup("test")
+					.defineAll(ConstantSource.class, "INT_FLAG_BIT_0", "INT_FLAG_BIT_1")
+				.add()
+				.targetMethod(MethodSource.class, "intConsumer", "(I)V")
+					.remapParameter(0, "test")
+				.add()
+				.build();
+		ConstantUninliner uninliner = ConstantUninliner.builder(classResolver, mapper, constantResolver).build();
+
+		ClassWriter classWriter = new ClassWriter(0);
+		ClassVisitor classVisitor = uninliner.classVisitor(classWriter);
+		classVisitor.visit(V1_8, ACC_PUBLIC, "FlagsMock", null, "java/lang/Object", null);
+		MethodVisitor buffered = classVisitor.visitMethod(ACC_STATIC, "buffered", "()V", null, null);
+		visitFlags(buffered);
+		MethodVisitor direct = uninliner.methodVisitor("FlagsMock", ACC_STATIC, "direct", "()V", null, null,
+			classWriter.visitMethod(ACC_STATIC, "direct", "()V", null, null));
+		visitFlags(direct);
+		classVisitor.visitEnd();
+
+		// The writer does not compute maxs, so they must fit the two flags that replace the literal
+		ClassNode uninlined = new ClassNode();
+		new ClassReader(classWriter.toByteArray()).accept(uninlined, 0);
+		for (MethodNode method : uninlined.methods)
+		{
+			assertEquals(Arrays.asList("INT_FLAG_BIT_0", "INT_FLAG_BIT_1"), readFields(method), method.name);
+			assertEquals(2, method.maxStack, method.name);
+		}
+	}
+
+	private static void visitFlags(MethodVisitor mv)
+	{
+		mv.visitCode();
+		mv.visitInsn(ICONST_3);
+		mv.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intConsumer", "(I)V", false);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(1, 0);
+		mv.visitEnd();
+	}
+
+	@Test
+	public void testTransformBytes()
+	{
+		MethodMockingClassResolver classResolver = new MethodMockingClassResolver();
+		ConstantUninliner uninliner = createUninliner(classResolver, AnalysisMode.FULL);
+
+		TransformedClass transformed = uninliner.transform(mockClass(true));
+		assertTrue(transformed.isChanged());
+		ClassNode uninlined = new ClassNode();
+		new ClassReader(transformed.getBytes()).accept(uninlined, 0);
+		assertEquals(Arrays.asList("INT_CONST_2"), readFields(uninlined.methods.get(0)));
+
+		byte[] unchanged = mockClass(false);
+		transformed = uninliner.transform(unchanged);
+		assertFalse(transformed.isChanged());
+		assertSame(unchanged, transformed.getBytes());
+	}
+
+	@Test
+	public void testTransformAll() throws Exception
+	{
+		MethodMockingClassResolver classResolver = new MethodMockingClassResolver();
+		ConstantUninliner uninliner = createUninliner(classResolver, AnalysisMode.FULL);
+		List<byte[]> classFiles = new ArrayList<>();
+		for (int i = 0; i < 8; i++)
+			classFiles.add(mockClass(i % 2 == 0));
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			// A budget of 1 byte allows one class in flight at a time
+			AtomicInteger inFlight = new AtomicInteger();
+			List<TransformedClass> results = Collections.synchronizedList(new ArrayList<>());
+			uninliner.transformAll(classFiles, executor, 1, transformed ->
+			{
+				assertEquals(1, inFlight.incrementAndGet());
+				results.add(transformed);
+				inFlight.decrementAndGet();
+			}).get(10, TimeUnit.SECONDS);
+			assertEquals(8, results.size());
+			assertEquals(4, results.stream().filter(TransformedClass::isChanged).count());
+
+			results.clear();
+			uninliner.transformAllNamed(Arrays.asList(MethodSource.class.getName()), executor, Long.MAX_VALUE, results::add)
+				.get(10, TimeUnit.SECONDS);
+			assertEquals(Type.getInternalName(MethodSource.class), results.get(0).getName());
+			assertFalse(results.get(0).isChanged());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testUninliningClassResolver()
+	{
+		MethodMockingClassResolver classResolver = new MethodMockingClassResolver();
+		ConstantUninliner uninliner = createUninliner(classResolver, AnalysisMode.FULL);
+		UninliningClassResolver uninlined = uninliner.uninliningClassResolver(1);
+
+		ClassNode methodSource = uninlined.resolveClassNode(MethodSource.class.getName());
+		assertEquals(Type.getInternalName(MethodSource.class), methodSource.name);
+		assertSame(methodSource, uninlined.resolveClassNode(Type.getInternalName(MethodSource.class)));
+		assertEquals(methodSource.name, uninlined.resolveClassReader(methodSource.name).getClassName());
+		assertEquals(2, uninlined.getCacheStatistics().getHits());
+		assertEquals(1, uninlined.getCacheStatistics().getMisses());
+
+		// Evicts MethodSource, the only cached class
+		uninlined.resolveClassNode(ConstantSource.class.getName());
+		assertNotSame(methodSource, uninlined.resolveClassNode(MethodSource.class.getName()));
+		assertEquals(2, uninlined.getCacheStatistics().getHits());
+		assertEquals(3, uninlined.getCacheStatistics().getMisses());
+	}
+
+	/**
+	 * @return a class with a method that passes a literal to a target method if {@code literals} is true,
+	 * and a method without literals
+	 */
+	private static byte[] mockClass(boolean literals)
+	{
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		classWriter.visit(V1_8, ACC_PUBLIC, "ClassVisitorMock", null, "java/lang/Object", null);
+		if (literals)
+		{
+			MethodVisitor withLiterals = classWriter.visitMethod(ACC_STATIC, "literals", "()V", null, null);
+			withLiterals.visitCode();
+			withLiterals.visitInsn(ICONST_2);
+			withLiterals.visitMethodInsn(INVOKESTATIC, INT_CONSUMER, "intConsumer", "(I)V", false);
+			withLiterals.visitInsn(RETURN);
+			withLiterals.visitMaxs(0, 0);
+			withLiterals.visitEnd();
+		}
+		MethodVisitor noLiterals = classWriter.visitMethod(ACC_STATIC, "noLiterals", "()V", null, null);
+		noLiterals.visitCode();
+		noLiterals.visitInsn(RETURN);
+		noLiterals.visitMaxs(0, 0);
+		noLiterals.visitEnd();
+		classWriter.visitEnd();
+		return classWriter.toByteArray();
+	}
+
+	private ConstantUninliner createUninliner(MethodMockingClassResolver classResolver, AnalysisMode analysisMode)
+	{
+		IConstantResolver constantResolver = new BytecodeAnalysisConstantResolver(classResolver);
+		IConstantMapper mapper = MockConstantMapper.builder(classResolver, constantResolver)
+				.simpleConstantGroup("test")
+					.defineAll(ConstantSource.class, "INT_CONST_2", "INT_CONST_3", "INT_CONST_4", "INT_CONST")
+				.add()
+				.targetMethod(MethodSource.class, "intConsumer", "(I)V")
+					.remapParameter(0, "test")
+				.add()
+				.build();
+		return ConstantUninliner.builder(classResolver, mapper, constantResolver)
+				.analysisMode(analysisMode)
+				.build();
+	}
+
+	private static List<String> readFields(MethodNode method)
+	{
+		List<String> readFields = new ArrayList<>();
+		for (AbstractInsnNode insn : method.instructions)
+		{
+			if (insn.getOpcode() == GETSTATIC)
+				readFields.add(((FieldInsnNode) insn).name);
+		}
+		return readFields;
+	}
+
+	private List<String> uninline(AnalysisMode analysisMode, Consumer<MethodVisitor> bodyGenerator)
+	{
+		MethodMockingClassResolver classResolver = new MethodMockingClassResolver();
+		MockMethod mock = classResolver.mock(MethodMocker.mock(void.class, bodyGenerator));
+		ConstantUninliner uninliner = createUninliner(classResolver, analysisMode);
+
+		MethodNode method = mock.getMockMethod();
+		MethodNode uninlined = new MethodNode(ASM9, method.access, method.name, method.desc, method.signature, null);
+		method.accept(uninliner.methodVisitor(mock.getOwner(), method.access, method.name, method.desc,
+			method.signature, null, uninlined));
+		return readFields(uninlined);
+	}
+}
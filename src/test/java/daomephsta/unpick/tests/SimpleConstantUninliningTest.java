@@ -1,9 +1,15 @@
 package daomephsta.unpick.tests;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.objectweb.asm.Opcodes.RETURN;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.stream.Stream;
 
 import org.junit.jupiter.api.Test;
@@ -11,18 +17,37 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.junit.jupiter.params.provider.ValueSource;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
 
 import daomephsta.unpick.api.ConstantUninliner;
+import daomephsta.unpick.api.constantmappers.ConstantMappers;
+import daomephsta.unpick.api.constantmappers.ICompiledDefinitions;
 import daomephsta.unpick.api.constantmappers.IConstantMapper;
+import daomephsta.unpick.api.constantmappers.IResolvingConstantMapper;
 import daomephsta.unpick.api.constantresolvers.IConstantResolver;
+import daomephsta.unpick.impl.AbstractInsnNodes;
+import daomephsta.unpick.impl.LiteralFilter;
 import daomephsta.unpick.impl.LiteralType;
+import daomephsta.unpick.impl.MethodFrames;
 import daomephsta.unpick.impl.constantresolvers.BytecodeAnalysisConstantResolver;
+import daomephsta.unpick.impl.representations.ReplacementInstructionGenerator.Context;
+import daomephsta.unpick.impl.representations.ReplacementSet;
+import daomephsta.unpick.impl.representations.SimpleConstantDefinition;
+import daomephsta.unpick.impl.representations.SimpleConstantGroup;
 import daomephsta.unpick.tests.lib.ASMAssertions;
 import daomephsta.unpick.tests.lib.MethodMocker;
 import daomephsta.unpick.tests.lib.MethodMocker.MockMethod;
 import daomephsta.unpick.tests.lib.MockConstantMapper;
 import daomephsta.unpick.tests.lib.TestUtils;
 
+import org.apache.logging.log4j.LogManager;
+
 public class SimpleConstantUninliningTest
 {
 	@ParameterizedTest(name = "{0} -> {1}")
@@ -363,6 +388,156 @@ public class SimpleConstantUninliningTest
 		assertEquals(ex.getMessage(), "One or more constants failed to resolve, check the log for details");
 	}
 
+	private static Stream<Arguments> widenedDefinitionsProvider()
+	{
+		return Stream.of
+		(
+			Arguments.of(Type.BYTE_TYPE, "5", new InsnNode(Opcodes.ICONST_5)),
+			Arguments.of(Type.SHORT_TYPE, "300", new IntInsnNode(Opcodes.SIPUSH, 300)),
+			Arguments.of(Type.CHAR_TYPE, "a", new IntInsnNode(Opcodes.BIPUSH, 'a')),
+			Arguments.of(Type.INT_TYPE, "100000", new LdcInsnNode(100000))
+		);
+	}
+
+	@ParameterizedTest(name = "{0} {1}")
+	@MethodSource("widenedDefinitionsProvider")
+	public void testWidenedConstantDefinitions(Type descriptor, String valueString, AbstractInsnNode literal)
+	{
+		SimpleConstantGroup group = new SimpleConstantGroup("test");
+		group.add(new SimpleConstantDefinition("Constants", "CONSTANT", descriptor, valueString));
+		InsnList instructions = new InsnList();
+		instructions.add(literal);
+		Context context = new Context(null, new ReplacementSet(instructions), literal, instructions,
+			MethodFrames.none(instructions.size()), LogManager.getLogger("unpick"));
+		assertTrue(group.canReplace(context));
+		// Integral constants do not match literals of other sizes
+		AbstractInsnNode longLiteral = new LdcInsnNode(((Number) AbstractInsnNodes.getLiteralValue(literal)).longValue());
+		instructions.add(longLiteral);
+		assertFalse(group.canReplace(new Context(null, new ReplacementSet(instructions), longLiteral, instructions,
+			MethodFrames.none(instructions.size()), LogManager.getLogger("unpick"))));
+	}
+
+	@Test
+	public void testLiteralFilter()
+	{
+		LiteralFilter constants = LiteralFilter.builder()
+			.constant(257)
+			.constant((byte) 5)
+			.constant(1234567890L)
+			.constant(0.5F)
+			.constant("foo")
+			.build();
+		assertTrue(constants.mayContain(new IntInsnNode(Opcodes.SIPUSH, 257)));
+		assertTrue(constants.mayContain(new InsnNode(Opcodes.ICONST_5)));
+		assertTrue(constants.mayContain(new LdcInsnNode(1234567890L)));
+		assertTrue(constants.mayContain(new LdcInsnNode(0.5F)));
+		assertTrue(constants.mayContain(new LdcInsnNode("foo")));
+		assertFalse(constants.mayContain(new InsnNode(Opcodes.ICONST_0)));
+		assertFalse(constants.mayContain(new InsnNode(Opcodes.ICONST_1)));
+		assertFalse(constants.mayContain(new LdcInsnNode(257L)));
+		assertFalse(constants.mayContain(new LdcInsnNode("bar")));
+
+		LiteralFilter flags = LiteralFilter.builder()
+			.flag(1 << 2)
+			.build();
+		// Literals must share a bit with a flag, or have a negation the flags cover, and 0 only matches a flag of 0
+		assertTrue(flags.mayContain(new InsnNode(Opcodes.ICONST_4)));
+		assertTrue(flags.mayContain(new IntInsnNode(Opcodes.BIPUSH, 6)));
+		assertTrue(flags.mayContain(new LdcInsnNode(4L)));
+		assertFalse(flags.mayContain(new InsnNode(Opcodes.ICONST_1)));
+		assertFalse(flags.mayContain(new InsnNode(Opcodes.LCONST_1)));
+		assertFalse(flags.mayContain(new IntInsnNode(Opcodes.BIPUSH, 11)));
+		assertFalse(flags.mayContain(new InsnNode(Opcodes.ICONST_0)));
+		assertFalse(flags.mayContain(new LdcInsnNode(-1L)));
+		assertFalse(flags.mayContain(new InsnNode(Opcodes.FCONST_1)));
+
+		LiteralFilter negatedFlags = LiteralFilter.builder()
+			.flag(1)
+			.flag(2)
+			.build();
+		// ~3 shares no bit with the flags, but its negation is covered by them
+		assertTrue(negatedFlags.mayContain(new LdcInsnNode(~3)));
+		assertTrue(negatedFlags.mayContain(new LdcInsnNode(~3L)));
+		assertFalse(negatedFlags.mayContain(new LdcInsnNode(~7)));
+		assertFalse(negatedFlags.mayContain(new InsnNode(Opcodes.ICONST_4)));
+	}
+
+	@Test
+	public void testResolvingMapper()
+	{
+		MethodMockingClassResolver classResolver = new MethodMockingClassResolver();
+		IConstantResolver constantResolver = new BytecodeAnalysisConstantResolver(classResolver);
+		IResolvingConstantMapper mapper = MockConstantMapper.builder(classResolver, constantResolver)
+				.simpleConstantGroup("test")
+					.define(ConstantSource.class, "INT_CONST_M1")
+				.add()
+				.targetMethod(MethodSource.class, "intConsumer", "(I)V")
+					.remapParameter(0, "test")
+				.add()
+				.build();
+
+		String owner = Type.getInternalName(MethodSource.class);
+		assertNotNull(mapper.resolveParameter(owner, "intConsumer", "(I)V", 0));
+		assertNull(mapper.resolveParameter(owner, "intConsumer", "(I)V", 1));
+		assertNull(mapper.resolveParameter(owner, "longConsumer", "(J)V", 0));
+		assertNull(mapper.resolveReturn(owner, "intConsumer", "(I)V"));
+	}
+
+	@Test
+	public void testCallSiteCache()
+	{
+		MethodMockingClassResolver classResolver = new MethodMockingClassResolver();
+		IConstantResolver constantResolver = new BytecodeAnalysisConstantResolver(classResolver);
+		IConstantMapper mapper = MockConstantMapper.builder(classResolver, constantResolver)
+				.simpleConstantGroup("test")
+					.define(ConstantSource.class, "INT_CONST_M1")
+				.add()
+				.targetMethod(MethodSource.class, "intConsumer", "(I)V")
+					.remapParameter(0, "test")
+				.add()
+				.build();
+
+		String owner = Type.getInternalName(MethodSource.class);
+		MockMethod mock = classResolver.mock(MethodMocker.mock(void.class, mv ->
+		{
+			for (int i = 0; i < 2; i++)
+			{
+				mv.visitInsn(Opcodes.ICONST_M1);
+				mv.visitMethodInsn(Opcodes.INVOKESTATIC, owner, "intConsumer", "(I)V", false);
+			}
+			mv.visitInsn(RETURN);
+		}));
+		ConstantUninliner uninliner = new ConstantUninliner(classResolver, mapper, constantResolver);
+		uninliner.transformMethod(mock.getOwner(), mock.getName(), mock.getDescriptor());
+		ASMAssertions.assertReadsField(mock.getInstructions().get(0), ConstantSource.class, "INT_CONST_M1", "I");
+		ASMAssertions.assertReadsField(mock.getInstructions().get(2), ConstantSource.class, "INT_CONST_M1", "I");
+		// The second invocation reuses the decision made for the first
+		assertTrue(uninliner.getCallSiteCacheStatistics().getHits() >= 1);
+	}
+
+	@Test
+	public void testCompiledDefinitions()
+	{
+		String definitions = "v2\n" +
+			"constant test " + Type.getInternalName(ConstantSource.class) + " INT_CONST_M1\n" +
+			"target_method " + Type.getInternalName(MethodSource.class) + " intConsumer (I)V\n" +
+			"\tparam 0 test\n";
+		MethodMockingClassResolver compileResolver = new MethodMockingClassResolver();
+		ICompiledDefinitions compiled = ConstantMappers.compileDataDriven(compileResolver,
+			new BytecodeAnalysisConstantResolver(compileResolver), new ByteArrayInputStream(definitions.getBytes(StandardCharsets.UTF_8)));
+
+		// Each job has its own class resolver, but shares the compiled definitions
+		for (int job = 0; job < 2; job++)
+		{
+			MethodMockingClassResolver classResolver = new MethodMockingClassResolver();
+			IConstantResolver constantResolver = new BytecodeAnalysisConstantResolver(classResolver);
+			ConstantUninliner uninliner = new ConstantUninliner(classResolver, compiled.createMapper(classResolver), constantResolver);
+			MockMethod mockInvocation = classResolver.mock(TestUtils.mockInvokeStatic(MethodSource.class, "intConsumer", "(I)V", -1));
+			uninliner.transformMethod(mockInvocation.getOwner(), mockInvocation.getName(), mockInvocation.getDescriptor());
+			ASMAssertions.assertReadsField(mockInvocation.getInstructions().get(0), ConstantSource.class, "INT_CONST_M1", "I");
+		}
+	}
+
 	private void testKnownConstantParameter(Object constant, String expectedConstant, String constantConsumerName, String constantConsumerDescriptor)
 	{
 		MethodMockingClassResolver classResolver = new MethodMockingClassResolver();
@@ -0,0 +1,238 @@
+package daomephsta.unpick.cli;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.objectweb.asm.tree.ClassNode;
+
+import daomephsta.unpick.api.ConstantUninliner;
+import daomephsta.unpick.api.IClassResolver;
+import daomephsta.unpick.api.constantresolvers.ConstantResolvers;
+import daomephsta.unpick.api.constantresolvers.IConstantResolver;
+
+/**
+ * Runs the jobs of a job file concurrently in one JVM. Each jar is read by one class resolver that every job
+ * whose classpath contains it shares, along with the constants resolved from it. Definitions are compiled once
+ * for each definitions file and constant jar, resolving their constants from the constant jar, and jobs with the
+ * same classpath and definitions share an uninliner. Each line of a job file holds the arguments of one job,
+ * separated by whitespace, and lines that are blank or start with {@code #} are ignored.
+ */
+class Batch implements Closeable {
+	private final Map<Path, Main.JarClassResolver> jars = new ConcurrentHashMap<>();
+	private final Map<IClassResolver, IConstantResolver> constantResolvers = new ConcurrentHashMap<>();
+	private final Map<List<Path>, Main.CompiledDefinitions> definitions = new ConcurrentHashMap<>();
+	private final Map<List<Path>, Workspace> workspaces = new ConcurrentHashMap<>();
+
+	/**
+	 * @throws IllegalArgumentException if a line is not a valid job, or two jobs have the same output
+	 */
+	static List<Main.Job> readJobs(Path jobFile) throws IOException {
+		List<Main.Job> jobs = new ArrayList<>();
+		Set<Path> outputs = new HashSet<>();
+		List<String> lines = Files.readAllLines(jobFile, StandardCharsets.UTF_8);
+
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i).trim();
+
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+
+			Main.Job job;
+
+			try {
+				job = new Main.Job(line.split("\\s+"), 0);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Line " + (i + 1) + ": " + e.getMessage(), e);
+			}
+
+			// Concurrent jobs would overwrite each other's output
+			if (!outputs.add(job.outputJar.toAbsolutePath().normalize())) {
+				throw new IllegalArgumentException("Line " + (i + 1) + ": " + job.outputJar + " is the output of another job");
+			}
+
+			jobs.add(job);
+		}
+
+		return jobs;
+	}
+
+	/**
+	 * Runs every job, even if some fail
+	 * @throws IOException if any job failed
+	 */
+	static void run(List<Main.Job> jobs) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(jobs.size(), Runtime.getRuntime().availableProcessors())));
+
+		try (Batch batch = new Batch()) {
+			List<CompletableFuture<String>> results = new ArrayList<>();
+
+			for (Main.Job job : jobs) {
+				results.add(CompletableFuture.supplyAsync(() -> {
+					try {
+						return batch.unpick(job);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}, executor));
+			}
+
+			int failures = 0;
+
+			for (int i = 0; i < jobs.size(); i++) {
+				try {
+					System.out.println(results.get(i).join());
+				} catch (CompletionException e) {
+					failures++;
+					jobs.get(i).deleteOutput();
+					System.err.println("Failed to unpick " + jobs.get(i).inputJar);
+					Throwable cause = e.getCause();
+					(cause instanceof UncheckedIOException ? cause.getCause() : cause).printStackTrace();
+				}
+			}
+
+			for (Workspace workspace : batch.workspaces.values()) {
+				System.out.println("Call site cache of " + workspace.unpickDefinition + ": " + workspace.uninliner.getCallSiteCacheStatistics());
+			}
+
+			if (failures > 0) {
+				throw new IOException(failures + " of " + jobs.size() + " jobs failed");
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private String unpick(Main.Job job) throws IOException {
+		List<Path> key = new ArrayList<>(job.classpath);
+		key.add(job.unpickDefinition);
+		Workspace workspace = workspaces.computeIfAbsent(key, k -> {
+			try {
+				return new Workspace(job);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		TransformCache cache = job.cacheDirectory != null ? workspace.definitions.openCache(job.cacheDirectory, workspace.classResolver) : null;
+
+		Main.unpick(job, workspace.uninliner, cache);
+
+		String message = "Unpicked " + job.inputJar + " to " + job.outputJar;
+		return cache != null ? message + "\nTransform cache: " + cache.getStatistics() : message;
+	}
+
+	/**
+	 * @return the definitions of the job, compiled by the first job with the same definitions file and constant jar
+	 */
+	private Main.CompiledDefinitions compileDefinitions(Main.Job job) throws IOException {
+		Path constantJar = job.constantJar.toAbsolutePath().normalize();
+		List<Path> key = Arrays.asList(job.unpickDefinition.toAbsolutePath().normalize(), constantJar);
+
+		try {
+			return definitions.computeIfAbsent(key, k -> {
+				try {
+					Main.JarClassResolver classResolver = jars.computeIfAbsent(constantJar, p -> new Main.JarClassResolver(Collections.singletonList(p)));
+					return new Main.CompiledDefinitions(Files.readAllBytes(job.unpickDefinition), classResolver,
+							constantResolvers.computeIfAbsent(classResolver, ConstantResolvers::bytecodeAnalysis));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Workspace workspace : workspaces.values()) {
+			workspace.classResolver.close();
+		}
+
+		for (Main.JarClassResolver jar : jars.values()) {
+			jar.close();
+		}
+	}
+
+	/**
+	 * The uninliner of a classpath and definitions file
+	 */
+	private class Workspace {
+		final Path unpickDefinition;
+		final ClasspathResolver classResolver;
+		final Main.CompiledDefinitions definitions;
+		final ConstantUninliner uninliner;
+
+		Workspace(Main.Job job) throws IOException {
+			this.unpickDefinition = job.unpickDefinition;
+			this.classResolver = new ClasspathResolver(job.classpath);
+			this.definitions = compileDefinitions(job);
+			// Constants are resolved from the owner alone, so they are resolved once per jar that declares them
+			IConstantResolver constantResolver = (owner, name) -> constantResolvers
+					.computeIfAbsent(classResolver.locate(owner), ConstantResolvers::bytecodeAnalysis)
+					.resolveConstant(owner, name);
+			this.uninliner = definitions.createUninliner(classResolver, constantResolver);
+		}
+	}
+
+	/**
+	 * Resolves each class through the shared resolver of the first jar of the classpath that contains it.
+	 * Classes that no jar contains, such as those of the JVM, are resolved by the parent class loader.
+	 */
+	private class ClasspathResolver extends Main.JarClassResolver {
+		private final List<Main.JarClassResolver> classpath = new ArrayList<>();
+		private final Map<String, IClassResolver> locations = new ConcurrentHashMap<>();
+
+		ClasspathResolver(List<Path> classpath) {
+			super(new URL[0]);
+
+			for (Path path : classpath) {
+				this.classpath.add(jars.computeIfAbsent(path.toAbsolutePath().normalize(), p -> new Main.JarClassResolver(Collections.singletonList(p))));
+			}
+		}
+
+		/**
+		 * @return the resolver of the jar that contains the class, or this resolver if no jar contains it
+		 */
+		IClassResolver locate(String internalName) {
+			return locations.computeIfAbsent(internalName, name -> {
+				for (Main.JarClassResolver jar : classpath) {
+					if (jar.contains(name)) {
+						return jar;
+					}
+				}
+
+				return this;
+			});
+		}
+
+		@Override
+		byte[] readClassFile(String internalName) throws ClassResolutionException {
+			IClassResolver location = locate(internalName);
+			return location != this ? ((Main.JarClassResolver) location).readClassFile(internalName) : super.readClassFile(internalName);
+		}
+
+		@Override
+		public ClassNode resolveClassNode(String internalName) throws ClassResolutionException {
+			IClassResolver location = locate(internalName);
+			return location != this ? location.resolveClassNode(internalName) : super.resolveClassNode(internalName);
+		}
+	}
+}
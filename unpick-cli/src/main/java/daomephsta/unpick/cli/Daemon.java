@@ -0,0 +1,387 @@
+package daomephsta.unpick.cli;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import daomephsta.unpick.api.ConstantUninliner;
+import daomephsta.unpick.api.constantresolvers.ConstantResolvers;
+import daomephsta.unpick.api.constantresolvers.IConstantResolver;
+
+/**
+ * Runs jobs submitted over a loopback socket, so that the JVM, the compiled definitions and the
+ * class and constant caches stay warm between jobs. Definitions are compiled once for each definitions file and
+ * constant jar, so jobs with different input jars share them. Each request is the token of the daemon, an argument count
+ * and the arguments, and each response is a success flag followed by a message. The token is written to a file
+ * that only the user running the daemon can read, see {@link #tokenFile(int)}, so that other local users cannot submit jobs.
+ */
+class Daemon {
+	static final int DEFAULT_PORT = 7765;
+	static final String STOP = "stop";
+	static final int TOKEN_LENGTH = 32;
+	private static final int MAX_ARGUMENTS = 4096;
+	private static final int MAX_MESSAGE_LENGTH = 16 << 20;
+	private static final int REQUEST_TIMEOUT = 10_000;
+	private static final int MAX_WORKSPACES = 8;
+
+	// Least recently used first
+	private final Map<List<Path>, Workspace> workspaces = new LinkedHashMap<>(16, 0.75F, true);
+	private final Map<List<Path>, DefinitionsFile> definitions = new LinkedHashMap<>(16, 0.75F, true);
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final ServerSocket serverSocket;
+	private final byte[] token;
+
+	private Daemon(ServerSocket serverSocket, byte[] token) {
+		this.serverSocket = serverSocket;
+		this.token = token;
+	}
+
+	static void run(int port) throws IOException {
+		// Only bound to the loopback address, as jobs can read and write any file the daemon can
+		try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+			Path tokenFile = tokenFile(serverSocket.getLocalPort());
+
+			try {
+				byte[] token = writeToken(tokenFile);
+				System.out.println("Listening on port " + serverSocket.getLocalPort() + ", token written to " + tokenFile);
+				new Daemon(serverSocket, token).accept();
+			} finally {
+				Files.deleteIfExists(tokenFile);
+			}
+		}
+	}
+
+	/**
+	 * @return the file that holds the token of the daemon listening on {@code port}
+	 */
+	static Path tokenFile(int port) {
+		return Paths.get(System.getProperty("user.home"), ".unpick", "daemon-" + port + ".token");
+	}
+
+	private static byte[] writeToken(Path file) throws IOException {
+		byte[] token = new byte[TOKEN_LENGTH];
+		new SecureRandom().nextBytes(token);
+		Files.createDirectories(file.getParent());
+		Files.deleteIfExists(file);
+
+		// Restricted before the token is written, so that it is never readable by other users
+		if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			Files.createFile(file);
+
+			if (!(file.toFile().setReadable(false, false) && file.toFile().setReadable(true, true)
+					&& file.toFile().setWritable(false, false) && file.toFile().setWritable(true, true))) {
+				throw new IOException("Failed to restrict " + file + " to the current user");
+			}
+		}
+
+		Files.write(file, token);
+		return token;
+	}
+
+	private void accept() throws IOException {
+		try {
+			while (true) {
+				Socket socket = serverSocket.accept();
+				executor.execute(() -> handle(socket));
+			}
+		} catch (SocketException e) {
+			// Thrown once a stop request closes the server socket
+			if (!serverSocket.isClosed()) {
+				throw e;
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		workspaces.values().forEach(Workspace::close);
+	}
+
+	private void handle(Socket socket) {
+		// Closing either stream closes the socket
+		try (DataInputStream input = new DataInputStream(socket.getInputStream());
+				DataOutputStream output = new DataOutputStream(socket.getOutputStream())) {
+			// Connections that never complete their request would otherwise hold a thread forever
+			socket.setSoTimeout(REQUEST_TIMEOUT);
+			byte[] token = new byte[TOKEN_LENGTH];
+			input.readFully(token);
+
+			if (!MessageDigest.isEqual(token, this.token)) {
+				output.writeBoolean(false);
+				writeMessage(output, "Invalid token");
+				return;
+			}
+
+			int argumentCount = input.readInt();
+
+			if (argumentCount < 0 || argumentCount > MAX_ARGUMENTS) {
+				throw new IOException("Invalid argument count " + argumentCount);
+			}
+
+			String[] args = new String[argumentCount];
+
+			for (int i = 0; i < args.length; i++) {
+				args[i] = input.readUTF();
+			}
+
+			socket.setSoTimeout(0);
+
+			try {
+				String message = execute(args);
+				output.writeBoolean(true);
+				writeMessage(output, message);
+			} catch (Exception e) {
+				StringWriter stackTrace = new StringWriter();
+				e.printStackTrace(new PrintWriter(stackTrace));
+				output.writeBoolean(false);
+				writeMessage(output, stackTrace.toString());
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to handle request: " + e);
+		}
+	}
+
+	private String execute(String[] args) throws IOException {
+		if (args.length == 1 && args[0].equals(STOP)) {
+			serverSocket.close();
+			return "Stopped";
+		}
+
+		if (args.length < 4) {
+			throw new IllegalArgumentException("Expected at least 4 arguments, got " + Arrays.toString(args));
+		}
+
+		Main.Job job = new Main.Job(args, 0);
+		List<Path> key = new ArrayList<>(job.classpath);
+		key.add(job.unpickDefinition);
+
+		while (true) {
+			Workspace workspace = acquireWorkspace(key, job);
+
+			// Jobs for the same workspace are run one at a time, jobs for different workspaces run concurrently
+			synchronized (workspace) {
+				// Evicted while this job waited for it
+				if (!workspace.closed) {
+					return execute(job, workspace);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets or creates the workspace of a key, and closes the least recently used workspaces beyond {@value #MAX_WORKSPACES}
+	 */
+	private Workspace acquireWorkspace(List<Path> key, Main.Job job) {
+		Workspace workspace;
+		List<Workspace> evicted = new ArrayList<>();
+
+		synchronized (workspaces) {
+			workspace = workspaces.computeIfAbsent(key, k -> new Workspace(job));
+
+			for (Iterator<Workspace> iterator = workspaces.values().iterator(); workspaces.size() > MAX_WORKSPACES; ) {
+				evicted.add(iterator.next());
+				iterator.remove();
+			}
+		}
+
+		// Outside of the lock, as closing waits for the job running in the workspace
+		evicted.forEach(Workspace::close);
+		return workspace;
+	}
+
+	/**
+	 * Gets or creates the compiled definitions of a definitions file and constant jar, and forgets the least recently used
+	 * beyond {@value #MAX_WORKSPACES}
+	 */
+	private DefinitionsFile acquireDefinitions(Main.Job job) {
+		synchronized (definitions) {
+			DefinitionsFile definitionsFile = definitions.computeIfAbsent(Arrays.asList(job.unpickDefinition, job.constantJar),
+					k -> new DefinitionsFile(job.unpickDefinition, job.constantJar));
+
+			for (Iterator<DefinitionsFile> iterator = definitions.values().iterator(); definitions.size() > MAX_WORKSPACES; ) {
+				iterator.next();
+				iterator.remove();
+			}
+
+			return definitionsFile;
+		}
+	}
+
+	private String execute(Main.Job job, Workspace workspace) throws IOException {
+		ConstantUninliner uninliner = workspace.getUninliner(acquireDefinitions(job).compile());
+
+		TransformCache cache = job.cacheDirectory != null ? workspace.createCache(job.cacheDirectory) : null;
+
+		try {
+			Main.unpick(job, uninliner, cache);
+		} catch (IOException e) {
+			job.deleteOutput();
+			throw e;
+		}
+
+		String message = "Call site cache: " + uninliner.getCallSiteCacheStatistics();
+		return cache != null ? message + "\nTransform cache: " + cache.getStatistics() : message;
+	}
+
+	static void writeMessage(DataOutputStream output, String message) throws IOException {
+		// Not writeUTF(), as stack traces can exceed its 64 KiB limit
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	static String readMessage(DataInputStream input) throws IOException {
+		int length = input.readInt();
+
+		if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+			throw new IOException("Invalid message length " + length);
+		}
+
+		byte[] bytes = new byte[length];
+		input.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the size and modification time of each path
+	 */
+	private static List<Long> stamp(List<Path> paths) throws IOException {
+		List<Long> stamp = new ArrayList<>();
+
+		for (Path path : paths) {
+			stamp.add(Files.size(path));
+			stamp.add(Files.getLastModifiedTime(path).toMillis());
+		}
+
+		return stamp;
+	}
+
+	/**
+	 * The definitions of a definitions file, compiled with the constants of a constant jar. They are shared by every
+	 * workspace that uses the file and jar, whatever its input jar, and are only recompiled when the hash of the file
+	 * or the constant jar changes.
+	 */
+	private static class DefinitionsFile {
+		private final Path unpickDefinition;
+		private final Path constantJar;
+		private byte[] definitionHash;
+		private List<Long> constantJarStamp;
+		private Main.CompiledDefinitions compiled;
+
+		DefinitionsFile(Path unpickDefinition, Path constantJar) {
+			this.unpickDefinition = unpickDefinition;
+			this.constantJar = constantJar;
+		}
+
+		synchronized Main.CompiledDefinitions compile() throws IOException {
+			byte[] definitions = Files.readAllBytes(unpickDefinition);
+			byte[] definitionHash = TransformCache.sha256().digest(definitions);
+			List<Long> constantJarStamp = stamp(Collections.singletonList(constantJar));
+
+			if (!Arrays.equals(definitionHash, this.definitionHash) || !constantJarStamp.equals(this.constantJarStamp)) {
+				// Compiled definitions never use the resolvers they were compiled with again
+				try (Main.JarClassResolver classResolver = new Main.JarClassResolver(Collections.singletonList(constantJar))) {
+					compiled = new Main.CompiledDefinitions(definitions, classResolver, ConstantResolvers.bytecodeAnalysis(classResolver));
+				}
+
+				this.definitionHash = definitionHash;
+				this.constantJarStamp = constantJarStamp;
+			}
+
+			return compiled;
+		}
+	}
+
+	/**
+	 * The warm state of a classpath and definitions file. A new mapper is created when the definitions are recompiled,
+	 * and everything is reloaded when the classpath changes.
+	 */
+	private static class Workspace {
+		private final List<Path> classpath;
+		private List<Long> classpathStamp;
+		private Main.CompiledDefinitions definitions;
+		private Main.JarClassResolver classResolver;
+		private IConstantResolver constantResolver;
+		private ConstantUninliner uninliner;
+		private boolean closed;
+
+		Workspace(Main.Job job) {
+			this.classpath = job.classpath;
+		}
+
+		ConstantUninliner getUninliner(Main.CompiledDefinitions definitions) throws IOException {
+			List<Long> classpathStamp = stamp(classpath);
+
+			if (!classpathStamp.equals(this.classpathStamp)) {
+				closeClassResolver();
+				classResolver = new Main.JarClassResolver(classpath);
+				constantResolver = ConstantResolvers.bytecodeAnalysis(classResolver);
+				this.classpathStamp = classpathStamp;
+				this.definitions = null;
+			}
+
+			if (definitions != this.definitions) {
+				// The class and constant resolvers are kept, so their caches stay warm
+				uninliner = definitions.createUninliner(classResolver, constantResolver);
+				this.definitions = definitions;
+			}
+
+			return uninliner;
+		}
+
+		/**
+		 * Must be called after {@link #getUninliner(Main.CompiledDefinitions)}
+		 * @return the cache, or null if it cannot be used
+		 */
+		TransformCache createCache(Path directory) throws IOException {
+			return definitions.openCache(directory, classResolver);
+		}
+
+		synchronized void close() {
+			closed = true;
+			closeClassResolver();
+		}
+
+		private void closeClassResolver() {
+			if (classResolver != null) {
+				try {
+					classResolver.close();
+				} catch (IOException e) {
+					System.err.println("Failed to close class resolver: " + e);
+				}
+
+				classResolver = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package daomephsta.unpick.cli;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import daomephsta.unpick.api.CallSiteIndex;
+import daomephsta.unpick.constantmappers.datadriven.parser.v2.UnpickV2Reader;
+
+/**
+ * Indexes v2 definitions by the name and descriptor of each target method, so that the part of the
+ * definitions that can affect a class is known. Target methods are matched by name and descriptor
+ * rather than owner, as a call through a subclass of the owner is affected too.
+ */
+class DefinitionsIndex {
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+	private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+
+	private final Map<String, List<String>> targetMethods = new HashMap<>();
+	private final Map<String, Set<String>> targetGroups = new HashMap<>();
+	private final Map<String, List<String>> constantGroups = new HashMap<>();
+	private final Map<String, Set<String>> constantOwners = new HashMap<>();
+
+	private DefinitionsIndex() {
+	}
+
+	/**
+	 * @return an index of {@code definitions}, or null if they are not in v2 format
+	 */
+	static DefinitionsIndex read(byte[] definitions) {
+		if (definitions.length < 2 || definitions[0] != 'v' || definitions[1] != '2') {
+			return null;
+		}
+
+		DefinitionsIndex index = new DefinitionsIndex();
+		new UnpickV2Reader(new ByteArrayInputStream(definitions)).accept(index.new Indexer());
+		return index;
+	}
+
+	/**
+	 * @param index the index the class is transformed with, or null
+	 * @return the definitions of every target method that {@code classFile} calls, references, declares
+	 * or creates lambdas of, or that a lambda implemented by the class implements according to {@code index},
+	 * and of their constant groups
+	 */
+	Slice slice(byte[] classFile, CallSiteIndex index) {
+		Set<String> groups = new TreeSet<>();
+		StringBuilder definitions = new StringBuilder();
+		Set<String> methods = referencedMethods(classFile);
+
+		if (index != null) {
+			for (CallSiteIndex.InvokeDynamicSite site : index.findLambdaSites(new ClassReader(classFile).getClassName())) {
+				methods.add(site.getLambdaMethod().getName() + site.getLambdaMethod().getDescriptor());
+			}
+		}
+
+		for (String method : methods) {
+			List<String> targets = targetMethods.get(method);
+
+			if (targets != null) {
+				for (String target : targets) {
+					definitions.append(target).append('\n');
+				}
+
+				groups.addAll(targetGroups.get(method));
+			}
+		}
+
+		Set<String> owners = new TreeSet<>();
+
+		for (String group : groups) {
+			definitions.append("group ").append(group).append('\n');
+
+			for (String constant : constantGroups.getOrDefault(group, Collections.emptyList())) {
+				definitions.append(constant).append('\n');
+			}
+
+			owners.addAll(constantOwners.getOrDefault(group, Collections.emptySet()));
+		}
+
+		return new Slice(definitions.toString(), owners);
+	}
+
+	/**
+	 * @return the name and descriptor of every method referenced by the constant pool or declared by the class,
+	 * and of the functional interface method of every lambda the class creates, in order
+	 */
+	private static Set<String> referencedMethods(byte[] classFile) {
+		ClassReader classReader = new ClassReader(classFile);
+		Set<String> methods = new TreeSet<>();
+		char[] buffer = new char[classReader.getMaxStringLength()];
+		boolean createsLambdas = false;
+
+		for (int i = 1; i < classReader.getItemCount(); i++) {
+			int offset = classReader.getItem(i);
+
+			if (offset == 0) {
+				continue;
+			}
+
+			int tag = classReader.readByte(offset - 1);
+
+			if (tag == CONSTANT_NAME_AND_TYPE) {
+				methods.add(classReader.readUTF8(offset, buffer) + classReader.readUTF8(offset + 2, buffer));
+			} else if (tag == CONSTANT_INVOKE_DYNAMIC) {
+				createsLambdas = true;
+			}
+		}
+
+		// The name and type of an invokedynamic site are those of the lambda factory, so the functional interface
+		// method is read from the bootstrap arguments. Code is only read if the class has invokedynamic sites.
+		boolean readCode = createsLambdas;
+		classReader.accept(new ClassVisitor(Opcodes.ASM9) {
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+				// Declared methods can be targets too, when their own parameters or returns are mapped
+				methods.add(name + descriptor);
+
+				return !readCode ? null : new MethodVisitor(Opcodes.ASM9) {
+					@Override
+					public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+						// Matches the lambdas ConstantUninliner can transform the bodies of
+						if (bootstrapMethodHandle.getOwner().equals("java/lang/invoke/LambdaMetafactory")
+								&& bootstrapMethodHandle.getName().equals("metafactory")
+								&& bootstrapMethodArguments.length >= 3 && bootstrapMethodArguments[0] instanceof Type) {
+							methods.add(name + ((Type) bootstrapMethodArguments[0]).getDescriptor());
+						}
+					}
+				};
+			}
+		}, (readCode ? 0 : ClassReader.SKIP_CODE) | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+
+		return methods;
+	}
+
+	static class Slice {
+		/**
+		 * The definitions that can affect a class, with target methods and groups in a canonical order
+		 */
+		final String definitions;
+		/**
+		 * The owners of the constants in those definitions
+		 */
+		final Set<String> constantOwners;
+
+		Slice(String definitions, Set<String> constantOwners) {
+			this.definitions = definitions;
+			this.constantOwners = constantOwners;
+		}
+	}
+
+	private class Indexer implements UnpickV2Reader.Visitor {
+		@Override
+		public void visitSimpleConstantDefinition(String group, String owner, String name, String value, String descriptor) {
+			addConstant("constant", group, owner, name, value, descriptor);
+		}
+
+		@Override
+		public void visitFlagConstantDefinition(String group, String owner, String name, String value, String descriptor) {
+			addConstant("flag", group, owner, name, value, descriptor);
+		}
+
+		private void addConstant(String kind, String group, String owner, String name, String value, String descriptor) {
+			constantGroups.computeIfAbsent(group, k -> new ArrayList<>())
+					.add(String.join(" ", kind, owner, name, String.valueOf(value), String.valueOf(descriptor)));
+			constantOwners.computeIfAbsent(group, k -> new TreeSet<>()).add(owner);
+		}
+
+		@Override
+		public UnpickV2Reader.TargetMethodDefinitionVisitor visitTargetMethodDefinition(String owner, String name, String descriptor) {
+			Map<Integer, String> parameterGroups = new TreeMap<>();
+			String[] returnGroup = new String[1];
+
+			return new UnpickV2Reader.TargetMethodDefinitionVisitor() {
+				@Override
+				public void visitParameterGroupDefinition(int parameterIndex, String group) {
+					parameterGroups.put(parameterIndex, group);
+				}
+
+				@Override
+				public void visitReturnGroupDefinition(String group) {
+					returnGroup[0] = group;
+				}
+
+				@Override
+				public void endVisit() {
+					StringBuilder target = new StringBuilder("target_method ").append(owner).append(' ').append(name).append(' ').append(descriptor);
+
+					for (Map.Entry<Integer, String> parameterGroup : parameterGroups.entrySet()) {
+						target.append(" param ").append(parameterGroup.getKey()).append(' ').append(parameterGroup.getValue());
+					}
+
+					if (returnGroup[0] != null) {
+						target.append(" return ").append(returnGroup[0]);
+					}
+
+					targetMethods.computeIfAbsent(name + descriptor, k -> new ArrayList<>()).add(target.toString());
+					Set<String> groups = targetGroups.computeIfAbsent(name + descriptor, k -> new TreeSet<>());
+					groups.addAll(parameterGroups.values());
+
+					if (returnGroup[0] != null) {
+						groups.add(returnGroup[0]);
+					}
+				}
+			};
+		}
+
+		@Override
+		public void endVisit() {
+			// Sorted so that reordering target methods does not change a slice. The constants of a group keep their order,
+			// as flag decomposition prefers earlier flags and later simple constants replace earlier ones of the same value.
+			targetMethods.values().forEach(targets -> targets.sort(null));
+		}
+	}
+}
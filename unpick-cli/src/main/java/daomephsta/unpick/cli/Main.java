@@ -1,114 +1,596 @@
 package daomephsta.unpick.cli;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
+import java.net.Socket;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 
 import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.tree.ClassNode;
 
+import daomephsta.unpick.api.AnalysisMode;
+import daomephsta.unpick.api.CallSiteIndex;
 import daomephsta.unpick.api.ConstantUninliner;
 import daomephsta.unpick.api.IClassResolver;
 import daomephsta.unpick.api.constantmappers.ConstantMappers;
+import daomephsta.unpick.api.constantmappers.ICompiledDefinitions;
+import daomephsta.unpick.api.constantmappers.IConstantMapper;
 import daomephsta.unpick.api.constantresolvers.ConstantResolvers;
 import daomephsta.unpick.api.constantresolvers.IConstantResolver;
 
 public class Main {
+	private static final String USAGE = "[--cache <directory>] [--index <file>] [--diff patch|overlay] [--shard <i>/<n>] <inputJar> <outputJar> <unpickDefinition> <constantJar> [classpath...]";
+
 	public static void main(String[] args) throws IOException {
-		if (args.length < 4) {
-			System.out.println("<inputJar> <outputJar> <unpickDefinition> <constantJar> [classpath...]");
-			System.exit(1);
+		if (args.length > 0 && args[0].equals("daemon")) {
+			Daemon.run(args.length > 1 ? Integer.parseInt(args[1]) : Daemon.DEFAULT_PORT);
+			return;
+		}
+
+		if (args.length == 3 && args[0].equals("index")) {
+			try (JarFile jarFile = new JarFile(args[1])) {
+				CallSiteIndex index = buildIndex(jarFile, stampJar(jarFile, Paths.get(args[1])));
+				index.write(Paths.get(args[2]));
+				System.out.println("Wrote " + index);
+			}
+
+			return;
 		}
 
-		Path inputJar = Paths.get(args[0]);
-		Path outputJar = Paths.get(args[1]);
-		Path unpickDefinition = Paths.get(args[2]);
-		Path constantJar = Paths.get(args[3]);
+		if (args.length >= 4 && args[0].equals("merge")) {
+			Path outputJar = Paths.get(args[2]);
+			List<Path> shardJars = new ArrayList<>();
 
-		Collection<Path> classpath = new LinkedList<>();
+			for (int i = 3; i < args.length; i++) {
+				shardJars.add(Paths.get(args[i]));
+			}
 
-		classpath.add(constantJar);
-		classpath.add(inputJar);
+			try {
+				merge(Paths.get(args[1]), outputJar, shardJars);
+			} catch (IOException e) {
+				Files.deleteIfExists(outputJar);
+				throw e;
+			}
 
-		for (int i = 4; i < args.length; i++) {
-			classpath.add(Paths.get(args[i]));
+			return;
 		}
 
+		if (args.length == 2 && args[0].equals("batch")) {
+			List<Job> jobs;
+
+			try {
+				jobs = Batch.readJobs(Paths.get(args[1]));
+			} catch (IllegalArgumentException e) {
+				System.out.println(e.getMessage());
+				System.out.println("Each line of a job file is " + USAGE);
+				System.exit(1);
+				return;
+			}
+
+			Batch.run(jobs);
+			return;
+		}
+
+		if (args.length > 0 && (args[0].equals("submit") || args[0].equals("stop"))) {
+			System.exit(submit(args) ? 0 : 1);
+		}
+
+		Job job;
+
 		try {
-			unpick(inputJar, outputJar, unpickDefinition, classpath);
+			job = new Job(args, 0);
+		} catch (IllegalArgumentException e) {
+			System.out.println(USAGE);
+			System.out.println("index <inputJar> <indexFile>");
+			System.out.println("merge <inputJar> <outputJar> <shardJar...>");
+			System.out.println("batch <jobFile>");
+			System.out.println("daemon [port]");
+			System.out.println("submit <port> " + USAGE);
+			System.out.println("stop <port>");
+			System.exit(1);
+			return;
+		}
+
+		try {
+			unpick(job);
 		} catch (IOException e) {
-			Files.delete(outputJar);
+			job.deleteOutput();
 			throw e;
 		}
 	}
 
-	private static void unpick(Path inputJar, Path outputJar, Path unpickDefinition, Collection<Path> classpath) throws IOException {
-		Files.deleteIfExists(outputJar);
-
-		try (
-			 JarClassResolver classResolver = new JarClassResolver(classpath);
-			 InputStream unpickDefinitionStream = Files.newInputStream(unpickDefinition)
-		) {
+	private static void unpick(Job job) throws IOException {
+		try (JarClassResolver classResolver = new JarClassResolver(job.classpath)) {
+			byte[] definitions = Files.readAllBytes(job.unpickDefinition);
 			IConstantResolver constantResolver = ConstantResolvers.bytecodeAnalysis(classResolver);
-			ConstantUninliner uninliner = new ConstantUninliner(
-					classResolver,
-					ConstantMappers.dataDriven(classResolver, constantResolver, unpickDefinitionStream),
-					constantResolver
-			);
+			Set<String> constantOwners = ConcurrentHashMap.newKeySet();
+			ConstantUninliner uninliner = createUninliner(classResolver, constantResolver, ConstantMappers.dataDriven(classResolver,
+					TransformCache.recordOwners(constantResolver, constantOwners), new ByteArrayInputStream(definitions)));
+			TransformCache cache = job.cacheDirectory != null
+					? TransformCache.open(job.cacheDirectory, classResolver, definitions, constantOwners)
+					: null;
 
-			try (JarFile jarFile = new JarFile(inputJar.toFile()); JarOutputStream outputStream = new JarOutputStream(Files.newOutputStream(outputJar))) {
-				Enumeration<JarEntry> entries = jarFile.entries();
+			unpick(job, uninliner, cache);
+
+			System.out.println("Call site cache: " + uninliner.getCallSiteCacheStatistics());
+
+			if (cache != null) {
+				System.out.println("Transform cache: " + cache.getStatistics());
+			}
+		}
+	}
+
+	static ConstantUninliner createUninliner(IClassResolver classResolver, IConstantResolver constantResolver, IConstantMapper mapper) {
+		// Data driven mappers never query frames, so only the frames the uninliner reads are retained
+		return ConstantUninliner.builder(classResolver, mapper, constantResolver)
+				.analysisMode(AnalysisMode.BACKWARD_SLICE)
+				.forkJoinPool(ForkJoinPool.commonPool())
+				.build();
+	}
+
+	/**
+	 * @param cache the cache to transform classes through, or null to transform every class
+	 */
+	static void unpick(Job job, ConstantUninliner uninliner, TransformCache cache) throws IOException {
+		if (job.shardCount > 0) {
+			unpickShard(job, uninliner, cache);
+			return;
+		}
+
+		try (JarFile jarFile = new JarFile(job.inputJar.toFile()); Output output = Output.open(job.outputFormat, job.outputJar)) {
+			Map<String, byte[]> planned = job.indexFile != null
+					? transformPlanned(jarFile, loadIndex(jarFile, job), uninliner, cache)
+					: Collections.emptyMap();
+			Enumeration<JarEntry> entries = jarFile.entries();
+
+			while (entries.hasMoreElements()) {
+				JarEntry entry = entries.nextElement();
+				InputStream inputStream = jarFile.getInputStream(entry);
+
+				if (planned.containsKey(entry.getName())) {
+					byte[] transformed = planned.get(entry.getName());
+
+					if (transformed != null) {
+						output.write(entry, transformed);
+					} else {
+						output.writeUnchanged(entry, inputStream);
+					}
+				} else if (entry.getName().endsWith(".class")) {
+					// The entry is transformed from its bytes, so it is neither read twice nor cached by the class resolver
+					byte[] classFile = readAllBytes(inputStream);
+					byte[] transformed = transform(classFile, uninliner, cache, null);
+
+					if (transformed != null) {
+						output.write(entry, transformed);
+					} else {
+						output.writeUnchanged(entry, new ByteArrayInputStream(classFile));
+					}
+				} else {
+					output.writeUnchanged(entry, inputStream);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Transforms the classes of one shard, and writes the changed ones to a partial jar for {@link #merge}
+	 */
+	private static void unpickShard(Job job, ConstantUninliner uninliner, TransformCache cache) throws IOException {
+		try (JarFile jarFile = new JarFile(job.inputJar.toFile()); Output.Sink output = Output.shard(job.outputJar, job.shard + 1, job.shardCount)) {
+			CallSiteIndex index = loadIndex(jarFile, job);
+
+			for (String className : uninliner.planTransformation(index, job.shard, job.shardCount)) {
+				JarEntry entry = jarFile.getJarEntry(className + ".class");
+
+				if (entry != null) {
+					try (InputStream inputStream = jarFile.getInputStream(entry)) {
+						byte[] transformed = transform(readAllBytes(inputStream), uninliner, cache, index);
+
+						if (transformed != null) {
+							output.write(entry, transformed);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reassembles the output of a sharded job from the partial jar of every shard.
+	 * The entries are written in the same order and with the same times as by an unsharded job with {@code --index},
+	 * so the output is identical to that job's. It can differ from the output of an unsharded job without an index,
+	 * as only an index tells a class about the lambdas that other classes create of its methods.
+	 */
+	static void merge(Path inputJar, Path outputJar, List<Path> shardJars) throws IOException {
+		List<JarFile> shards = new ArrayList<>();
+
+		try (JarFile jarFile = new JarFile(inputJar.toFile())) {
+			// Entry name -> the shard that changed it
+			Map<String, JarFile> changed = new HashMap<>();
+			Set<Integer> merged = new HashSet<>();
+			int shardCount = -1;
+
+			for (Path shardJar : shardJars) {
+				JarFile shard = new JarFile(shardJar.toFile());
+				shards.add(shard);
+				JarEntry shardEntry = shard.getJarEntry(Output.SHARD);
+
+				if (shardEntry == null) {
+					throw new IOException(shardJar + " is not the output of a shard");
+				}
+
+				String[] shardNumber;
+
+				try (InputStream inputStream = shard.getInputStream(shardEntry)) {
+					shardNumber = new String(readAllBytes(inputStream), StandardCharsets.UTF_8).split("/");
+				}
+
+				if (shardCount != -1 && shardCount != Integer.parseInt(shardNumber[1])) {
+					throw new IOException(shardJar + " is shard " + shardNumber[0] + " of " + shardNumber[1] + ", not of " + shardCount);
+				}
+
+				shardCount = Integer.parseInt(shardNumber[1]);
+
+				if (!merged.add(Integer.parseInt(shardNumber[0]))) {
+					throw new IOException("Shard " + shardNumber[0] + " of " + shardCount + " is merged twice");
+				}
+
+				Enumeration<JarEntry> entries = shard.entries();
 
 				while (entries.hasMoreElements()) {
 					JarEntry entry = entries.nextElement();
 
-					JarEntry outputEntry = new JarEntry(entry.getName());
-					outputStream.putNextEntry(outputEntry);
+					if (!entry.getName().equals(Output.SHARD)) {
+						changed.put(entry.getName(), shard);
+					}
+				}
+			}
 
-					InputStream inputStream = jarFile.getInputStream(entry);
+			// Otherwise the classes of the missing shards would silently be left untransformed
+			if (merged.size() != shardCount) {
+				throw new IOException("Only " + merged.size() + " of " + shardCount + " shards were given");
+			}
 
-					if (entry.getName().endsWith(".class")) {
-						String internalName = entry.getName()
-							.substring(0, entry.getName().length() - ".class".length())
-							.replace('/', '.');
-						ClassNode classNode = uninliner.transform(internalName);
+			try (Output output = Output.open(Output.Format.FULL, outputJar)) {
+				Enumeration<JarEntry> entries = jarFile.entries();
 
-						ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-						classNode.accept(classWriter);
-						outputStream.write(classWriter.toByteArray());
-					} else {
-						byte[] buf = new byte[1024];
-						int length;
+				while (entries.hasMoreElements()) {
+					JarEntry entry = entries.nextElement();
+					JarFile shard = changed.get(entry.getName());
 
-						while ((length = inputStream.read(buf)) > 0) {
-							outputStream.write(buf, 0, length);
+					if (shard != null) {
+						try (InputStream inputStream = shard.getInputStream(shard.getJarEntry(entry.getName()))) {
+							output.write(entry, readAllBytes(inputStream));
 						}
+					} else {
+						output.writeUnchanged(entry, jarFile.getInputStream(entry));
 					}
+				}
+			}
+		} finally {
+			for (JarFile shard : shards) {
+				shard.close();
+			}
+		}
+	}
+
+	/**
+	 * @param index the index of the input jar, or null to only use the lambdas each class creates itself
+	 * @return the transformed class file, or null if the class was not changed
+	 */
+	private static byte[] transform(byte[] classFile, ConstantUninliner uninliner, TransformCache cache, CallSiteIndex index) throws IOException {
+		byte[] transformed = cache != null ? cache.transform(classFile, uninliner, index) : uninliner.transform(classFile, index).getBytes();
+		// Unchanged classes are returned as is by the uninliner, but read back as a copy by the cache
+		return Arrays.equals(classFile, transformed) ? null : transformed;
+	}
+
+	/**
+	 * Transforms the indexed classes that may be changed, in the planned order.
+	 * @return the transformed class file of every indexed class by entry name, or null for the classes that are unchanged
+	 */
+	private static Map<String, byte[]> transformPlanned(JarFile jarFile, CallSiteIndex index, ConstantUninliner uninliner, TransformCache cache) throws IOException {
+		Map<String, byte[]> planned = new HashMap<>();
+
+		for (String className : index.getClassNames()) {
+			planned.put(className + ".class", null);
+		}
+
+		for (String className : uninliner.planTransformation(index)) {
+			JarEntry entry = jarFile.getJarEntry(className + ".class");
 
-					outputStream.closeEntry();
+			if (entry != null) {
+				try (InputStream inputStream = jarFile.getInputStream(entry)) {
+					planned.put(entry.getName(), transform(readAllBytes(inputStream), uninliner, cache, index));
 				}
 			}
 		}
+
+		return planned;
+	}
+
+	/**
+	 * Reads the index of the input jar, or builds and writes it if it is missing or was built from other contents
+	 */
+	private static CallSiteIndex loadIndex(JarFile jarFile, Job job) throws IOException {
+		String source = stampJar(jarFile, job.inputJar);
+
+		if (Files.exists(job.indexFile)) {
+			CallSiteIndex index = CallSiteIndex.read(job.indexFile);
+
+			if (source.equals(index.getSource())) {
+				return index;
+			}
+		}
+
+		CallSiteIndex index = buildIndex(jarFile, source);
+		// Written to a temporary file first, as the shards of a job may build the index concurrently
+		Path temporary = Files.createTempFile(job.indexFile.toAbsolutePath().getParent(), job.indexFile.getFileName().toString(), ".tmp");
+
+		try {
+			index.write(temporary);
+			TransformCache.moveAtomically(temporary, job.indexFile);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+
+		return index;
+	}
+
+	/**
+	 * Identifies the contents of a jar by its size and the name, CRC and size of each entry.
+	 * These are read from the central directory, so no entry is decompressed, unlike a hash of the contents.
+	 * Modification times are not included, as they change when an identical jar is rebuilt.
+	 */
+	private static String stampJar(JarFile jarFile, Path jar) {
+		MessageDigest digest = TransformCache.sha256();
+		Enumeration<JarEntry> entries = jarFile.entries();
+
+		while (entries.hasMoreElements()) {
+			JarEntry entry = entries.nextElement();
+			digest.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+			digest.update((" " + entry.getCrc() + " " + entry.getSize() + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+
+		return jar.toFile().length() + " " + TransformCache.toHex(digest.digest());
+	}
+
+	private static CallSiteIndex buildIndex(JarFile jarFile, String source) throws IOException {
+		List<byte[]> classFiles = new ArrayList<>();
+		Enumeration<JarEntry> entries = jarFile.entries();
+
+		while (entries.hasMoreElements()) {
+			JarEntry entry = entries.nextElement();
+
+			if (entry.getName().endsWith(".class")) {
+				try (InputStream inputStream = jarFile.getInputStream(entry)) {
+					classFiles.add(readAllBytes(inputStream));
+				}
+			}
+		}
+
+		return CallSiteIndex.build(classFiles, ForkJoinPool.commonPool(), source);
+	}
+
+	/**
+	 * Submits a job to a daemon, or asks it to stop, authenticated by the token the daemon wrote for the current user.
+	 * Paths are made absolute, as the daemon may have a different working directory.
+	 * @return true if the daemon completed the request
+	 */
+	private static boolean submit(String[] args) throws IOException {
+		if (args.length < 2 || (args[0].equals("submit") && args.length < 6)) {
+			System.out.println("submit <port> " + USAGE);
+			System.out.println("stop <port>");
+			return false;
+		}
+
+		List<String> request = new ArrayList<>();
+
+		if (args[0].equals("submit")) {
+			for (int i = 2; i < args.length; i++) {
+				boolean path = !args[i].startsWith("--") && !args[i - 1].equals("--diff") && !args[i - 1].equals("--shard");
+				request.add(path ? Paths.get(args[i]).toAbsolutePath().toString() : args[i]);
+			}
+		} else {
+			request.add(Daemon.STOP);
+		}
+
+		int port = Integer.parseInt(args[1]);
+		Path tokenFile = Daemon.tokenFile(port);
+
+		if (!Files.isRegularFile(tokenFile)) {
+			System.err.println("No daemon token at " + tokenFile + ", is a daemon running on port " + port + "?");
+			return false;
+		}
+
+		byte[] token = Files.readAllBytes(tokenFile);
+
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+			output.write(token);
+			output.writeInt(request.size());
+
+			for (String arg : request) {
+				output.writeUTF(arg);
+			}
+
+			output.flush();
+			DataInputStream input = new DataInputStream(socket.getInputStream());
+			boolean success = input.readBoolean();
+			(success ? System.out : System.err).println(Daemon.readMessage(input));
+			return success;
+		}
+	}
+
+	static byte[] readAllBytes(InputStream inputStream) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		copy(inputStream, bytes);
+		return bytes.toByteArray();
+	}
+
+	static void copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+		byte[] buf = new byte[1024];
+		int length;
+
+		while ((length = inputStream.read(buf)) > 0) {
+			outputStream.write(buf, 0, length);
+		}
+	}
+
+	static class Job {
+		final Path inputJar;
+		final Path outputJar;
+		final Path unpickDefinition;
+		final Path constantJar;
+		final List<Path> classpath = new ArrayList<>();
+		Path cacheDirectory;
+		Path indexFile;
+		Output.Format outputFormat = Output.Format.FULL;
+		/**
+		 * The shard to transform, from 0, or any value if the job is not sharded
+		 */
+		int shard;
+		/**
+		 * The number of shards, or 0 if the job is not sharded
+		 */
+		int shardCount;
+
+		/**
+		 * @param args the options, input jar, output jar, definitions, constant jar and classpath, starting at {@code offset}
+		 * @throws IllegalArgumentException if the arguments are not in that form
+		 */
+		Job(String[] args, int offset) {
+			while (offset < args.length && args[offset].startsWith("--")) {
+				if (args[offset].equals("--cache") && offset + 1 < args.length) {
+					cacheDirectory = Paths.get(args[offset + 1]);
+					offset += 2;
+				} else if (args[offset].equals("--index") && offset + 1 < args.length) {
+					indexFile = Paths.get(args[offset + 1]);
+					offset += 2;
+				} else if (args[offset].equals("--diff") && offset + 1 < args.length) {
+					outputFormat = Output.Format.valueOf(args[offset + 1].toUpperCase(Locale.ROOT));
+
+					if (outputFormat == Output.Format.FULL) {
+						throw new IllegalArgumentException("Unknown diff format " + args[offset + 1]);
+					}
+
+					offset += 2;
+				} else if (args[offset].equals("--shard") && offset + 1 < args.length) {
+					String[] shardNumber = args[offset + 1].split("/");
+
+					if (shardNumber.length != 2) {
+						throw new IllegalArgumentException("Expected --shard <i>/<n>, got " + args[offset + 1]);
+					}
+
+					shard = Integer.parseInt(shardNumber[0]) - 1;
+					shardCount = Integer.parseInt(shardNumber[1]);
+
+					if (shard < 0 || shard >= shardCount) {
+						throw new IllegalArgumentException("Shard " + args[offset + 1] + " does not exist");
+					}
+
+					offset += 2;
+				} else {
+					throw new IllegalArgumentException("Unknown option " + args[offset]);
+				}
+			}
+
+			if (shardCount > 0 && (indexFile == null || outputFormat != Output.Format.FULL)) {
+				throw new IllegalArgumentException("--shard requires --index, and cannot be used with --diff");
+			}
+
+			if (args.length - offset < 4) {
+				throw new IllegalArgumentException("Expected " + USAGE);
+			}
+
+			inputJar = Paths.get(args[offset]);
+			outputJar = Paths.get(args[offset + 1]);
+			unpickDefinition = Paths.get(args[offset + 2]);
+			constantJar = Paths.get(args[offset + 3]);
+
+			classpath.add(constantJar);
+			classpath.add(inputJar);
+
+			for (int i = offset + 4; i < args.length; i++) {
+				classpath.add(Paths.get(args[i]));
+			}
+		}
+
+		/**
+		 * Deletes the output after a failed job. Overlay directories are left as they are,
+		 * as they were not necessarily created by the job.
+		 */
+		void deleteOutput() throws IOException {
+			if (outputFormat != Output.Format.OVERLAY) {
+				Files.deleteIfExists(outputJar);
+			}
+		}
+	}
+
+	/**
+	 * Definitions compiled from a definitions file, which can create a mapper for any classpath
+	 */
+	static class CompiledDefinitions {
+		final byte[] definitions;
+		final ICompiledDefinitions compiled;
+		/**
+		 * The owners of every constant the definitions resolved
+		 */
+		final Set<String> constantOwners = ConcurrentHashMap.newKeySet();
+
+		/**
+		 * @param classResolver a class resolver that can resolve the classes of the target methods
+		 * @param constantResolver a constant resolver that can resolve the constants of the definitions
+		 */
+		CompiledDefinitions(byte[] definitions, IClassResolver classResolver, IConstantResolver constantResolver) {
+			this.definitions = definitions;
+			this.compiled = ConstantMappers.compileDataDriven(classResolver, TransformCache.recordOwners(constantResolver, constantOwners),
+					new ByteArrayInputStream(definitions));
+		}
+
+		ConstantUninliner createUninliner(IClassResolver classResolver, IConstantResolver constantResolver) {
+			return Main.createUninliner(classResolver, constantResolver, compiled.createMapper(classResolver));
+		}
+
+		/**
+		 * @return the cache, or null if it cannot be used
+		 */
+		TransformCache openCache(Path directory, JarClassResolver classResolver) throws IOException {
+			return TransformCache.open(directory, classResolver, definitions, constantOwners);
+		}
 	}
 
-	private static class JarClassResolver implements IClassResolver, Closeable {
+	static class JarClassResolver implements IClassResolver, Closeable {
 		private final URLClassLoader classLoader;
-		private final Map<String, ClassNode> cache = new HashMap<>();
+		private final Map<String, ClassNode> cache = new ConcurrentHashMap<>();
 
 		public JarClassResolver(URL[] urls) {
 			this.classLoader = new URLClassLoader(urls);
@@ -131,19 +613,33 @@ public class Main {
 
 		@Override
 		public ClassReader resolveClassReader(String internalName) throws ClassResolutionException {
-			InputStream inputStream = classLoader.getResourceAsStream(internalName.replace('.', '/') + ".class");
+			byte[] classFile = readClassFile(internalName);
 
-			if (inputStream != null) {
-				try {
-					return new ClassReader(inputStream);
-				} catch (IOException e) {
-					throw new ClassResolutionException(e);
-				}
+			if (classFile != null) {
+				return new ClassReader(classFile);
 			}
 
 			throw new ClassResolutionException("Failed to find " + internalName);
 		}
 
+		/**
+		 * @return true if the jars of this resolver contain the class, ignoring the parent class loader
+		 */
+		boolean contains(String internalName) {
+			return classLoader.findResource(internalName.replace('.', '/') + ".class") != null;
+		}
+
+		/**
+		 * @return the class file of the class, or null if it cannot be found
+		 */
+		byte[] readClassFile(String internalName) throws ClassResolutionException {
+			try (InputStream inputStream = classLoader.getResourceAsStream(internalName.replace('.', '/') + ".class")) {
+				return inputStream != null ? readAllBytes(inputStream) : null;
+			} catch (IOException e) {
+				throw new ClassResolutionException(e);
+			}
+		}
+
 		@Override
 		public ClassNode resolveClassNode(String internalName) throws ClassResolutionException
 		{
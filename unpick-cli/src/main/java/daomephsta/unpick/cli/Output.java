@@ -0,0 +1,218 @@
+package daomephsta.unpick.cli;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+/**
+ * Receives the entries of the output. A full output is a copy of the input jar with the classes transformed.
+ * A diff output only contains the classes that were changed, and a list of every unchanged entry of the input jar
+ * at {@value #UNCHANGED_ENTRIES}, so that downstream tools can overlay it on the input jar.
+ * A shard output only contains the changed classes of one shard, and the shard at {@value #SHARD}.
+ */
+abstract class Output implements Closeable {
+	static final String UNCHANGED_ENTRIES = "META-INF/unpick/unchanged.txt";
+	static final String SHARD = "META-INF/unpick/shard.txt";
+
+	enum Format {
+		/**
+		 * A copy of the input jar
+		 */
+		FULL,
+		/**
+		 * A jar of the changed classes
+		 */
+		PATCH,
+		/**
+		 * A directory of the changed classes
+		 */
+		OVERLAY
+	}
+
+	static Output open(Format format, Path path) throws IOException {
+		switch (format) {
+		case FULL:
+			return new FullOutput(path);
+		case PATCH:
+			return new DiffOutput(new JarSink(path));
+		case OVERLAY:
+			return new DiffOutput(new DirectorySink(path));
+		default:
+			throw new IllegalArgumentException("Unknown format " + format);
+		}
+	}
+
+	/**
+	 * @param shard the shard, from 1 inclusive to {@code shardCount} inclusive
+	 */
+	static Sink shard(Path jar, int shard, int shardCount) throws IOException {
+		return new JarSink(jar) {
+			@Override
+			public void close() throws IOException {
+				try {
+					write(new JarEntry(SHARD), (shard + "/" + shardCount).getBytes(StandardCharsets.UTF_8));
+				} finally {
+					super.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Writes an entry of the input jar that was not changed
+	 */
+	abstract void writeUnchanged(JarEntry entry, InputStream contents) throws IOException;
+
+	/**
+	 * Writes a changed class
+	 * @param entry the entry of the class in the input jar
+	 */
+	abstract void write(JarEntry entry, byte[] contents) throws IOException;
+
+	/**
+	 * Receives only the changed entries of an output
+	 */
+	abstract static class Sink implements Closeable {
+		/**
+		 * Writes a changed entry
+		 * @param entry the entry in the input jar
+		 */
+		abstract void write(JarEntry entry, byte[] contents) throws IOException;
+	}
+
+	private static class FullOutput extends Output {
+		private final JarSink jar;
+
+		FullOutput(Path jar) throws IOException {
+			this.jar = new JarSink(jar);
+		}
+
+		@Override
+		void writeUnchanged(JarEntry entry, InputStream contents) throws IOException {
+			jar.putNextEntry(entry);
+			Main.copy(contents, jar.outputStream);
+			jar.outputStream.closeEntry();
+		}
+
+		@Override
+		void write(JarEntry entry, byte[] contents) throws IOException {
+			jar.write(entry, contents);
+		}
+
+		@Override
+		public void close() throws IOException {
+			jar.close();
+		}
+	}
+
+	private static class JarSink extends Sink {
+		final JarOutputStream outputStream;
+
+		JarSink(Path jar) throws IOException {
+			Files.deleteIfExists(jar);
+			this.outputStream = new JarOutputStream(Files.newOutputStream(jar));
+		}
+
+		@Override
+		void write(JarEntry entry, byte[] contents) throws IOException {
+			putNextEntry(entry);
+			outputStream.write(contents);
+			outputStream.closeEntry();
+		}
+
+		void putNextEntry(JarEntry entry) throws IOException {
+			JarEntry outputEntry = new JarEntry(entry.getName());
+
+			// Entries keep their time, so that the output only depends on the input
+			if (entry.getTime() != -1) {
+				outputEntry.setTime(entry.getTime());
+			}
+
+			outputStream.putNextEntry(outputEntry);
+		}
+
+		@Override
+		public void close() throws IOException {
+			outputStream.close();
+		}
+	}
+
+	private static class DirectorySink extends Sink {
+		private final Path directory;
+
+		DirectorySink(Path directory) throws IOException {
+			// Normalized, as the paths of entries are normalized before they are compared with it
+			directory = directory.toAbsolutePath().normalize();
+
+			// Never cleared, as the directory may hold anything
+			if (Files.isDirectory(directory)) {
+				try (Stream<Path> contents = Files.list(directory)) {
+					if (contents.findAny().isPresent()) {
+						throw new IOException("Overlay directory " + directory + " is not empty");
+					}
+				}
+			}
+
+			this.directory = Files.createDirectories(directory);
+		}
+
+		@Override
+		void write(JarEntry entry, byte[] contents) throws IOException {
+			Path file = directory.resolve(entry.getName()).normalize();
+
+			// Entry names come from the input jar, so they must not escape the directory
+			if (!file.startsWith(directory)) {
+				throw new IOException("Entry " + entry.getName() + " is outside of the overlay directory");
+			}
+
+			Files.createDirectories(file.getParent());
+			Files.write(file, contents);
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static class DiffOutput extends Output {
+		private final Sink changed;
+		private final List<String> unchanged = new ArrayList<>();
+
+		DiffOutput(Sink changed) {
+			this.changed = changed;
+		}
+
+		@Override
+		void writeUnchanged(JarEntry entry, InputStream contents) {
+			unchanged.add(entry.getName());
+		}
+
+		@Override
+		void write(JarEntry entry, byte[] contents) throws IOException {
+			changed.write(entry, contents);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				StringBuilder entries = new StringBuilder();
+
+				for (String name : unchanged) {
+					entries.append(name).append('\n');
+				}
+
+				changed.write(new JarEntry(UNCHANGED_ENTRIES), entries.toString().getBytes(StandardCharsets.UTF_8));
+			} finally {
+				changed.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,342 @@
+package daomephsta.unpick.cli;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.CodeSource;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+
+import daomephsta.unpick.api.CacheStatistics;
+import daomephsta.unpick.api.CallSiteIndex;
+import daomephsta.unpick.api.ConstantUninliner;
+import daomephsta.unpick.api.constantresolvers.IConstantResolver;
+
+/**
+ * An on-disk cache of transformed classes. Each entry is addressed by a hash of the class file,
+ * the definitions that can affect it, and the content of every class the transformation could have
+ * depended on. These are the classes referenced by the constant pool of the class file, their
+ * supertypes transitively, and the owners of the constants, so a change to any of them invalidates the entry.
+ * When the definitions are edited, only the entries of classes that reference a changed target method
+ * are invalidated, unless the definitions are not in v2 format.
+ */
+class TransformCache {
+	// Bumped when entries written by an older version would be read wrongly
+	private static final String FORMAT = "unpick transform cache 2";
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_UTF8 = 1;
+	private static final Pattern OBJECT_TYPE = Pattern.compile("L([^;<>:.\\[]+);");
+	private static final byte[] MISSING = new byte[0];
+
+	private final Path directory;
+	private final Main.JarClassResolver classResolver;
+	private final byte[] definitionsFingerprint;
+	private final DefinitionsIndex definitionsIndex;
+	// Class files are only hashed and read once per job
+	private final Map<String, byte[]> contentHashes = new ConcurrentHashMap<>();
+	private final Map<String, Collection<String>> supertypes = new ConcurrentHashMap<>();
+	private final LongAdder hits = new LongAdder(),
+							misses = new LongAdder();
+
+	/**
+	 * Opens a cache, unless the build of unpick is unknown, as entries written by another build could be stale
+	 * @param definitions the definitions the uninliner was created from
+	 * @param constantOwners the owners of every constant the definitions resolved, as recorded by {@link #recordOwners}.
+	 * Only used if the definitions are not in v2 format.
+	 * @return the cache, or null if it cannot be used
+	 */
+	static TransformCache open(Path directory, Main.JarClassResolver classResolver, byte[] definitions, Collection<String> constantOwners) throws IOException {
+		if (Build.ID == null) {
+			System.err.println("Not using the transform cache, as the build of unpick is unknown. Run unpick from its jar to use it.");
+			return null;
+		}
+
+		return new TransformCache(directory, Build.ID, classResolver, definitions, constantOwners);
+	}
+
+	/**
+	 * @param build identifies the build of unpick, as entries are only valid for the build that wrote them
+	 */
+	TransformCache(Path directory, String build, Main.JarClassResolver classResolver, byte[] definitions, Collection<String> constantOwners) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.classResolver = classResolver;
+		this.definitionsIndex = DefinitionsIndex.read(definitions);
+		MessageDigest digest = sha256();
+		digest.update(FORMAT.getBytes(StandardCharsets.UTF_8));
+		digest.update(build.getBytes(StandardCharsets.UTF_8));
+
+		// Otherwise each entry is only addressed by its slice of the definitions
+		if (definitionsIndex == null) {
+			digest.update(hash(definitions));
+			updateDependencies(digest, new TreeSet<>(constantOwners));
+		}
+
+		this.definitionsFingerprint = digest.digest();
+	}
+
+	/**
+	 * @return a constant resolver that adds the owner of each constant it resolves to {@code owners}
+	 */
+	static IConstantResolver recordOwners(IConstantResolver constantResolver, Set<String> owners) {
+		return (owner, name) -> {
+			owners.add(owner);
+			return constantResolver.resolveConstant(owner, name);
+		};
+	}
+
+	/**
+	 * @param index the index the class is transformed with, or null
+	 * @return the transformed class, from the cache if possible
+	 */
+	byte[] transform(byte[] classFile, ConstantUninliner uninliner, CallSiteIndex index) throws IOException {
+		MessageDigest digest = sha256();
+		digest.update(definitionsFingerprint);
+		digest.update(hash(classFile));
+		Set<String> dependencies = dependencies(classFile);
+		// The lambdas other classes create of the class, which the uninliner learns from the index
+		Set<String> lambdas = new TreeSet<>();
+
+		if (index != null) {
+			for (CallSiteIndex.InvokeDynamicSite site : index.findLambdaSites(new ClassReader(classFile).getClassName())) {
+				lambdas.add(site.getLambdaMethod() + " " + site.getImplementation());
+			}
+		}
+
+		for (String lambda : lambdas) {
+			digest.update(lambda.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) '\n');
+		}
+
+		if (definitionsIndex != null) {
+			DefinitionsIndex.Slice slice = definitionsIndex.slice(classFile, index);
+			digest.update(slice.definitions.getBytes(StandardCharsets.UTF_8));
+			dependencies.addAll(slice.constantOwners);
+		}
+
+		updateDependencies(digest, dependencies);
+		String key = toHex(digest.digest());
+		Path entry = directory.resolve(key.substring(0, 2)).resolve(key.substring(2) + ".class");
+
+		if (Files.exists(entry)) {
+			try {
+				byte[] transformed = Files.readAllBytes(entry);
+				hits.increment();
+				return transformed;
+			} catch (IOException e) {
+				// Removed concurrently, so it is transformed again
+			}
+		}
+
+		misses.increment();
+		byte[] transformed = uninliner.transform(classFile, index).getBytes();
+		Files.createDirectories(entry.getParent());
+		// Written to a temporary file first, so that a partially written entry is never read
+		Path temporary = Files.createTempFile(entry.getParent(), key, ".tmp");
+
+		try {
+			Files.write(temporary, transformed);
+			moveAtomically(temporary, entry);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+
+		return transformed;
+	}
+
+	/**
+	 * Replaces {@code target} with {@code temporary}, atomically if the file system supports it
+	 */
+	static void moveAtomically(Path temporary, Path target) throws IOException {
+		try {
+			Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	CacheStatistics getStatistics() {
+		return new CacheStatistics(hits.sum(), misses.sum());
+	}
+
+	/**
+	 * @return the classes referenced by {@code classFile}, and their supertypes transitively, in order
+	 */
+	private Set<String> dependencies(byte[] classFile) throws IOException {
+		Set<String> dependencies = new TreeSet<>();
+		Deque<String> queue = new ArrayDeque<>(referencedClasses(classFile));
+
+		while (!queue.isEmpty()) {
+			String dependency = queue.pop();
+
+			if (dependencies.add(dependency)) {
+				queue.addAll(supertypes.computeIfAbsent(dependency, this::readSupertypes));
+			}
+		}
+
+		return dependencies;
+	}
+
+	private Collection<String> readSupertypes(String className) {
+		Collection<String> supertypes = new TreeSet<>();
+		byte[] classFile = classResolver.readClassFile(className);
+
+		if (classFile != null) {
+			ClassReader classReader = new ClassReader(classFile);
+
+			if (classReader.getSuperName() != null) {
+				supertypes.add(classReader.getSuperName());
+			}
+
+			for (String superinterface : classReader.getInterfaces()) {
+				supertypes.add(superinterface);
+			}
+		}
+
+		return supertypes;
+	}
+
+	/**
+	 * @return the classes named by the class constants and descriptors in the constant pool
+	 */
+	private static Set<String> referencedClasses(byte[] classFile) throws IOException {
+		ClassReader classReader = new ClassReader(classFile);
+		Set<String> referenced = new TreeSet<>();
+		char[] buffer = new char[classReader.getMaxStringLength()];
+
+		for (int i = 1; i < classReader.getItemCount(); i++) {
+			int offset = classReader.getItem(i);
+
+			// The second slot of a long or double constant has no offset
+			if (offset == 0) {
+				continue;
+			}
+
+			int tag = classReader.readByte(offset - 1);
+
+			if (tag == CONSTANT_CLASS) {
+				Type type = Type.getObjectType(classReader.readUTF8(offset, buffer));
+
+				if (type.getSort() == Type.ARRAY) {
+					type = type.getElementType();
+				}
+
+				if (type.getSort() == Type.OBJECT) {
+					referenced.add(type.getInternalName());
+				}
+			} else if (tag == CONSTANT_UTF8) {
+				// Descriptors, and possibly strings that look like them, which only costs a lookup.
+				// DataInput reads the same modified UTF-8 as the constant pool.
+				String utf8 = new DataInputStream(new ByteArrayInputStream(classFile, offset, classFile.length - offset)).readUTF();
+				Matcher matcher = OBJECT_TYPE.matcher(utf8);
+
+				while (matcher.find()) {
+					referenced.add(matcher.group(1));
+				}
+			}
+		}
+
+		return referenced;
+	}
+
+	private void updateDependencies(MessageDigest digest, Set<String> dependencies) {
+		for (String dependency : dependencies) {
+			digest.update(dependency.getBytes(StandardCharsets.UTF_8));
+			digest.update(contentHashes.computeIfAbsent(dependency, name -> {
+				byte[] classFile = classResolver.readClassFile(name);
+				return classFile != null ? hash(classFile) : MISSING;
+			}));
+		}
+	}
+
+	private static byte[] hash(byte[] bytes) {
+		return sha256().digest(bytes);
+	}
+
+	/**
+	 * Identifies the build of unpick by its version and a hash of the jars of the uninliner and the CLI, as the version
+	 * is the same for every build until it is bumped. Only computed once a cache is opened.
+	 */
+	private static class Build {
+		/**
+		 * Null if unpick is not run from jars with a version
+		 */
+		static final String ID = identify();
+
+		private static String identify() {
+			String version = ConstantUninliner.class.getPackage().getImplementationVersion();
+
+			if (version == null) {
+				return null;
+			}
+
+			// Usually the same jar, as the CLI bundles the uninliner
+			Set<Path> jars = new LinkedHashSet<>();
+
+			try {
+				for (Class<?> type : Arrays.asList(ConstantUninliner.class, TransformCache.class)) {
+					CodeSource codeSource = type.getProtectionDomain().getCodeSource();
+
+					if (codeSource == null) {
+						return null;
+					}
+
+					jars.add(Paths.get(codeSource.getLocation().toURI()));
+				}
+
+				MessageDigest digest = sha256();
+
+				for (Path jar : jars) {
+					if (!Files.isRegularFile(jar)) {
+						return null;
+					}
+
+					digest.update(Files.readAllBytes(jar));
+				}
+
+				return version + " " + toHex(digest.digest());
+			} catch (IOException | URISyntaxException | IllegalArgumentException e) {
+				return null;
+			}
+		}
+	}
+
+	static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is required to be supported", e);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+
+		return hex.toString();
+	}
+}
@@ -0,0 +1,169 @@
+package daomephsta.unpick.cli;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import daomephsta.unpick.api.constantmappers.ConstantMappers;
+import daomephsta.unpick.api.constantresolvers.ConstantResolvers;
+import daomephsta.unpick.api.constantresolvers.IConstantResolver;
+
+public class MergeTest {
+	private static final Handle METAFACTORY = new Handle(H_INVOKESTATIC, "java/lang/invoke/LambdaMetafactory", "metafactory",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;"
+			+ "Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;", false);
+	private static final String DEFINITIONS = "v2\n"
+			+ "constant ints java/lang/Integer MAX_VALUE\n"
+			+ "target_method java/lang/Math abs (I)I\n"
+			+ "\tparam 0 ints\n"
+			+ "target_method java/util/function/IntSupplier getAsInt ()I\n"
+			+ "\treturn ints\n";
+	private static final int SHARD_COUNT = 3;
+
+	@Test
+	public void testMergedShards() throws IOException {
+		Path directory = Files.createTempDirectory("unpick-merge");
+
+		try {
+			Path inputJar = directory.resolve("input.jar");
+			Path definitions = Files.write(directory.resolve("definitions.unpick"), DEFINITIONS.getBytes(StandardCharsets.UTF_8));
+			writeInput(inputJar);
+			String index = directory.resolve("index.bin").toString();
+
+			Path unsharded = directory.resolve("unsharded.jar");
+			unpick("--index", index, inputJar.toString(), unsharded.toString(), definitions.toString(), inputJar.toString());
+
+			List<Path> shards = new ArrayList<>();
+
+			for (int shard = 1; shard <= SHARD_COUNT; shard++) {
+				Path shardJar = directory.resolve("shard" + shard + ".jar");
+				unpick("--index", index, "--shard", shard + "/" + SHARD_COUNT, inputJar.toString(), shardJar.toString(),
+						definitions.toString(), inputJar.toString());
+				shards.add(shardJar);
+			}
+
+			Path merged = directory.resolve("merged.jar");
+			Main.merge(inputJar, merged, shards);
+			assertArrayEquals(Files.readAllBytes(unsharded), Files.readAllBytes(merged));
+
+			// Without an index, the implementation of the lambda is not known to return an int supplied by IntSupplier
+			Path unindexed = directory.resolve("unindexed.jar");
+			unpick(inputJar.toString(), unindexed.toString(), definitions.toString(), inputJar.toString());
+			assertFalse(Arrays.equals(readEntry(merged, "merge/Implementor.class"), readEntry(unindexed, "merge/Implementor.class")));
+		} finally {
+			try (Stream<Path> files = Files.walk(directory)) {
+				for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+					Files.delete(file);
+				}
+			}
+		}
+	}
+
+	private static void unpick(String... args) throws IOException {
+		Main.Job job = new Main.Job(args, 0);
+
+		try (Main.JarClassResolver classResolver = new Main.JarClassResolver(job.classpath)) {
+			IConstantResolver constantResolver = ConstantResolvers.bytecodeAnalysis(classResolver);
+			Main.unpick(job, Main.createUninliner(classResolver, constantResolver, ConstantMappers.dataDriven(classResolver,
+					constantResolver, new ByteArrayInputStream(DEFINITIONS.getBytes(StandardCharsets.UTF_8)))), null);
+		}
+	}
+
+	private static byte[] readEntry(Path jar, String name) throws IOException {
+		try (JarFile jarFile = new JarFile(jar.toFile()); InputStream inputStream = jarFile.getInputStream(jarFile.getJarEntry(name))) {
+			return Main.readAllBytes(inputStream);
+		}
+	}
+
+	/**
+	 * Writes a jar of several callers of {@code Math.abs}, a class that creates an {@code IntSupplier} lambda,
+	 * the class that implements it, and a resource
+	 */
+	private static void writeInput(Path jar) throws IOException {
+		try (JarOutputStream outputStream = new JarOutputStream(Files.newOutputStream(jar))) {
+			for (int i = 0; i < 4; i++) {
+				writeEntry(outputStream, "merge/Caller" + i + ".class", caller("merge/Caller" + i));
+			}
+
+			writeEntry(outputStream, "merge/Creator.class", creator());
+			writeEntry(outputStream, "merge/Implementor.class", implementor());
+			writeEntry(outputStream, "merge/resource.txt", "resource".getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static void writeEntry(JarOutputStream outputStream, String name, byte[] contents) throws IOException {
+		JarEntry entry = new JarEntry(name);
+		entry.setTime(0);
+		outputStream.putNextEntry(entry);
+		outputStream.write(contents);
+		outputStream.closeEntry();
+	}
+
+	/**
+	 * @return a class that calls {@code Math.abs(Integer.MAX_VALUE)}
+	 */
+	private static byte[] caller(String name) {
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		classWriter.visit(V1_8, ACC_PUBLIC, name, null, "java/lang/Object", null);
+		MethodVisitor call = classWriter.visitMethod(ACC_STATIC, "call", "()I", null, null);
+		call.visitCode();
+		call.visitLdcInsn(Integer.MAX_VALUE);
+		call.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "abs", "(I)I", false);
+		call.visitInsn(IRETURN);
+		call.visitMaxs(0, 0);
+		call.visitEnd();
+		classWriter.visitEnd();
+		return classWriter.toByteArray();
+	}
+
+	/**
+	 * @return a class that creates an {@code IntSupplier} lambda implemented by {@code Implementor.value()}
+	 */
+	private static byte[] creator() {
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		classWriter.visit(V1_8, ACC_PUBLIC, "merge/Creator", null, "java/lang/Object", null);
+		MethodVisitor create = classWriter.visitMethod(ACC_STATIC, "create", "()Ljava/util/function/IntSupplier;", null, null);
+		create.visitCode();
+		create.visitInvokeDynamicInsn("getAsInt", "()Ljava/util/function/IntSupplier;", METAFACTORY,
+				Type.getType("()I"), new Handle(H_INVOKESTATIC, "merge/Implementor", "value", "()I", false), Type.getType("()I"));
+		create.visitInsn(ARETURN);
+		create.visitMaxs(0, 0);
+		create.visitEnd();
+		classWriter.visitEnd();
+		return classWriter.toByteArray();
+	}
+
+	private static byte[] implementor() {
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		classWriter.visit(V1_8, ACC_PUBLIC, "merge/Implementor", null, "java/lang/Object", null);
+		MethodVisitor value = classWriter.visitMethod(ACC_PUBLIC | ACC_STATIC, "value", "()I", null, null);
+		value.visitCode();
+		value.visitLdcInsn(Integer.MAX_VALUE);
+		value.visitInsn(IRETURN);
+		value.visitMaxs(0, 0);
+		value.visitEnd();
+		classWriter.visitEnd();
+		return classWriter.toByteArray();
+	}
+}
@@ -0,0 +1,34 @@
+package daomephsta.unpick.cli;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.jar.JarEntry;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+public class OutputTest {
+	@Test
+	public void testUnnormalizedOverlay() throws IOException {
+		Path directory = Files.createTempDirectory("unpick-overlay");
+
+		try {
+			// Entries are compared with the directory after both are normalized
+			try (Output output = Output.open(Output.Format.OVERLAY, directory.resolve(".").resolve("out"))) {
+				output.write(new JarEntry("a/B.class"), new byte[] {1, 2, 3});
+			}
+
+			assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(directory.resolve("out/a/B.class")));
+		} finally {
+			try (Stream<Path> files = Files.walk(directory)) {
+				for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+					Files.delete(file);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package daomephsta.unpick.cli;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import daomephsta.unpick.api.ConstantUninliner;
+import daomephsta.unpick.api.constantmappers.ConstantMappers;
+import daomephsta.unpick.api.constantresolvers.ConstantResolvers;
+import daomephsta.unpick.api.constantresolvers.IConstantResolver;
+
+public class TransformCacheTest {
+	private static final Handle METAFACTORY = new Handle(H_INVOKESTATIC, "java/lang/invoke/LambdaMetafactory", "metafactory",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;"
+			+ "Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;", false);
+	private static final String DEFINITIONS = "v2\n"
+			+ "constant ints java/lang/Integer MAX_VALUE\n"
+			+ "target_method java/lang/Math abs (I)I\n"
+			+ "\tparam 0 ints\n";
+	private static final String LAMBDA_DEFINITIONS = DEFINITIONS
+			+ "target_method java/util/function/IntSupplier getAsInt ()I\n"
+			+ "\treturn ints\n";
+	// Calendar.APRIL is 3, so it replaces 3 if it comes before FEBRUARY and MARCH, which are 1 and 2
+	private static final String OVERLAPPING_FLAGS = "v2\n"
+			+ "flag months java/util/Calendar APRIL\n"
+			+ "flag months java/util/Calendar FEBRUARY\n"
+			+ "flag months java/util/Calendar MARCH\n"
+			+ "target_method java/lang/Math abs (I)I\n"
+			+ "\tparam 0 months\n";
+	private static final String REORDERED_FLAGS = "v2\n"
+			+ "flag months java/util/Calendar FEBRUARY\n"
+			+ "flag months java/util/Calendar MARCH\n"
+			+ "flag months java/util/Calendar APRIL\n"
+			+ "target_method java/lang/Math abs (I)I\n"
+			+ "\tparam 0 months\n";
+
+	@Test
+	public void testLambdaTargets() throws IOException {
+		Path directory = Files.createTempDirectory("unpick-cache");
+
+		try (Main.JarClassResolver classResolver = new Main.JarClassResolver(new URL[0])) {
+			byte[] creator = creator();
+			byte[] unrelated = unrelated();
+
+			TransformCache before = createCache(directory, classResolver, DEFINITIONS);
+			before.transform(creator, createUninliner(classResolver, DEFINITIONS), null);
+			before.transform(unrelated, createUninliner(classResolver, DEFINITIONS), null);
+			assertEquals(0, before.getStatistics().getHits());
+
+			// Only the class that creates a lambda of the newly targeted method is affected by it
+			TransformCache after = createCache(directory, classResolver, LAMBDA_DEFINITIONS);
+			after.transform(creator, createUninliner(classResolver, LAMBDA_DEFINITIONS), null);
+			after.transform(unrelated, createUninliner(classResolver, LAMBDA_DEFINITIONS), null);
+			assertEquals(1, after.getStatistics().getHits());
+			assertEquals(1, after.getStatistics().getMisses());
+		} finally {
+			delete(directory);
+		}
+	}
+
+	@Test
+	public void testFlagOrder() throws IOException {
+		Path directory = Files.createTempDirectory("unpick-cache");
+
+		try (Main.JarClassResolver classResolver = new Main.JarClassResolver(new URL[0])) {
+			byte[] caller = caller();
+
+			TransformCache before = createCache(directory, classResolver, OVERLAPPING_FLAGS);
+			byte[] overlapping = before.transform(caller, createUninliner(classResolver, OVERLAPPING_FLAGS), null);
+
+			// Reordering the flags of a group changes how they are decomposed
+			TransformCache after = createCache(directory, classResolver, REORDERED_FLAGS);
+			byte[] reordered = after.transform(caller, createUninliner(classResolver, REORDERED_FLAGS), null);
+			assertEquals(0, after.getStatistics().getHits());
+			assertEquals(1, after.getStatistics().getMisses());
+			assertFalse(Arrays.equals(overlapping, reordered));
+		} finally {
+			delete(directory);
+		}
+	}
+
+	private static void delete(Path directory) throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(file);
+			}
+		}
+	}
+
+	private static TransformCache createCache(Path directory, Main.JarClassResolver classResolver, String definitions) throws IOException {
+		return new TransformCache(directory, "test", classResolver, definitions.getBytes(StandardCharsets.UTF_8), new HashSet<>());
+	}
+
+	private static ConstantUninliner createUninliner(Main.JarClassResolver classResolver, String definitions) {
+		IConstantResolver constantResolver = ConstantResolvers.bytecodeAnalysis(classResolver);
+		return Main.createUninliner(classResolver, constantResolver, ConstantMappers.dataDriven(classResolver, constantResolver,
+				new ByteArrayInputStream(definitions.getBytes(StandardCharsets.UTF_8))));
+	}
+
+	/**
+	 * @return a class that creates an {@code IntSupplier} lambda, without calling {@code getAsInt()} itself
+	 */
+	private static byte[] creator() {
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		classWriter.visit(V1_8, ACC_PUBLIC, "cache/Creator", null, "java/lang/Object", null);
+		MethodVisitor create = classWriter.visitMethod(ACC_STATIC, "create", "()Ljava/util/function/IntSupplier;", null, null);
+		create.visitCode();
+		create.visitInvokeDynamicInsn("getAsInt", "()Ljava/util/function/IntSupplier;", METAFACTORY,
+				Type.getType("()I"), new Handle(H_INVOKESTATIC, "cache/Creator", "lambda$create$0", "()I", false), Type.getType("()I"));
+		create.visitInsn(ARETURN);
+		create.visitMaxs(0, 0);
+		create.visitEnd();
+		MethodVisitor lambda = classWriter.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, "lambda$create$0", "()I", null, null);
+		lambda.visitCode();
+		lambda.visitInsn(ICONST_2);
+		lambda.visitInsn(IRETURN);
+		lambda.visitMaxs(0, 0);
+		lambda.visitEnd();
+		classWriter.visitEnd();
+		return classWriter.toByteArray();
+	}
+
+	/**
+	 * @return a class that calls {@code Math.abs(3)}
+	 */
+	private static byte[] caller() {
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		classWriter.visit(V1_8, ACC_PUBLIC, "cache/Caller", null, "java/lang/Object", null);
+		MethodVisitor call = classWriter.visitMethod(ACC_STATIC, "call", "()I", null, null);
+		call.visitCode();
+		call.visitInsn(ICONST_3);
+		call.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "abs", "(I)I", false);
+		call.visitInsn(IRETURN);
+		call.visitMaxs(0, 0);
+		call.visitEnd();
+		classWriter.visitEnd();
+		return classWriter.toByteArray();
+	}
+
+	private static byte[] unrelated() {
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		classWriter.visit(V1_8, ACC_PUBLIC, "cache/Unrelated", null, "java/lang/Object", null);
+		MethodVisitor nothing = classWriter.visitMethod(ACC_STATIC, "nothing", "()V", null, null);
+		nothing.visitCode();
+		nothing.visitInsn(RETURN);
+		nothing.visitMaxs(0, 0);
+		nothing.visitEnd();
+		classWriter.visitEnd();
+		return classWriter.toByteArray();
+	}
+}